@@ -6,11 +6,13 @@
 
 package edu.nps.moves.xmlpg;
 
+import java.io.*;
+
 /**
  *
  * @author DMcG
  */
-public class BitField 
+public class BitField implements Serializable
 {
     String mask = "0";
     String name;
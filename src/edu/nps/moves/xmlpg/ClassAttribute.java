@@ -1,5 +1,6 @@
 package edu.nps.moves.xmlpg;
 
+import java.io.*;
 import java.util.*;
 
 /**
@@ -10,7 +11,7 @@ import java.util.*;
  * @author DMcG
  */
 
-public class ClassAttribute 
+public class ClassAttribute implements Serializable
 {
     /**
      * The various things an attribute can be: a primitive type (int, short, byte, etc), 
@@ -39,13 +39,29 @@ public class CppGenerator extends Generator
         */
     Properties cppProperties;
     
+    /** Fixed width types that primitives are read and written as by the buffer marshal
+     * methods, so the wire size does not depend on the size of long on the platform.
+     */
+    Properties wireTypes = new Properties();
+    
+    /** If true, each class also gets marshal and unmarshal methods that work directly
+     * on a caller supplied uint8_t buffer rather than through a DataStream. Set with
+     * bufferMarshal="true" on the cpp element or -Dxmlpg.bufferMarshal=true.
+     */
+    boolean bufferMarshal = false;
+    
+    /** If true, each class with a fixed marshalled size also gets a packed <Name>Record
+     * struct laid out exactly as the class is on the wire. Set with podStructs="true"
+     * on the cpp element or -Dxmlpg.podStructs=true.
+     */
+    boolean podStructs = false;
+    
     public CppGenerator(HashMap pClassDescriptions, Properties pCppProperties)
     {
         super(pClassDescriptions, pCppProperties);
 
-        Properties systemProperties = System.getProperties();
         String directory = null;
-        String clDirectory = systemProperties.getProperty("xmlpg.generatedSourceDir");
+        String clDirectory = this.getCommandLineProperty("generatedSourceDir");
 
         // Directory to place generated source code
         if(clDirectory != null)
@@ -100,6 +116,21 @@ public class CppGenerator extends Generator
         primitiveSizes.setProperty("double", "8");
         primitiveSizes.setProperty("float", "4");
         
+        wireTypes.setProperty("unsigned short", "uint16_t");
+        wireTypes.setProperty("unsigned byte", "uint8_t");
+        wireTypes.setProperty("unsigned int", "uint32_t");
+        wireTypes.setProperty("unsigned long", "uint64_t");
+        
+        wireTypes.setProperty("byte", "int8_t");
+        wireTypes.setProperty("short", "int16_t");
+        wireTypes.setProperty("int", "int32_t");
+        wireTypes.setProperty("long", "int64_t");
+        
+        wireTypes.setProperty("double", "double");
+        wireTypes.setProperty("float", "float");
+        
+        this.bufferMarshal = this.getBooleanOption("bufferMarshal");
+        this.podStructs = this.getBooleanOption("podStructs");
     }
     
     /**
@@ -111,24 +142,29 @@ public class CppGenerator extends Generator
         
         this.writeMacroFile();
         
-        Iterator it = classDescriptions.values().iterator();
+        // The records use the same byte order helpers as the buffer marshal methods
+        if(bufferMarshal || podStructs)
+            this.writeBufferMarshalFile();
         
         // Loop through all the class descriptions, generating a header file and cpp file for each.
-        while(it.hasNext())
+        this.forEachClass(classDescriptions.values(), new ClassEmitter()
         {
-            try
-           {
-              GeneratedClass aClass = (GeneratedClass)it.next();
-			  // System.out.println("Generating class " + aClass.getName());
-              this.writeHeaderFile(aClass);
-              this.writeCppFile(aClass);
-           }
-           catch(Exception e)
-           {
-                System.out.println("error creating source code " + e);
-           }
-            
-        } // End while
+            public void emit(GeneratedClass aClass)
+            {
+                try
+                {
+                    // System.out.println("Generating class " + aClass.getName());
+                    writeHeaderFile(aClass);
+                    writeCppFile(aClass);
+                    if(podStructs && getFixedSize(aClass) > 0)
+                        writeRecordFile(aClass);
+                }
+                catch(Exception e)
+                {
+                    System.out.println("error creating source code " + e);
+                }
+            }
+        });
         
     }
    
@@ -154,8 +190,7 @@ public class CppGenerator extends Generator
         {
             String headerFullPath = getDirectory() + "/" + headerFile + ".h";
             File outputFile = new File(headerFullPath);
-            outputFile.createNewFile();
-            PrintWriter pw = new PrintWriter(outputFile);
+            PrintWriter pw = this.openOutputFile(outputFile);
             
             String libMacro = languageProperties.getProperty("microsoftLibMacro");
             String library = languageProperties.getProperty("microsoftLibDef");
@@ -173,6 +208,11 @@ public class CppGenerator extends Generator
             pw.println("#  define " + "EXPORT_MACRO");
             pw.println("#endif");
             
+            // Move setters are only declared by compilers that have rvalue references
+            pw.println("#if __cplusplus >= 201103L || (defined(_MSC_VER) && _MSC_VER >= 1600)");
+            pw.println("#  define XMLPG_HAS_RVALUE_REFERENCES");
+            pw.println("#endif");
+            
             pw.println("#endif");
             
             pw.flush();
@@ -184,6 +224,85 @@ public class CppGenerator extends Generator
         }
 }
 
+/**
+ * Writes BufferMarshal.h, the inline functions the buffer marshal methods use to put
+ * values into and get them out of a byte buffer in network byte order. Compilers turn
+ * the shift loops into a single byte swapping load or store.
+ */
+public void writeBufferMarshalFile()
+{
+    String headerFile = "BufferMarshal";
+    
+    try
+    {
+        String headerFullPath = getDirectory() + "/" + headerFile + ".h";
+        File outputFile = new File(headerFullPath);
+        PrintWriter pw = this.openOutputFile(outputFile);
+        
+        String namespace = languageProperties.getProperty("namespace");
+        
+        pw.println("#ifndef " + headerFile.toUpperCase() + "_H");
+        pw.println("#define " + headerFile.toUpperCase() + "_H");
+        pw.println();
+        pw.println("#include <cstddef>");
+        pw.println("#include <cstring>");
+        pw.println("#include <stdint.h>");
+        pw.println();
+        
+        if(namespace != null)
+        {
+            pw.println("namespace " + namespace);
+            pw.println("{");
+        }
+        
+        pw.println("// Unsigned integer the same size as a wire type, used to shift its bytes");
+        pw.println("template<size_t N> struct WireBits;");
+        pw.println("template<> struct WireBits<1> { typedef uint8_t type; };");
+        pw.println("template<> struct WireBits<2> { typedef uint16_t type; };");
+        pw.println("template<> struct WireBits<4> { typedef uint32_t type; };");
+        pw.println("template<> struct WireBits<8> { typedef uint64_t type; };");
+        pw.println();
+        pw.println("// Writes value at buffer, most significant byte first. The caller checks the bounds.");
+        pw.println("template<typename T> inline void putBigEndian(uint8_t* buffer, T value)");
+        pw.println("{");
+        pw.println("    typename WireBits<sizeof(T)>::type bits;");
+        pw.println("    std::memcpy(&bits, &value, sizeof(T));");
+        pw.println("    for(size_t idx = 0; idx < sizeof(T); idx++)");
+        pw.println("    {");
+        pw.println("        buffer[idx] = (uint8_t)(bits >> (8 * (sizeof(T) - 1 - idx)));");
+        pw.println("    }");
+        pw.println("}");
+        pw.println();
+        pw.println("// Reads a value stored most significant byte first at buffer. The caller checks the bounds.");
+        pw.println("template<typename T> inline T getBigEndian(const uint8_t* buffer)");
+        pw.println("{");
+        pw.println("    typename WireBits<sizeof(T)>::type bits = 0;");
+        pw.println("    for(size_t idx = 0; idx < sizeof(T); idx++)");
+        pw.println("    {");
+        pw.println("        bits = (typename WireBits<sizeof(T)>::type)((bits << 8) | buffer[idx]);");
+        pw.println("    }");
+        pw.println("    T value;");
+        pw.println("    std::memcpy(&value, &bits, sizeof(T));");
+        pw.println("    return value;");
+        pw.println("}");
+        
+        if(namespace != null)
+        {
+            pw.println("}");
+        }
+        
+        pw.println();
+        pw.println("#endif");
+        
+        pw.flush();
+        pw.close();
+    }
+    catch(Exception e)
+    {
+        System.out.println(e);
+    }
+}
+
 /**
  * Generate a c++ header file for the classes
  */
@@ -195,8 +314,7 @@ public void writeHeaderFile(GeneratedClass aClass)
         //System.out.println("Creating cpp and .h source code files for " + name);
         String headerFullPath = getDirectory() + "/" + name + ".h";
         File outputFile = new File(headerFullPath);
-        outputFile.createNewFile();
-        PrintWriter pw = new PrintWriter(outputFile);
+        PrintWriter pw = this.openOutputFile(outputFile);
         
         // Write the usual #ifdef to prevent multiple inclusions by the preprocessor
         pw.println("#ifndef " + aClass.getName().toUpperCase() + "_H");
@@ -237,6 +355,8 @@ public void writeHeaderFile(GeneratedClass aClass)
         if(hasVariableLengthList == true)
         {
            pw.println("#include <vector>");
+           pw.println("#include <utility>");
+           pw.println("#include <algorithm>");
         }
         
         // if we inherit from another class we need to do an include on it
@@ -249,6 +369,10 @@ public void writeHeaderFile(GeneratedClass aClass)
         // pw.println("#include <vector>");
         //pw.println("#include <iostream>");
         pw.println("#include <" + namespace + "DataStream.h>");
+        if(bufferMarshal)
+        {
+            pw.println("#include <" + namespace + "BufferMarshal.h>");
+        }
         
          // This is a macro file included only for microsoft compilers. set in the cpp properties tag.
         String msMacroFile = "msLibMacro";
@@ -350,6 +474,7 @@ public void writeHeaderFile(GeneratedClass aClass)
         
         // Delcare ctor and dtor in the public area
         pw.println("\n public:");
+        this.writeLayoutConstants(pw, aClass);
         // Constructor
         pw.println("    " + aClass.getName() + "();");
         
@@ -364,6 +489,15 @@ public void writeHeaderFile(GeneratedClass aClass)
         pw.println("    virtual void unmarshal(DataStream& dataStream);");
         pw.println();
         
+        if(bufferMarshal)
+        {
+            pw.println("    // Marshal into or unmarshal from a buffer of size bytes without a DataStream in between.");
+            pw.println("    // Both return the number of bytes used, or -1 if the buffer is too short.");
+            pw.println("    virtual int marshal(uint8_t* buffer, size_t size) const;");
+            pw.println("    virtual int unmarshal(const uint8_t* buffer, size_t size);");
+            pw.println();
+        }
+        
         // Getter and setter methods for each ivar
         for(int idx = 0; idx < aClass.getClassAttributes().size(); idx++)
         {
@@ -383,6 +517,12 @@ public void writeHeaderFile(GeneratedClass aClass)
                 pw.println("    " + anAttribute.getType() + "& " + "get" + this.initialCap(anAttribute.getName()) + "(); ");
                 pw.println("    const " + anAttribute.getType() + "&  get" + this.initialCap(anAttribute.getName()) + "() const; ");
                 pw.println("    void set" + this.initialCap(anAttribute.getName()) + "(const " + anAttribute.getType() + "    &pX);");
+                if(this.hasMoveSetter(anAttribute))
+                {
+                    pw.println("#ifdef XMLPG_HAS_RVALUE_REFERENCES");
+                    pw.println("    void set" + this.initialCap(anAttribute.getName()) + "(" + anAttribute.getType() + "&& pX);");
+                    pw.println("#endif");
+                }
             } 
             
             if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
@@ -405,6 +545,9 @@ public void writeHeaderFile(GeneratedClass aClass)
                 pw.println("    std::vector<" + anAttribute.getType() + ">& " + "get" + this.initialCap(anAttribute.getName()) + "(); ");
                 pw.println("    const std::vector<" + anAttribute.getType() + ">& " + "get" + this.initialCap(anAttribute.getName()) + "() const; ");
                 pw.println("    void set" + this.initialCap(anAttribute.getName()) + "(const std::vector<" + anAttribute.getType() + ">&    pX);");
+                pw.println("#ifdef XMLPG_HAS_RVALUE_REFERENCES");
+                pw.println("    void set" + this.initialCap(anAttribute.getName()) + "(std::vector<" + anAttribute.getType() + ">&& pX);");
+                pw.println("#endif");
             }
             
             pw.println();
@@ -441,6 +584,159 @@ public void writeHeaderFile(GeneratedClass aClass)
                 
 } // End write header file
 
+/**
+ * Writes <Name>Record.h, a packed struct with the same layout as the marshalled class,
+ * for classes whose size is fixed and not zero. The struct is trivially copyable, so a record can be
+ * memcpy'd or reinterpret_cast straight off the wire. Multi byte fields stay in network
+ * byte order and are read and written through inline get and set methods that swap
+ * them; single bytes and nested records are plain members. A superclass is the first
+ * member, named base. Fields that take no space on the wire are left out. static_asserts check the size and field offsets against the
+ * class's MARSHALLED_SIZE and OFFSET_ constants.
+ */
+public void writeRecordFile(GeneratedClass aClass)
+{
+    try
+    {
+        String name = aClass.getName();
+        String recordName = name + "Record";
+        String headerFullPath = getDirectory() + "/" + recordName + ".h";
+        File outputFile = new File(headerFullPath);
+        PrintWriter pw = this.openOutputFile(outputFile);
+        List attributes = aClass.getClassAttributes();
+        boolean hasParent = this.getFixedSuperclassSize(aClass) > 0;
+        
+        String namespace = languageProperties.getProperty("namespace");
+        String includePrefix = "";
+        if(namespace != null)
+            includePrefix = namespace + "/";
+        
+        pw.println("#ifndef " + recordName.toUpperCase() + "_H");
+        pw.println("#define " + recordName.toUpperCase() + "_H");
+        pw.println();
+        pw.println("#include <cstddef>");
+        pw.println("#include <type_traits>");
+        pw.println("#include <stdint.h>");
+        pw.println("#include <" + includePrefix + "BufferMarshal.h>");
+        pw.println("#include <" + includePrefix + name + ".h>");
+        
+        if(hasParent)
+            pw.println("#include <" + includePrefix + aClass.getParentClass() + "Record.h>");
+        
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            if(!anAttribute.getUnderlyingTypeIsPrimitive() && this.getFixedSize(anAttribute) > 0 &&
+               anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.PRIMITIVE)
+            {
+                pw.println("#include <" + includePrefix + anAttribute.getType() + "Record.h>");
+            }
+        }
+        pw.println();
+        
+        if(namespace != null)
+        {
+            pw.println("namespace " + namespace);
+            pw.println("{");
+        }
+        
+        pw.println("// " + name + " as it is laid out on the wire. Multi byte fields are held in network byte order.");
+        pw.println("#pragma pack(push, 1)");
+        pw.println("struct " + recordName);
+        pw.println("{");
+        
+        if(hasParent)
+            pw.println("    " + aClass.getParentClass() + "Record base;");
+        
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            if(this.getFixedSize(anAttribute) == 0)
+                continue;
+            
+            String type = anAttribute.getType() + "Record";
+            if(anAttribute.getUnderlyingTypeIsPrimitive() || anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+                type = this.getRecordFieldType(anAttribute.getType());
+            
+            String array = "";
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+                array = "[" + anAttribute.getListLength() + "]";
+            
+            pw.println("    " + type + " " + anAttribute.getName() + array + ";");
+        }
+        
+        // Accessors that swap the multi byte primitives
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            if(anAttribute.shouldSerialize == false || getPrimitiveSize(anAttribute.getType()) < 2)
+                continue;
+            
+            String fieldName = anAttribute.getName();
+            String capName = this.initialCap(fieldName);
+            String wireType = wireTypes.getProperty(anAttribute.getType());
+            
+            pw.println();
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+            {
+                pw.println("    " + wireType + " get" + capName + "() const { return getBigEndian<" + wireType + ">((const uint8_t*)&" + fieldName + "); }");
+                pw.println("    void set" + capName + "(" + wireType + " pX) { putBigEndian<" + wireType + ">((uint8_t*)&" + fieldName + ", pX); }");
+            }
+            else
+            {
+                pw.println("    " + wireType + " get" + capName + "(size_t idx) const { return getBigEndian<" + wireType + ">((const uint8_t*)&" + fieldName + "[idx]); }");
+                pw.println("    void set" + capName + "(size_t idx, " + wireType + " pX) { putBigEndian<" + wireType + ">((uint8_t*)&" + fieldName + "[idx], pX); }");
+            }
+        }
+        
+        pw.println("};");
+        pw.println("#pragma pack(pop)");
+        pw.println();
+        
+        pw.println("static_assert(std::is_trivial<" + recordName + ">::value && std::is_standard_layout<" + recordName + ">::value, \"" + recordName + " must be a POD\");");
+        pw.println("static_assert(sizeof(" + recordName + ") == " + name + "::MARSHALLED_SIZE, \"" + recordName + " does not match the marshalled size of " + name + "\");");
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            if(this.getFixedSize(anAttribute) == 0)
+                continue;
+            
+            pw.println("static_assert(offsetof(" + recordName + ", " + anAttribute.getName() + ") == " + name + "::OFFSET_" + this.getConstantName(anAttribute.getName()) + ", \"" + recordName + "::" + anAttribute.getName() + " is not at its marshalled offset\");");
+        }
+        
+        if(namespace != null)
+        {
+            pw.println("}");
+        }
+        
+        pw.println();
+        pw.println("#endif");
+        
+        this.writeLicenseNotice(pw);
+        
+        pw.flush();
+        pw.close();
+    }
+    catch(Exception e)
+    {
+        System.out.println(e);
+    }
+}
+
+/**
+ * The type a primitive is stored as in a record. Floating point values are kept as
+ * unsigned integers of the same size, since their bytes are in network order and may
+ * not be a valid number on the host until swapped.
+ */
+private String getRecordFieldType(String xmlType)
+{
+    if(xmlType.equalsIgnoreCase("float"))
+        return "uint32_t";
+    if(xmlType.equalsIgnoreCase("double"))
+        return "uint64_t";
+    
+    return wireTypes.getProperty(xmlType);
+}
+
 public void writeCppFile(GeneratedClass aClass)
 {
     try
@@ -449,8 +745,7 @@ public void writeCppFile(GeneratedClass aClass)
         //System.out.println("Creating cpp and .h source code files for " + name);
         String headerFullPath = getDirectory() + "/" + name + ".cpp";
         File outputFile = new File(headerFullPath);
-        outputFile.createNewFile();
-        PrintWriter pw = new PrintWriter(outputFile);
+        PrintWriter pw = this.openOutputFile(outputFile);
          
         String namespace = languageProperties.getProperty("namespace");
         if(namespace==null)
@@ -485,6 +780,12 @@ public void writeCppFile(GeneratedClass aClass)
         this.writeMarshalMethod(pw, aClass);
         this.writeUnmarshalMethod(pw, aClass);
         
+        if(bufferMarshal)
+        {
+            this.writeBufferMarshalMethod(pw, aClass);
+            this.writeBufferUnmarshalMethod(pw, aClass);
+        }
+        
         // Write a comparision operator
         this.writeEqualityOperator(pw, aClass);
         
@@ -675,8 +976,7 @@ public void writeMarshalMethod(PrintWriter pw, GeneratedClass aClass)
                 
                 if(marshalType == null) // It's a class
                 {
-                    pw.println("        " + anAttribute.getType() + " x = " +  IVAR_PREFIX + anAttribute.getName() + "[idx];");
-                    pw.println("        x.marshal(dataStream);");
+                    pw.println("        " +  IVAR_PREFIX + anAttribute.getName() + "[idx].marshal(dataStream);");
                 }
                 else // it's a primitive
                 {
@@ -748,6 +1048,12 @@ public void writeUnmarshalMethod(PrintWriter pw, GeneratedClass aClass)
         { 
             pw.println();
             pw.println("     " + IVAR_PREFIX + anAttribute.getName() + ".clear();"); // Clear out any existing objects in the list
+            // The count has already been read. Reserve no more entries than the bytes in the
+            // stream could hold, so a bad count cannot ask for a huge allocation.
+            int minSize = anAttribute.getUnderlyingTypeIsPrimitive() ? getPrimitiveSize(anAttribute.getType()) :
+                this.getMinimumSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+            if(minSize > 0)
+                pw.println("     " + IVAR_PREFIX + anAttribute.getName() + ".reserve(std::min<size_t>(" + IVAR_PREFIX + anAttribute.getCountFieldName() + ", dataStream.size() / " + minSize + "));");
             pw.println("     for(size_t idx = 0; idx < " + IVAR_PREFIX + anAttribute.getCountFieldName() + "; idx++)");
             pw.println("     {");
             
@@ -760,9 +1066,9 @@ public void writeUnmarshalMethod(PrintWriter pw, GeneratedClass aClass)
             
             if(marshalType == null) // It's a class
             {
-                pw.println("        " + anAttribute.getType() + " x;");
-                pw.println("        x.unmarshal(dataStream);" );
-                pw.println("        " +  IVAR_PREFIX + anAttribute.getName() + ".push_back(x);");
+                // Unmarshal into the new last element rather than copying a local into the list
+                pw.println("        " +  IVAR_PREFIX + anAttribute.getName() + ".push_back(" + anAttribute.getType() + "());");
+                pw.println("        " +  IVAR_PREFIX + anAttribute.getName() + ".back().unmarshal(dataStream);");
             }
             else // It's a primitive
             {
@@ -783,6 +1089,250 @@ catch(Exception e)
 }
 }
 
+/**
+ * Writes marshal(uint8_t*, size_t), which puts the fields straight into the caller's
+ * buffer in network byte order. The space needed is checked once on the way in, against
+ * MARSHALLED_SIZE if the class has a fixed size, so the fields are written unchecked.
+ */
+public void writeBufferMarshalMethod(PrintWriter pw, GeneratedClass aClass)
+{
+    String name = aClass.getName();
+    
+    pw.println("int " + name + "::marshal(uint8_t* buffer, size_t size) const");
+    pw.println("{");
+    
+    if(this.getFixedSize(aClass) >= 0)
+        pw.println("    if(size < (size_t)MARSHALLED_SIZE) return -1;");
+    else
+        pw.println("    if(size < (size_t)" + name + "::getMarshalledSize()) return -1;");
+    pw.println();
+    
+    if(!(aClass.getParentClass().equalsIgnoreCase("root")))
+        pw.println("    size_t pos = (size_t)" + aClass.getParentClass() + "::marshal(buffer, size); // Marshal information in superclass first");
+    else
+        pw.println("    size_t pos = 0;");
+    
+    for(int idx = 0; idx < aClass.getClassAttributes().size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)aClass.getClassAttributes().get(idx);
+        String ivar = IVAR_PREFIX + anAttribute.getName();
+        
+        if(anAttribute.shouldSerialize == false)
+        {
+            pw.println("    // attribute " + anAttribute.getName() + " marked as do not serialize");
+            continue;
+        }
+        
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+        {
+            String value = ivar;
+            if(anAttribute.getIsDynamicListLengthField())
+                value = IVAR_PREFIX + anAttribute.getDynamicListClassAttribute().getName() + ".size()";
+            
+            pw.println("    " + this.getBufferPut(anAttribute.getType(), value));
+        }
+        
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+        {
+            pw.println("    pos += " + ivar + ".marshal(buffer + pos, size - pos);");
+        }
+        
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST ||
+           anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+        {
+            String length = "" + anAttribute.getListLength();
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+                length = ivar + ".size()";
+            
+            pw.println();
+            pw.println("    for(size_t idx = 0; idx < " + length + "; idx++)");
+            pw.println("    {");
+            if(anAttribute.getUnderlyingTypeIsPrimitive())
+                pw.println("        " + this.getBufferPut(anAttribute.getType(), ivar + "[idx]"));
+            else
+                pw.println("        pos += " + ivar + "[idx].marshal(buffer + pos, size - pos);");
+            pw.println("    }");
+            pw.println();
+        }
+    }
+    
+    pw.println("    return (int)pos;");
+    pw.println("}");
+    pw.println();
+}
+
+/**
+ * Writes unmarshal(const uint8_t*, size_t), which reads the fields in place from the
+ * caller's buffer. A fixed size class checks the length once against MARSHALLED_SIZE.
+ * Otherwise each run of primitive fields is checked before it is read, and nested
+ * objects check their own part.
+ */
+public void writeBufferUnmarshalMethod(PrintWriter pw, GeneratedClass aClass)
+{
+    String name = aClass.getName();
+    List attributes = aClass.getClassAttributes();
+    boolean fixedSize = this.getFixedSize(aClass) >= 0;
+    boolean hasParent = !(aClass.getParentClass().equalsIgnoreCase("root"));
+    
+    boolean nestedObjects = hasParent;
+    for(int idx = 0; idx < attributes.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+        if(anAttribute.shouldSerialize && anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.PRIMITIVE &&
+           !anAttribute.getUnderlyingTypeIsPrimitive())
+            nestedObjects = true;
+    }
+    
+    pw.println("int " + name + "::unmarshal(const uint8_t* buffer, size_t size)");
+    pw.println("{");
+    
+    if(fixedSize)
+    {
+        pw.println("    if(size < (size_t)MARSHALLED_SIZE) return -1;");
+        pw.println();
+    }
+    
+    if(nestedObjects)
+        pw.println("    int result = 0;");
+    
+    if(hasParent)
+    {
+        pw.println("    result = " + aClass.getParentClass() + "::unmarshal(buffer, size); // unmarshal information in superclass first");
+        pw.println("    if(result < 0) return -1;");
+        pw.println("    size_t pos = (size_t)result;");
+    }
+    else
+    {
+        pw.println("    size_t pos = 0;");
+    }
+    
+    for(int idx = 0; idx < attributes.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+        String ivar = IVAR_PREFIX + anAttribute.getName();
+        
+        if(anAttribute.shouldSerialize == false)
+        {
+            pw.println("    // attribute " + anAttribute.getName() + " marked as do not serialize");
+            continue;
+        }
+        
+        // Check the space for this field and any primitive fields that directly follow it
+        if(!fixedSize && this.isBufferPrimitive(anAttribute) &&
+           (idx == 0 || !this.isBufferPrimitive((ClassAttribute)attributes.get(idx - 1))))
+        {
+            int runSize = 0;
+            for(int runIdx = idx; runIdx < attributes.size() && this.isBufferPrimitive((ClassAttribute)attributes.get(runIdx)); runIdx++)
+            {
+                runSize = runSize + this.getFixedSize((ClassAttribute)attributes.get(runIdx));
+            }
+            pw.println("    if(size - pos < " + runSize + ") return -1;");
+        }
+        
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+        {
+            pw.println("    " + this.getBufferGet(anAttribute.getType(), ivar));
+        }
+        
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+        {
+            pw.println("    result = " + ivar + ".unmarshal(buffer + pos, size - pos);");
+            pw.println("    if(result < 0) return -1;");
+            pw.println("    pos += result;");
+        }
+        
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+        {
+            pw.println();
+            pw.println("    for(size_t idx = 0; idx < " + anAttribute.getListLength() + "; idx++)");
+            pw.println("    {");
+            if(anAttribute.getUnderlyingTypeIsPrimitive())
+            {
+                pw.println("        " + this.getBufferGet(anAttribute.getType(), ivar + "[idx]"));
+            }
+            else
+            {
+                pw.println("        result = " + ivar + "[idx].unmarshal(buffer + pos, size - pos);");
+                pw.println("        if(result < 0) return -1;");
+                pw.println("        pos += result;");
+            }
+            pw.println("    }");
+            pw.println();
+        }
+        
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+        {
+            String count = IVAR_PREFIX + anAttribute.getCountFieldName();
+            
+            pw.println();
+            if(anAttribute.getUnderlyingTypeIsPrimitive())
+            {
+                pw.println("    if((size - pos) / " + getPrimitiveSize(anAttribute.getType()) + " < (size_t)" + count + ") return -1;");
+                pw.println("    " + ivar + ".resize(" + count + ");");
+                pw.println("    for(size_t idx = 0; idx < (size_t)" + count + "; idx++)");
+                pw.println("    {");
+                pw.println("        " + this.getBufferGet(anAttribute.getType(), ivar + "[idx]"));
+                pw.println("    }");
+            }
+            else
+            {
+                int minSize = this.getMinimumSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+                if(minSize > 0)
+                    pw.println("    if((size - pos) / " + minSize + " < (size_t)" + count + ") return -1;");
+                pw.println("    " + ivar + ".clear();");
+                pw.println("    " + ivar + ".reserve(" + count + ");");
+                pw.println("    for(size_t idx = 0; idx < (size_t)" + count + "; idx++)");
+                pw.println("    {");
+                pw.println("        " + ivar + ".push_back(" + anAttribute.getType() + "());");
+                pw.println("        result = " + ivar + ".back().unmarshal(buffer + pos, size - pos);");
+                pw.println("        if(result < 0) return -1;");
+                pw.println("        pos += result;");
+                pw.println("    }");
+            }
+            pw.println();
+        }
+    }
+    
+    pw.println("    return (int)pos;");
+    pw.println("}");
+    pw.println();
+}
+
+/**
+ * True if a class attribute gets a setter taking an rvalue reference, which is when
+ * its class has variable length lists somewhere that a move can take over.
+ */
+private boolean hasMoveSetter(ClassAttribute anAttribute)
+{
+    return anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF && this.getFixedSize(anAttribute) < 0;
+}
+
+/**
+ * True for the attributes the buffer unmarshal reads without a nested call: primitives
+ * and fixed length arrays of primitives.
+ */
+private boolean isBufferPrimitive(ClassAttribute anAttribute)
+{
+    if(anAttribute.shouldSerialize == false)
+        return false;
+    
+    return anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE ||
+          (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST && anAttribute.getUnderlyingTypeIsPrimitive());
+}
+
+/** The statement that writes a primitive of the given XML type at pos and moves past it */
+private String getBufferPut(String xmlType, String value)
+{
+    String wireType = wireTypes.getProperty(xmlType);
+    return "putBigEndian<" + wireType + ">(buffer + pos, (" + wireType + ")" + value + "); pos += " + getPrimitiveSize(xmlType) + ";";
+}
+
+/** The statement that reads a primitive of the given XML type at pos into the ivar and moves past it */
+private String getBufferGet(String xmlType, String ivar)
+{
+    return ivar + " = getBigEndian<" + wireTypes.getProperty(xmlType) + ">(buffer + pos); pos += " + getPrimitiveSize(xmlType) + ";";
+}
+
 /** 
  * Write a constructor. This uses an initialization list to initialize the various object
 * ivars in the class. God, C++ is a PITA. The result should be something like
@@ -1019,6 +1569,16 @@ public void writeSetterMethod(PrintWriter pw, GeneratedClass aClass, ClassAttrib
         pw.println("{");
         pw.println( "    " +  IVAR_PREFIX + anAttribute.getName() + " = pX;");
         pw.println("}\n");
+        
+        if(this.hasMoveSetter(anAttribute))
+        {
+            pw.println("#ifdef XMLPG_HAS_RVALUE_REFERENCES");
+            pw.println("void " + aClass.getName()  + "::" + "set" + this.initialCap(anAttribute.getName()) + "(" + anAttribute.getType() + "&& pX)");
+            pw.println("{");
+            pw.println( "    " +  IVAR_PREFIX + anAttribute.getName() + " = std::move(pX);");
+            pw.println("}");
+            pw.println("#endif\n");
+        }
     }
     
     if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
@@ -1056,9 +1616,49 @@ public void writeSetterMethod(PrintWriter pw, GeneratedClass aClass, ClassAttrib
         pw.println("{");
         pw.println( "     " +  IVAR_PREFIX + anAttribute.getName() + " = pX;");
         pw.println("}\n");
+        
+        // Takes over the caller's vector rather than copying it and every element in it
+        pw.println("#ifdef XMLPG_HAS_RVALUE_REFERENCES");
+        pw.println("void " + aClass.getName()  + "::" + "set" + this.initialCap(anAttribute.getName()) + "(std::vector<" + anAttribute.getType() + ">&& pX)");
+        pw.println("{");
+        pw.println( "     " +  IVAR_PREFIX + anAttribute.getName() + " = std::move(pX);");
+        pw.println("}");
+        pw.println("#endif\n");
     }
 }
 
+/**
+ * Writes constants for the marshalled size of the class and the byte offsets of its
+ * fields, worked out from the attribute list. MARSHALLED_SIZE is -1 if the size depends
+ * on the contents, and offsets are only written for fields whose position does not.
+ */
+public void writeLayoutConstants(PrintWriter pw, GeneratedClass aClass)
+{
+    List ivars = aClass.getClassAttributes();
+    
+    pw.println("    // Size in bytes of a marshalled " + aClass.getName() + ", or -1 if it depends on the contents");
+    pw.println("    static const int MARSHALLED_SIZE = " + this.getFixedSize(aClass) + ";");
+    pw.println();
+    
+    boolean first = true;
+    for(int idx = 0; idx < ivars.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+        int offset = this.getFixedOffset(aClass, anAttribute);
+        if(anAttribute.shouldSerialize == false || offset < 0)
+            continue;
+        
+        if(first)
+        {
+            pw.println("    // Byte offsets of the fields from the start of a marshalled " + aClass.getName());
+            first = false;
+        }
+        pw.println("    static const int OFFSET_" + this.getConstantName(anAttribute.getName()) + " = " + offset + ";");
+    }
+    if(!first)
+        pw.println();
+}
+
 public void writeGetMarshalledSizeMethod(PrintWriter pw, GeneratedClass aClass)
 {
     List ivars = aClass.getClassAttributes();
@@ -1067,6 +1667,16 @@ public void writeGetMarshalledSizeMethod(PrintWriter pw, GeneratedClass aClass)
     pw.println();
     pw.println("int " + aClass.getName()  + "::" + "getMarshalledSize() const");
     pw.println("{");
+    
+    // Fixed size classes know their size at generation time
+    if(this.getFixedSize(aClass) >= 0)
+    {
+        pw.println("   return MARSHALLED_SIZE;");
+        pw.println("}");
+        pw.println();
+        return;
+    }
+    
     pw.println("   int marshalSize = 0;");
     pw.println();
 
@@ -1114,13 +1724,17 @@ public void writeGetMarshalledSizeMethod(PrintWriter pw, GeneratedClass aClass)
             {
                 pw.println( anAttribute.getName() + ".size() " + " * " + primitiveSizes.get(anAttribute.getType()) + ";  // " + IVAR_PREFIX + anAttribute.getName());
             }
+            else if(this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType())) >= 0)
+            {
+                pw.println("   marshalSize = marshalSize + (int)" + IVAR_PREFIX + anAttribute.getName() + ".size() * " + anAttribute.getType() + "::MARSHALLED_SIZE;  // " + IVAR_PREFIX + anAttribute.getName());
+            }
             else
             {
                 pw.println();
                 pw.println("   for(int idx=0; idx < " + IVAR_PREFIX + anAttribute.getName() + ".size(); idx++)");
                 pw.println("   {");
                 //pw.println( anAttribute.getName() + ".size() " + " * " +  " new " + anAttribute.getType() + "().getMarshalledSize()"  + ";  // " + anAttribute.getName());
-                pw.println("        " + anAttribute.getType() + " listElement = " + IVAR_PREFIX + anAttribute.getName() + "[idx];");
+                pw.println("        const " + anAttribute.getType() + "& listElement = " + IVAR_PREFIX + anAttribute.getName() + "[idx];");
                 pw.println("        marshalSize = marshalSize + listElement.getMarshalledSize();");
                 pw.println("    }");
                 pw.println();
@@ -4,11 +4,14 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeSet;
 
 /**
  * Given the input object, something of an abstract syntax tree, this generates
@@ -45,6 +48,34 @@ public class CsharpGenerator extends Generator {
     /** sizes of various primitive types */
     Properties primitiveSizes = new Properties();
 
+    /** The BinaryPrimitives read and write method suffix for each primitive type. Floating
+     * point values go through the integer of the same size.
+     */
+    Properties binaryPrimitivesTypes = new Properties();
+
+    /** If true, each class also gets Marshal(Span&lt;byte&gt;) and Unmarshal(ReadOnlySpan&lt;byte&gt;)
+     * methods that use BinaryPrimitives rather than the DataOutputStream and DataInputStream
+     * helpers. Set with spanMarshal="true" on the csharp element or -Dxmlpg.spanMarshal=true.
+     */
+    boolean spanMarshal = false;
+
+    /** If true, each class also gets a Format(IBufferWriter&lt;char&gt;) method that writes the
+     * same dump as Reflection() by formatting values straight into the writer's buffer, and
+     * Reflection() becomes a wrapper around it. Set with formatters="true" on the csharp element
+     * or -Dxmlpg.formatters=true.
+     */
+    boolean formatters = false;
+
+    /** Fixed size classes of at most this many bytes are written as structs rather than
+     * classes, so they live inline in whatever holds them instead of on the heap. Zero, the
+     * default, leaves it to valueType="true" on individual class elements. Set with
+     * valueTypeMaxSize="n" on the csharp element or -Dxmlpg.valueTypeMaxSize=n.
+     */
+    int valueTypeMaxSize = 0;
+
+    /** Names of the classes written as structs, worked out before any class is written */
+    Set valueTypes = new HashSet();
+
     /** A property list that contains c#-specific code generation information, such
      * as namespace which correlates to package names, using which correlates to imports, etc.
      */
@@ -60,11 +91,10 @@ public class CsharpGenerator extends Generator {
     public CsharpGenerator(HashMap pClassDescriptions, Properties pCsharpProperties) {
         super(pClassDescriptions, pCsharpProperties);
 
-        Properties systemProperties = System.getProperties();
         String directory = null;
-        String clDirectory = systemProperties.getProperty("xmlpg.generatedSourceDir");
-        String clNamespace = systemProperties.getProperty("xmlpg.namespace");
-        String clUsing = systemProperties.getProperty("xmlpg.using");
+        String clDirectory = this.getCommandLineProperty("generatedSourceDir");
+        String clNamespace = this.getCommandLineProperty("namespace");
+        String clUsing = this.getCommandLineProperty("using");
 
         // Directory to place generated source code
         if(clDirectory != null)
@@ -158,6 +188,31 @@ public class CsharpGenerator extends Generator {
 
         primitiveSizes.setProperty("double", "8");
         primitiveSizes.setProperty("float", "4");
+
+        binaryPrimitivesTypes.setProperty("unsigned short", "UInt16");
+        binaryPrimitivesTypes.setProperty("unsigned int", "UInt32");
+        binaryPrimitivesTypes.setProperty("unsigned long", "UInt64");
+
+        binaryPrimitivesTypes.setProperty("short", "Int16");
+        binaryPrimitivesTypes.setProperty("int", "Int32");
+        binaryPrimitivesTypes.setProperty("long", "Int64");
+
+        binaryPrimitivesTypes.setProperty("double", "Int64");
+        binaryPrimitivesTypes.setProperty("float", "Int32");
+
+        this.spanMarshal = this.getBooleanOption("spanMarshal");
+        this.formatters = this.getBooleanOption("formatters");
+
+        String valueTypeMaxSizeOption = this.getOption("valueTypeMaxSize");
+        if (valueTypeMaxSizeOption != null) {
+            try {
+                this.valueTypeMaxSize = Integer.parseInt(valueTypeMaxSizeOption.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("valueTypeMaxSize is not an integer. Fix the XML file or the xmlpg.valueTypeMaxSize property.");
+                System.out.println(e);
+                System.exit(-1);
+            }
+        }
     }
 
     /**
@@ -166,8 +221,6 @@ public class CsharpGenerator extends Generator {
     public void writeClasses() {
         this.createDirectory();
 
-        Iterator it = classDescriptions.values().iterator();
-
         System.out.println("Creating C# source code.");
 
         // PES 02/10/2009 used to store all classes
@@ -186,64 +239,186 @@ public class CsharpGenerator extends Generator {
 
         //END storing all Classes
 
+        this.findValueTypes();
+
+        this.forEachClass(classDescriptions.values(), new ClassEmitter() {
+            public void emit(GeneratedClass aClass) {
+                writeClassFile(aClass);
+            }
+        });
+
+        if (formatters) {
+            this.writeFormatWriterFile();
+        }
+
+    } // End write classes
+
+    /**
+     * Works out which classes are written as structs. A class can be a struct if it is
+     * fixed size, is not part of an inheritance hierarchy, starts out with every field at
+     * its default value, and holds only primitives and other structs. Arrays are left out
+     * because a struct holding one would share it with every copy. Of the classes that can
+     * be, those marked valueType="true" are, and so are those no bigger than
+     * valueTypeMaxSize unless marked valueType="false".
+     */
+    private void findValueTypes() {
+        Set parents = new HashSet();
+        Iterator it = classDescriptions.values().iterator();
         while (it.hasNext()) {
-            try {
-                GeneratedClass aClass = (GeneratedClass) it.next();
-                String name = aClass.getName();
+            parents.add(((GeneratedClass) it.next()).getParentClass());
+        }
 
-                // Create namespace structure, if any
-                String namespace = languageProperties.getProperty("namespace");
-                String fullPath;
+        Map problems = new HashMap();
+        it = classDescriptions.values().iterator();
+        while (it.hasNext()) {
+            GeneratedClass aClass = (GeneratedClass) it.next();
+            int size = this.getFixedSize(aClass);
+            String problem = null;
 
-                // If we have a namespace specified, replace the dots in the namespace name
-                // with slashes and create that directory
-                if (namespace != null)
-                {
-                    namespace = namespace.replace(".", "/");
-                    fullPath = getDirectory() + "/" + name + ".cs";
-                    //System.out.println("full path is " + fullPath);
-                } 
-                else
-                {
-                    fullPath = getDirectory() + "/" + name + ".cs";
-                }
-                //System.out.println("Creating Csharp source code file for " + fullPath);
+            if ("false".equals(aClass.getValueType())) {
+                continue;
+            }
+            if (!"true".equals(aClass.getValueType()) && (size > valueTypeMaxSize || valueTypeMaxSize <= 0)) {
+                continue;
+            }
 
-                // Create the new, empty file, and create printwriter object for output to it
-                File outputFile = new File(fullPath);
-                outputFile.createNewFile();
-                //System.out.println("created output file");
+            if (!aClass.getParentClass().equalsIgnoreCase("root") || parents.contains(aClass.getName()) || aClass.getName().equals("Pdu")) {
+                problem = "it is part of an inheritance hierarchy";
+            } else if (size <= 0) {
+                problem = "it is not fixed size";
+            } else if (!aClass.getInitialValues().isEmpty()) {
+                problem = "it has initial values";
+            }
 
-                PrintWriter pw = new PrintWriter(outputFile);
-                PrintStringBuffer psw = new PrintStringBuffer(); //PES 05/01/2009
-                
-                //System.out.println("psw is " + PrintStringBuffer.class.getName());
-                //System.out.println("created pw, psw " + pw + ", " + psw.toString());
+            List ivars = aClass.getClassAttributes();
+            for (int idx = 0; idx < ivars.size() && problem == null; idx++) {
+                ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+
+                if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
+                    String defaultValue = anAttribute.getDefaultValue();
+                    if (defaultValue != null && !typeDefaultValue.getProperty(anAttribute.getType()).equals(defaultValue)) {
+                        problem = anAttribute.getName() + " has a default value";
+                    }
+                } else if (anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.CLASSREF) {
+                    problem = anAttribute.getName() + " is a list";
+                }
+            }
 
-                //PES 05/01/2009 modified to print data to a stringbuilder prior to output to a file
-                //will use this to post process any changes
-                this.writeClass(psw, aClass);
-                //System.out.println("wrote class");
+            if (problem == null) {
+                valueTypes.add(aClass.getName());
+            } else {
+                problems.put(aClass.getName(), problem);
+            }
+        }
 
-                //See if any post processing is needed
-                this.postProcessData(psw, aClass);
-                //System.out.println("post processed");
+        // A struct can only hold other structs, and dropping one class can rule out
+        // another that holds it, so keep going until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            it = classDescriptions.values().iterator();
+            while (it.hasNext()) {
+                GeneratedClass aClass = (GeneratedClass) it.next();
+                if (!valueTypes.contains(aClass.getName())) {
+                    continue;
+                }
 
-                // print the source code of the class to the file
-                pw.print(psw.toString());
-                pw.flush();
-                pw.close();
+                List ivars = aClass.getClassAttributes();
+                for (int idx = 0; idx < ivars.size(); idx++) {
+                    ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+                    if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF
+                            && !valueTypes.contains(anAttribute.getType())) {
+                        valueTypes.remove(aClass.getName());
+                        problems.put(aClass.getName(), anAttribute.getName() + " is a " + anAttribute.getType() + ", which is not a struct");
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
 
+        it = classDescriptions.values().iterator();
+        while (it.hasNext()) {
+            GeneratedClass aClass = (GeneratedClass) it.next();
+            if ("true".equals(aClass.getValueType()) && problems.containsKey(aClass.getName())) {
+                System.out.println("Writing " + aClass.getName() + " as a class rather than a struct because " + problems.get(aClass.getName()));
             }
-            catch (Exception e)
+        }
+    }
+
+    /**
+     * Returns true if the class is written as a struct rather than a class.
+     */
+    private boolean isValueType(GeneratedClass aClass) {
+        return valueTypes.contains(aClass.getName());
+    }
+
+    /**
+     * Returns the modifier for the methods every generated type has: virtual on a root
+     * class, override on a subclass, and nothing on a struct, which can have neither.
+     */
+    private String getMethodModifier(GeneratedClass aClass) {
+        if (this.isValueType(aClass)) {
+            return "";
+        }
+        return aClass.getParentClass().equalsIgnoreCase("root") ? "virtual " : "override ";
+    }
+
+    /**
+     * Works out the path of the .cs file for one class, renders the class and
+     * writes it out. Called once per class, possibly from several threads at once.
+     */
+    private void writeClassFile(GeneratedClass aClass) {
+        try {
+            String name = aClass.getName();
+
+            // Create namespace structure, if any
+            String namespace = languageProperties.getProperty("namespace");
+            String fullPath;
+
+            // If we have a namespace specified, replace the dots in the namespace name
+            // with slashes and create that directory
+            if (namespace != null)
             {
-                e.printStackTrace();
-                System.out.println("error creating source code " + e);
+                namespace = namespace.replace(".", "/");
+                fullPath = getDirectory() + "/" + name + ".cs";
+                //System.out.println("full path is " + fullPath);
+            } 
+            else
+            {
+                fullPath = getDirectory() + "/" + name + ".cs";
             }
+            //System.out.println("Creating Csharp source code file for " + fullPath);
 
-        } // End while
+            // Create the new, empty file, and create printwriter object for output to it
+            File outputFile = new File(fullPath);
+            PrintWriter pw = this.openOutputFile(outputFile);
+            PrintStringBuffer psw = new PrintStringBuffer(); //PES 05/01/2009
+                
+            //System.out.println("psw is " + PrintStringBuffer.class.getName());
+            //System.out.println("created pw, psw " + pw + ", " + psw.toString());
 
-    } // End write classes
+            //PES 05/01/2009 modified to print data to a stringbuilder prior to output to a file
+            //will use this to post process any changes
+            this.writeClass(psw, aClass);
+            //System.out.println("wrote class");
+
+            //See if any post processing is needed
+            this.postProcessData(psw, aClass);
+            //System.out.println("post processed");
+
+            // print the source code of the class to the file
+            pw.print(psw.toString());
+            pw.flush();
+            pw.close();
+
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            System.out.println("error creating source code " + e);
+        }
+    }
 
     /**
      * Generate a source code file with getters, setters, ivars, and marshal/unmarshal
@@ -259,6 +434,7 @@ public class CsharpGenerator extends Generator {
         this.writeNamespace(pw);
         this.writeClassComments(pw, aClass, 1);
         this.writeClassDeclaration(pw, aClass, 1);
+        this.writeLayoutConstants(pw, aClass, 2);
         this.writeIvars(pw, aClass, 2);
         this.writeConstructor(pw, aClass, 2);
         this.writeOperators(pw, aClass, 2);
@@ -267,6 +443,13 @@ public class CsharpGenerator extends Generator {
         this.writeExceptionHandler(pw, aClass, 2);
         this.writeMarshalMethod(pw, aClass, 2);
         this.writeUnmarshallMethod(pw, aClass, 2);
+        if (spanMarshal) {
+            this.writeSpanMarshalMethod(pw, aClass, 2);
+            this.writeSpanUnmarshalMethod(pw, aClass, 2);
+        }
+        if (formatters) {
+            this.writeFormatMethod(pw, aClass, 2);
+        }
         if(useDotNet)
         {
             this.writeReflectionMethod(pw, aClass, 2);
@@ -291,7 +474,8 @@ public class CsharpGenerator extends Generator {
             pw.println(indent, "/// Called when exception occurs (raises the <see cref=\"Exception\"/> event).");
             pw.println(indent, "/// </summary>");
             pw.println(indent, "/// <param name=\"e\">The exception.</param>");
-            pw.println(indent, "protected void OnException(Exception e)");
+            // A struct cannot have protected members
+            pw.println(indent, (this.isValueType(aClass) ? "private" : "protected") + " void OnException(Exception e)");
             pw.println(indent, "{");
             pw.println(indent + 1, "if (this.Exception != null)");
             pw.println(indent + 1, "{");
@@ -318,6 +502,14 @@ public class CsharpGenerator extends Generator {
             pw.println("using " + aPackage + ";");
         }
 
+        if (formatters && !using.matches("(.*[ ,])?System\\.Buffers([ ,].*)?")) {
+            pw.println("using System.Buffers;");
+        }
+
+        if (spanMarshal && !using.contains("System.Buffers.Binary")) {
+            pw.println("using System.Buffers.Binary;");
+        }
+
         pw.println();
     }
 
@@ -396,7 +588,11 @@ public class CsharpGenerator extends Generator {
 
         // PES 12-02-2009 added based upon user "Rogier" request
         // ZB modified
-        if (parentClass.equalsIgnoreCase("root"))
+        if (this.isValueType(aClass))
+        {
+            pw.println(indent, "public partial struct " + aClass.getName() + " : IEquatable<" + aClass.getName() + ">");
+        }
+        else if (parentClass.equalsIgnoreCase("root"))
         {
             if (aClass.getName().equals("Pdu"))
             {
@@ -464,7 +660,16 @@ public class CsharpGenerator extends Generator {
                     pw.println(indent, "/// </summary>");
                 }
 
-                pw.println(indent, "private " + attributeType + " _" + anAttribute.getName() + " = new " + attributeType + "();");
+                // A struct cannot initialise its fields, but the ones it holds are all structs
+                // themselves and need no initialising
+                if (this.isValueType(aClass))
+                {
+                    pw.println(indent, "private " + attributeType + " _" + anAttribute.getName() + ";");
+                }
+                else
+                {
+                    pw.println(indent, "private " + attributeType + " _" + anAttribute.getName() + " = new " + attributeType + "();");
+                }
             }
 
             // The attribute is a fixed list, ie an array of some type--maybe primitve, maybe a class.
@@ -520,6 +725,12 @@ public class CsharpGenerator extends Generator {
     private void writeConstructor(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
         List ivars = aClass.getClassAttributes();
 
+        // A struct cannot declare a parameterless constructor; the one it gets for free
+        // zeroes every field, which is all a struct's constructor would do anyway
+        if (this.isValueType(aClass)) {
+            return;
+        }
+
          // PES 01/22/2009  Added for intellisense support
         if (aClass.getClassComments() != null)
         {
@@ -588,21 +799,62 @@ public class CsharpGenerator extends Generator {
         pw.println(indent, "}");
     }
 
-    public void writeGetMarshalledSizeMethod(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
+    /**
+     * Writes constants for the marshalled size of the class and the byte offsets of its
+     * fields, worked out from the attribute list. MarshalledSize is -1 if the size depends
+     * on the contents, and offsets are only written for fields whose position does not.
+     */
+    public void writeLayoutConstants(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
         List ivars = aClass.getClassAttributes();
 
-        String newKeyword = ""; //PES 032209 added to remove warning from C# compiler
-        //PES 032209 added to remove warning from C# compiler
+        String newKeyword = "";
         if (!aClass.getParentClass().equalsIgnoreCase("root")) {
-            newKeyword = "override ";
-        } else {
-            newKeyword = "virtual ";
+            newKeyword = "new ";
         }
 
+        pw.println(indent, "/// <summary>");
+        pw.println(indent, "/// Size in bytes of a marshalled " + aClass.getName() + ", or -1 if it depends on the contents");
+        pw.println(indent, "/// </summary>");
+        pw.println(indent, "public " + newKeyword + "const int MarshalledSize = " + this.getFixedSize(aClass) + ";");
+        pw.println();
+
+        boolean first = true;
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            int offset = this.getFixedOffset(aClass, anAttribute);
+            if (anAttribute.shouldSerialize == false || offset < 0) {
+                continue;
+            }
+
+            if (first) {
+                pw.println(indent, "// Byte offsets of the fields from the start of a marshalled " + aClass.getName());
+                first = false;
+            }
+            pw.println(indent, "public const int OffsetOf" + this.initialCap(anAttribute.getName()) + " = " + offset + ";");
+        }
+        if (!first) {
+            pw.println();
+        }
+    }
+
+    public void writeGetMarshalledSizeMethod(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
+        List ivars = aClass.getClassAttributes();
+
+        String newKeyword = this.getMethodModifier(aClass); //PES 032209 added to remove warning from C# compiler
+
         // Create a getMarshalledSize() method
         pw.println();
         pw.println(indent, "public " + newKeyword + "int GetMarshalledSize()");
         pw.println(indent, "{");
+
+        // Fixed size classes know their size at generation time
+        if (this.getFixedSize(aClass) >= 0) {
+            pw.println(indent + 1, "return MarshalledSize;");
+            pw.println(indent, "}");
+            pw.println();
+            return;
+        }
+
         pw.println(indent + 1, "int marshalSize = 0; ");
         pw.println();
 
@@ -650,6 +902,8 @@ public class CsharpGenerator extends Generator {
                     //PES 04/29/2009  Added to speed up unboxing of data, using byte[] vice unboxing of a Class ie. OneByteChunk
                     if (anAttribute.getType().equalsIgnoreCase("OneByteChunk")) {
                         pw.println(indent + 1, "marshalSize += this._" + anAttribute.getName() + ".Length;");
+                    } else if (this.getFixedSize((GeneratedClass) classDescriptions.get(anAttribute.getType())) >= 0) {
+                        pw.println(indent + 1, "marshalSize += this._" + anAttribute.getName() + ".Count * " + anAttribute.getType() + ".MarshalledSize;  // this._" + anAttribute.getName());
                     } else {
                         pw.println(indent + 1, "for (int idx = 0; idx < this._" + anAttribute.getName() + ".Count; idx++)");
                         pw.println(indent + 1, "{");
@@ -667,7 +921,10 @@ public class CsharpGenerator extends Generator {
     }
 
     private void writeOperators(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
-        pw.println();
+        // A struct has no constructor before the operators to separate them from the ivars
+        if (!this.isValueType(aClass)) {
+            pw.println();
+        }
         pw.println(indent, "/// <summary>");
         pw.println(indent, "/// Implements the operator !=.");
         pw.println(indent, "/// </summary>");
@@ -691,6 +948,12 @@ public class CsharpGenerator extends Generator {
         pw.println(indent, "/// </returns>");
         pw.println(indent, "public static bool operator ==(" + aClass.getName() + " left, " + aClass.getName() + " right)");
         pw.println(indent, "{");
+        if (this.isValueType(aClass)) {
+            pw.println(indent + 1, "return left.Equals(right);");
+            pw.println(indent, "}");
+            return;
+        }
+
         pw.println(indent + 1, "if (object.ReferenceEquals(left, right))");
         pw.println(indent + 1, "{");
         pw.println(indent + 2, "return true;");
@@ -752,7 +1015,7 @@ public class CsharpGenerator extends Generator {
                             pw.println( "// " + bitfield.comment );
                         }
                         
-                        pw.println("public virtual int get" + capped + "()");
+                        pw.println("public " + (this.isValueType(aClass) ? "" : "virtual ") + "int get" + capped + "()");
                         pw.println("{");
                         
                         
@@ -1142,11 +1405,7 @@ public class CsharpGenerator extends Generator {
 
         }
 
-        if (!baseclassName.equalsIgnoreCase("root")) {
-            newKeyword = "override ";
-        } else {
-            newKeyword = "virtual ";
-        }
+        newKeyword = this.getMethodModifier(aClass);
 
         pw.println(indent, "/// <summary>");
         pw.println(indent, "/// Marshal the data to the DataOutputStream.  Note: Length needs to be set before calling this method");
@@ -1317,14 +1576,7 @@ public class CsharpGenerator extends Generator {
         List ivars = aClass.getClassAttributes();
         String baseclassName;
 
-        String newKeyword = ""; //PES 032209 added to remove warning from C# compiler
-
-        //PES 032209 added to remove warning from C# compiler
-        if (!aClass.getParentClass().equalsIgnoreCase("root")) {
-            newKeyword = "override ";
-        } else {
-            newKeyword = "virtual ";
-        }
+        String newKeyword = this.getMethodModifier(aClass); //PES 032209 added to remove warning from C# compiler
 
         pw.println();
         if(useDotNet)
@@ -1451,6 +1703,256 @@ public class CsharpGenerator extends Generator {
 
     }
 
+    /**
+     * Writes Marshal(Span&lt;byte&gt;), which writes the fields big endian straight into the
+     * span with BinaryPrimitives. Nothing is allocated; a span that is too short throws.
+     */
+    private void writeSpanMarshalMethod(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
+        List ivars = aClass.getClassAttributes();
+        String baseclassName = aClass.getParentClass();
+        String newKeyword = this.getMethodModifier(aClass);
+
+        pw.println();
+        pw.println(indent, "/// <summary>");
+        pw.println(indent, "/// Marshal the data into the span in network byte order, without a DataOutputStream.  Note: Length needs to be set before calling this method");
+        pw.println(indent, "/// </summary>");
+        pw.println(indent, "/// <param name=\"buffer\">The span the PDU is marshaled into. It must hold at least GetMarshalledSize() bytes.</param>");
+        pw.println(indent, "/// <returns>The number of bytes written.</returns>");
+        pw.println(indent, "public " + newKeyword + "int Marshal(Span<byte> buffer)");
+        pw.println(indent, "{");
+
+        if (!baseclassName.equalsIgnoreCase("root")) {
+            pw.println(indent + 1, "int pos = base.Marshal(buffer);");
+        } else {
+            pw.println(indent + 1, "int pos = 0;");
+        }
+
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            String ivar = "this._" + anAttribute.getName();
+
+            if (anAttribute.shouldSerialize == false) {
+                pw.println(indent + 1, "// attribute " + anAttribute.getName() + " marked as not serialized");
+                continue;
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
+                if (anAttribute.getIsDynamicListLengthField() == false) {
+                    pw.println(indent + 1, this.getSpanWrite(anAttribute.getType(), ivar));
+                } else {
+                    ClassAttribute listAttribute = anAttribute.getDynamicListClassAttribute();
+                    String length = listAttribute.getType().equalsIgnoreCase("OneByteChunk") ? ".Length" : ".Count";
+                    pw.println(indent + 1, this.getSpanWrite(anAttribute.getType(), "this._" + listAttribute.getName() + length));
+                }
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+                pw.println(indent + 1, "pos += " + ivar + ".Marshal(buffer.Slice(pos));");
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST ||
+                anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) {
+                if (anAttribute.getType().equalsIgnoreCase("OneByteChunk")) {
+                    pw.println(indent + 1, ivar + ".AsSpan().CopyTo(buffer.Slice(pos));");
+                    pw.println(indent + 1, "pos += " + ivar + ".Length;");
+                    continue;
+                }
+
+                String length = anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST ? ".Length" : ".Count";
+
+                pw.println();
+                pw.println(indent + 1, "for (int idx = 0; idx < " + ivar + length + "; idx++)");
+                pw.println(indent + 1, "{");
+                if (anAttribute.getUnderlyingTypeIsPrimitive()) {
+                    pw.println(indent + 2, this.getSpanWrite(anAttribute.getType(), ivar + "[idx]"));
+                } else {
+                    pw.println(indent + 2, "pos += " + ivar + "[idx].Marshal(buffer.Slice(pos));");
+                }
+                pw.println(indent + 1, "}");
+                pw.println();
+            }
+        }
+
+        pw.println(indent + 1, "return pos;");
+        pw.println(indent, "}");
+    }
+
+    /**
+     * Writes Unmarshal(ReadOnlySpan&lt;byte&gt;), which reads the fields big endian straight
+     * from the span. Objects already in a variable list are unmarshalled into again, and
+     * a byte array is only replaced when its length changes, so a PDU that is reused for
+     * each message allocates nothing once its lists have grown.
+     */
+    private void writeSpanUnmarshalMethod(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
+        List ivars = aClass.getClassAttributes();
+        String baseclassName = aClass.getParentClass();
+        String newKeyword = this.getMethodModifier(aClass);
+
+        pw.println();
+        pw.println(indent, "/// <summary>");
+        pw.println(indent, "/// Unmarshal the data from the span, without a DataInputStream.");
+        pw.println(indent, "/// </summary>");
+        pw.println(indent, "/// <param name=\"buffer\">The span holding the marshaled PDU.</param>");
+        pw.println(indent, "/// <returns>The number of bytes read.</returns>");
+        pw.println(indent, "public " + newKeyword + "int Unmarshal(ReadOnlySpan<byte> buffer)");
+        pw.println(indent, "{");
+
+        if (!baseclassName.equalsIgnoreCase("root")) {
+            pw.println(indent + 1, "int pos = base.Unmarshal(buffer);");
+        } else {
+            pw.println(indent + 1, "int pos = 0;");
+        }
+
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            String ivar = "this._" + anAttribute.getName();
+
+            if (anAttribute.shouldSerialize == false) {
+                pw.println(indent + 1, "// attribute " + anAttribute.getName() + " marked as not serialized");
+                continue;
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
+                pw.println(indent + 1, ivar + " = " + this.getSpanRead(anAttribute.getType()) + ";");
+                pw.println(indent + 1, "pos += " + primitiveSizes.getProperty(anAttribute.getType()) + ";");
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+                pw.println(indent + 1, "pos += " + ivar + ".Unmarshal(buffer.Slice(pos));");
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST) {
+                pw.println();
+                pw.println(indent + 1, "for (int idx = 0; idx < " + ivar + ".Length; idx++)");
+                pw.println(indent + 1, "{");
+                if (anAttribute.getUnderlyingTypeIsPrimitive()) {
+                    pw.println(indent + 2, ivar + "[idx] = " + this.getSpanRead(anAttribute.getType()) + ";");
+                    pw.println(indent + 2, "pos += " + primitiveSizes.getProperty(anAttribute.getType()) + ";");
+                } else {
+                    pw.println(indent + 2, "pos += " + ivar + "[idx].Unmarshal(buffer.Slice(pos));");
+                }
+                pw.println(indent + 1, "}");
+                pw.println();
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) {
+                String count = anAttribute.getName() + "Count";
+
+                pw.println();
+                pw.println(indent + 1, "int " + count + " = (int)this._" + anAttribute.getCountFieldName() + ";");
+
+                if (anAttribute.getType().equalsIgnoreCase("OneByteChunk")) {
+                    pw.println(indent + 1, "if (" + ivar + " == null || " + ivar + ".Length != " + count + ")");
+                    pw.println(indent + 1, "{");
+                    pw.println(indent + 2, ivar + " = new byte[" + count + "];");
+                    pw.println(indent + 1, "}");
+                    pw.println();
+                    pw.println(indent + 1, "buffer.Slice(pos, " + count + ").CopyTo(" + ivar + ");");
+                    pw.println(indent + 1, "pos += " + count + ";");
+                    pw.println();
+                    continue;
+                }
+
+                pw.println(indent + 1, "if (" + ivar + ".Count > " + count + ")");
+                pw.println(indent + 1, "{");
+                pw.println(indent + 2, ivar + ".RemoveRange(" + count + ", " + ivar + ".Count - " + count + ");");
+                pw.println(indent + 1, "}");
+                pw.println();
+                pw.println(indent + 1, "for (int idx = 0; idx < " + count + "; idx++)");
+                pw.println(indent + 1, "{");
+                if (anAttribute.getUnderlyingTypeIsPrimitive()) {
+                    pw.println(indent + 2, types.getProperty(anAttribute.getType()) + " anX = " + this.getSpanRead(anAttribute.getType()) + ";");
+                    pw.println(indent + 2, "pos += " + primitiveSizes.getProperty(anAttribute.getType()) + ";");
+                    pw.println(indent + 2, "if (idx == " + ivar + ".Count)");
+                    pw.println(indent + 2, "{");
+                    pw.println(indent + 3, ivar + ".Add(anX);");
+                    pw.println(indent + 2, "}");
+                    pw.println(indent + 2, "else");
+                    pw.println(indent + 2, "{");
+                    pw.println(indent + 3, ivar + "[idx] = anX;");
+                    pw.println(indent + 2, "}");
+                } else {
+                    pw.println(indent + 2, "if (idx == " + ivar + ".Count)");
+                    pw.println(indent + 2, "{");
+                    pw.println(indent + 3, ivar + ".Add(new " + anAttribute.getType() + "());");
+                    pw.println(indent + 2, "}");
+                    pw.println();
+                    // A struct element has to come out of the list to be changed
+                    if (valueTypes.contains(anAttribute.getType())) {
+                        pw.println(indent + 2, anAttribute.getType() + " anX = " + ivar + "[idx];");
+                        pw.println(indent + 2, "pos += anX.Unmarshal(buffer.Slice(pos));");
+                        pw.println(indent + 2, ivar + "[idx] = anX;");
+                    } else {
+                        pw.println(indent + 2, "pos += " + ivar + "[idx].Unmarshal(buffer.Slice(pos));");
+                    }
+                }
+                pw.println(indent + 1, "}");
+                pw.println();
+            }
+        }
+
+        pw.println(indent + 1, "return pos;");
+        pw.println(indent, "}");
+    }
+
+    /**
+     * Returns the statement that writes a primitive value at pos in the span and moves
+     * pos past it.
+     */
+    private String getSpanWrite(String xmlType, String value) {
+        String size = primitiveSizes.getProperty(xmlType);
+        String method = binaryPrimitivesTypes.getProperty(xmlType);
+
+        if (method == null) {
+            return "buffer[pos] = (byte)" + value + "; pos += " + size + ";";
+        }
+
+        String bits = "(" + this.getBinaryPrimitivesCsharpType(method) + ")" + value;
+        if (xmlType.equalsIgnoreCase("float")) {
+            bits = "BitConverter.SingleToInt32Bits((float)" + value + ")";
+        } else if (xmlType.equalsIgnoreCase("double")) {
+            bits = "BitConverter.DoubleToInt64Bits((double)" + value + ")";
+        }
+
+        return "BinaryPrimitives.Write" + method + "BigEndian(buffer.Slice(pos), " + bits + "); pos += " + size + ";";
+    }
+
+    /**
+     * Returns an expression that reads a primitive value at pos in the span.
+     */
+    private String getSpanRead(String xmlType) {
+        String method = binaryPrimitivesTypes.getProperty(xmlType);
+
+        if (method == null) {
+            return "buffer[pos]";
+        }
+
+        String read = "BinaryPrimitives.Read" + method + "BigEndian(buffer.Slice(pos))";
+        if (xmlType.equalsIgnoreCase("float")) {
+            return "BitConverter.Int32BitsToSingle(" + read + ")";
+        } else if (xmlType.equalsIgnoreCase("double")) {
+            return "BitConverter.Int64BitsToDouble(" + read + ")";
+        }
+
+        return read;
+    }
+
+    /**
+     * Returns the C# keyword for a BinaryPrimitives type name, eg ushort for UInt16.
+     */
+    private String getBinaryPrimitivesCsharpType(String method) {
+        if (method.startsWith("U")) {
+            return "u" + this.getBinaryPrimitivesCsharpType(method.substring(1)).toLowerCase();
+        }
+        if (method.equals("Int16")) {
+            return "short";
+        }
+        if (method.equals("Int32")) {
+            return "int";
+        }
+        return "long";
+    }
+
     //Generate listing of all parameters using psuedo reflection.  This method needs to be further refined as it is only useful for
     //printing out all the data, the format used is not nice.  This method however will display faster than using the XML reflection method provided.
     //Only used for debugging purposes until a better method could be developed.
@@ -1458,16 +1960,13 @@ public class CsharpGenerator extends Generator {
         List ivars = aClass.getClassAttributes();
         String tab = "\\t ";
 
-        String newKeyword = ""; //PES 032209 added to remove warning from C# compiler
+        String newKeyword = this.getMethodModifier(aClass); //PES 032209 added to remove warning from C# compiler
 
-        //PES 032209 added to remove warning from C# compiler
-        if (!aClass.getParentClass().equalsIgnoreCase("root")) {
-            newKeyword = "override ";
-        } else {
-            newKeyword = "virtual ";
+        if (formatters) {
+            this.writeReflectionWrapper(pw, aClass, indent);
+            return;
         }
 
-
         pw.println();
         pw.println(indent, "/// <summary>");
         pw.println(indent, "/// This allows for a quick display of PDU data.  The current format is unacceptable and only used for debugging.");
@@ -1631,6 +2130,255 @@ public class CsharpGenerator extends Generator {
         pw.println(indent, "}"); // end of reflection method
     }
 
+    /**
+     * With formatters on, Reflection() is written once, in the root class, and hands its
+     * StringBuilder to the virtual Format() through an adapter.
+     */
+    private void writeReflectionWrapper(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
+        if (!aClass.getParentClass().equalsIgnoreCase("root")) {
+            return;
+        }
+
+        pw.println();
+        pw.println(indent, "/// <summary>");
+        pw.println(indent, "/// Appends the same dump as Format(IBufferWriter&lt;char&gt;) to the StringBuilder.");
+        pw.println(indent, "/// </summary>");
+        pw.println(indent, "/// <param name=\"sb\">The StringBuilder instance to which the PDU is written to.</param>");
+        pw.println(indent, "[SuppressMessage(\"Microsoft.Design\", \"CA1031:DoNotCatchGeneralExceptionTypes\", Justification = \"Due to ignoring errors.\")]");
+        pw.println(indent, "public " + this.getMethodModifier(aClass) + "void Reflection(StringBuilder sb)");
+        pw.println(indent, "{");
+        pw.println(indent + 1, "try");
+        pw.println(indent + 1, "{");
+        pw.println(indent + 2, "this.Format(new StringBuilderBufferWriter(sb));");
+        pw.println(indent + 1, "}");
+        pw.println(indent + 1, "catch (Exception e)");
+        pw.println(indent + 1, "{");
+        pw.println(0, "#if DEBUG");
+        pw.println(indent + 2, "Trace.WriteLine(e);");
+        pw.println(indent + 2, "Trace.Flush();");
+        pw.println(0, "#endif");
+        pw.println(indent + 2, "this.OnException(e);");
+        pw.println(indent + 1, "}");
+        pw.println(indent, "}");
+    }
+
+    /**
+     * Writes Format(IBufferWriter&lt;char&gt;), which dumps the object in the same tagged form
+     * the old Reflection() did. Every piece goes through the FormatWriter helpers, which
+     * copy literals and TryFormat numbers straight into the writer's buffer, so nothing
+     * is concatenated or boxed, and no reflection is needed to reach a subclass's fields.
+     */
+    private void writeFormatMethod(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
+        List ivars = aClass.getClassAttributes();
+
+        pw.println();
+        pw.println(indent, "/// <summary>");
+        pw.println(indent, "/// Writes the fields of this " + aClass.getName() + " to the writer for debugging, without reflection or string concatenation.");
+        pw.println(indent, "/// </summary>");
+        pw.println(indent, "/// <param name=\"writer\">The writer the PDU is written to.</param>");
+        pw.println(indent, "public " + this.getMethodModifier(aClass) + "void Format(IBufferWriter<char> writer)");
+        pw.println(indent, "{");
+        pw.println(indent + 1, this.getFormatLiteral("<" + aClass.getName() + ">", true));
+
+        if (!aClass.getParentClass().equalsIgnoreCase("root")) {
+            pw.println(indent + 1, "base.Format(writer);");
+        }
+
+        for (int idx = 0; idx < ivars.size(); idx++) {
+            ClassAttribute anAttribute = (ClassAttribute) ivars.get(idx);
+            String name = anAttribute.getName();
+            String ivar = "this._" + name;
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE) {
+                String value = ivar;
+
+                // A list length field is written from the list, as that is what is marshalled
+                if (anAttribute.getIsDynamicListLengthField()) {
+                    ClassAttribute listAttribute = anAttribute.getDynamicListClassAttribute();
+                    name = listAttribute.getName();
+                    value = "this._" + name + (listAttribute.getType().equalsIgnoreCase("OneByteChunk") ? ".Length" : ".Count");
+                }
+
+                pw.println(indent + 1, this.getFormatLiteral("<" + name + " type=\"" + marshalTypes.getProperty(anAttribute.getType()) + "\">", false));
+                pw.println(indent + 1, "FormatWriter.Write(writer, " + value + ");");
+                pw.println(indent + 1, this.getFormatLiteral("</" + name + ">", true));
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
+                pw.println(indent + 1, this.getFormatLiteral("<" + name + ">", true));
+                pw.println(indent + 1, ivar + ".Format(writer);");
+                pw.println(indent + 1, this.getFormatLiteral("</" + name + ">", true));
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST
+                    && anAttribute.getType().equalsIgnoreCase("OneByteChunk")) {
+                pw.println(indent + 1, this.getFormatLiteral("<" + name + " type=\"byte[]\">", false));
+                pw.println(indent + 1, "FormatWriter.WriteHex(writer, " + ivar + ");");
+                pw.println(indent + 1, this.getFormatLiteral("</" + name + ">", true));
+                continue;
+            }
+
+            if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST
+                    || anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) {
+                String count = anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST ? ".Length" : ".Count";
+                String type = anAttribute.getUnderlyingTypeIsPrimitive() ? marshalTypes.getProperty(anAttribute.getType()) : anAttribute.getType();
+
+                pw.println();
+                pw.println(indent + 1, "for (int idx = 0; idx < " + ivar + count + "; idx++)");
+                pw.println(indent + 1, "{");
+                pw.println(indent + 2, this.getFormatLiteral("<" + name, false));
+                pw.println(indent + 2, "FormatWriter.Write(writer, idx);");
+                if (anAttribute.getUnderlyingTypeIsPrimitive()) {
+                    pw.println(indent + 2, this.getFormatLiteral(" type=\"" + type + "\">", false));
+                    pw.println(indent + 2, "FormatWriter.Write(writer, " + ivar + "[idx]);");
+                } else {
+                    pw.println(indent + 2, this.getFormatLiteral(" type=\"" + type + "\">", true));
+                    pw.println(indent + 2, ivar + "[idx].Format(writer);");
+                }
+                pw.println(indent + 2, this.getFormatLiteral("</" + name, false));
+                pw.println(indent + 2, "FormatWriter.Write(writer, idx);");
+                pw.println(indent + 2, this.getFormatLiteral(">", true));
+                pw.println(indent + 1, "}");
+                pw.println();
+            }
+        }
+
+        pw.println(indent + 1, this.getFormatLiteral("</" + aClass.getName() + ">", true));
+        pw.println(indent, "}");
+    }
+
+    /**
+     * Returns the statement that writes a piece of literal text in a Format method,
+     * optionally followed by a newline.
+     */
+    private String getFormatLiteral(String text, boolean newline) {
+        String literal = "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        return "FormatWriter." + (newline ? "WriteLine" : "Write") + "(writer, " + literal + ");";
+    }
+
+    /**
+     * Writes FormatWriter.cs, the helpers the Format methods call, and the adapter that
+     * lets Reflection(StringBuilder) use them.
+     */
+    private void writeFormatWriterFile() {
+        try {
+            String namespace = languageProperties.getProperty("namespace");
+            if (namespace == null) {
+                namespace = "DISnet";
+            }
+
+            PrintStringBuffer pw = new PrintStringBuffer();
+            this.writeLicenseNotice(pw);
+            this.writeCopyrightNotice(pw);
+            pw.println("using System;");
+            pw.println("using System.Buffers;");
+            pw.println("using System.Globalization;");
+            pw.println("using System.Text;");
+            pw.println();
+            pw.println("namespace " + namespace);
+            pw.println("{");
+            pw.println(1, "/// <summary>");
+            pw.println(1, "/// Writes text and numbers straight into an IBufferWriter, for the generated Format methods.");
+            pw.println(1, "/// Numbers are formatted with the invariant culture.");
+            pw.println(1, "/// </summary>");
+            pw.println(1, "public static class FormatWriter");
+            pw.println(1, "{");
+            pw.println(2, "public static void Write(IBufferWriter<char> writer, string text)");
+            pw.println(2, "{");
+            pw.println(3, "Span<char> span = writer.GetSpan(text.Length);");
+            pw.println(3, "text.AsSpan().CopyTo(span);");
+            pw.println(3, "writer.Advance(text.Length);");
+            pw.println(2, "}");
+            pw.println();
+            pw.println(2, "public static void WriteLine(IBufferWriter<char> writer, string text)");
+            pw.println(2, "{");
+            pw.println(3, "Write(writer, text);");
+            pw.println(3, "Write(writer, System.Environment.NewLine);");
+            pw.println(2, "}");
+
+            // One overload per C# primitive, so values are never boxed
+            Iterator it = new TreeSet(types.values()).iterator();
+            while (it.hasNext()) {
+                String csharpType = (String) it.next();
+                pw.println();
+                pw.println(2, "public static void Write(IBufferWriter<char> writer, " + csharpType + " value)");
+                pw.println(2, "{");
+                pw.println(3, "int charsWritten;");
+                pw.println(3, "Span<char> span = writer.GetSpan(32);");
+                pw.println(3, "while (!value.TryFormat(span, out charsWritten, default(ReadOnlySpan<char>), CultureInfo.InvariantCulture))");
+                pw.println(3, "{");
+                pw.println(4, "span = writer.GetSpan(span.Length * 2);");
+                pw.println(3, "}");
+                pw.println();
+                pw.println(3, "writer.Advance(charsWritten);");
+                pw.println(2, "}");
+            }
+
+            pw.println();
+            pw.println(2, "public static void WriteHex(IBufferWriter<char> writer, byte[] bytes)");
+            pw.println(2, "{");
+            pw.println(3, "if (bytes == null)");
+            pw.println(3, "{");
+            pw.println(4, "return;");
+            pw.println(3, "}");
+            pw.println();
+            pw.println(3, "int charsWritten;");
+            pw.println(3, "Span<char> span = writer.GetSpan(bytes.Length * 2);");
+            pw.println(3, "for (int idx = 0; idx < bytes.Length; idx++)");
+            pw.println(3, "{");
+            pw.println(4, "bytes[idx].TryFormat(span.Slice(idx * 2), out charsWritten, \"X2\", CultureInfo.InvariantCulture);");
+            pw.println(3, "}");
+            pw.println();
+            pw.println(3, "writer.Advance(bytes.Length * 2);");
+            pw.println(2, "}");
+            pw.println(1, "}");
+            pw.println();
+            pw.println(1, "/// <summary>");
+            pw.println(1, "/// An IBufferWriter that appends everything written to it to a StringBuilder.");
+            pw.println(1, "/// </summary>");
+            pw.println(1, "public sealed class StringBuilderBufferWriter : IBufferWriter<char>");
+            pw.println(1, "{");
+            pw.println(2, "private readonly StringBuilder _sb;");
+            pw.println();
+            pw.println(2, "private char[] _buffer = new char[256];");
+            pw.println();
+            pw.println(2, "public StringBuilderBufferWriter(StringBuilder sb)");
+            pw.println(2, "{");
+            pw.println(3, "this._sb = sb;");
+            pw.println(2, "}");
+            pw.println();
+            pw.println(2, "public void Advance(int count)");
+            pw.println(2, "{");
+            pw.println(3, "this._sb.Append(this._buffer, 0, count);");
+            pw.println(2, "}");
+            pw.println();
+            pw.println(2, "public Memory<char> GetMemory(int sizeHint = 0)");
+            pw.println(2, "{");
+            pw.println(3, "if (sizeHint > this._buffer.Length)");
+            pw.println(3, "{");
+            pw.println(4, "this._buffer = new char[Math.Max(sizeHint, this._buffer.Length * 2)];");
+            pw.println(3, "}");
+            pw.println();
+            pw.println(3, "return this._buffer;");
+            pw.println(2, "}");
+            pw.println();
+            pw.println(2, "public Span<char> GetSpan(int sizeHint = 0)");
+            pw.println(2, "{");
+            pw.println(3, "return this.GetMemory(sizeHint).Span;");
+            pw.println(2, "}");
+            pw.println(1, "}");
+            pw.println("}");
+
+            PrintWriter out = this.openOutputFile(new File(getDirectory() + "/FormatWriter.cs"));
+            out.print(pw.toString());
+            out.flush();
+            out.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("error creating source code " + e);
+        }
+    }
+
     private void writeEqualityMethod(PrintStringBuffer pw, GeneratedClass aClass, int indent) {
         try
         {
@@ -1644,7 +2392,14 @@ public class CsharpGenerator extends Generator {
             pw.println(indent, "/// </returns>");
             pw.println(indent, "public override bool Equals(object obj)");
             pw.println(indent, "{");
-            pw.println(indent + 1, "return this == obj as " + aClass.getName() + ";");
+            if (this.isValueType(aClass))
+            {
+                pw.println(indent + 1, "return obj is " + aClass.getName() + " && this.Equals((" + aClass.getName() + ")obj);");
+            }
+            else
+            {
+                pw.println(indent + 1, "return this == obj as " + aClass.getName() + ";");
+            }
             pw.println(indent, "}");
 
             pw.println();
@@ -1660,11 +2415,14 @@ public class CsharpGenerator extends Generator {
             pw.println(indent + 1, "bool ivarsEqual = true;");
 
             pw.println();
-            pw.println(indent + 1, "if (obj.GetType() != this.GetType())");
-            pw.println(indent + 1, "{");
-            pw.println(indent + 2, "return false;");
-            pw.println(indent + 1, "}");
-            pw.println();
+            if (!this.isValueType(aClass))
+            {
+                pw.println(indent + 1, "if (obj.GetType() != this.GetType())");
+                pw.println(indent + 1, "{");
+                pw.println(indent + 2, "return false;");
+                pw.println(indent + 1, "}");
+                pw.println();
+            }
 
             //If the class is PDU then do not use the base.Equals as it defaults to the base API version which will return a false
             String parentClass = aClass.getParentClass();
@@ -1,5 +1,6 @@
 package edu.nps.moves.xmlpg;
 
+import java.io.*;
 import java.util.*;
 
 /**
@@ -10,7 +11,7 @@ import java.util.*;
  * @author DMcG
  */
 
-public class GeneratedClass 
+public class GeneratedClass implements Serializable
 {
     /** A list of all the attributes (ivars) of one class */
     protected List classAttributes = new ArrayList();
@@ -30,6 +31,10 @@ public class GeneratedClass
     /** Whether this is an XmlRootElement; used only with XML marshalling */
     protected boolean xmlRootElement = false;
     
+    /** "true" or "false" if the class element says whether this should be generated as a
+     * value type (a C# struct) rather than a class, null if it leaves that to the generator */
+    protected String valueType = null;
+    
     /** Constructor */
     public GeneratedClass()
     {
@@ -120,4 +125,14 @@ public class GeneratedClass
         this.xmlRootElement = isXmlRootElement;
     }
 
+    public String getValueType()
+    {
+        return valueType;
+    }
+
+    public void setValueType(String pValueType)
+    {
+        this.valueType = pValueType;
+    }
+
 }
@@ -2,6 +2,7 @@ package edu.nps.moves.xmlpg;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Abstract superclass for all the concrete language generators, such as java, c++, etc.
@@ -20,6 +21,28 @@ public abstract class Generator
     
     protected Properties languageProperties;
     
+    /** How many classes are written at the same time. The default of 1 writes them
+     * one after another on the calling thread; 0 means one per available processor.
+     * Set with parallelism="n" on the language element or -Dxmlpg.parallelism=n.
+     */
+    protected int parallelism = 1;
+    
+    /** If true, source files whose content has not changed since the last run are
+     * left untouched. Set with incremental="true" on the language element or
+     * -Dxmlpg.incremental=true.
+     */
+    protected boolean incremental = false;
+    
+    /**
+     * Callback that writes the source code for one class. When the parallelism is
+     * greater than one it is called from several threads at once, each time with a
+     * different class, so it should write only to files and writers of its own.
+     */
+    public interface ClassEmitter
+    {
+        public void emit(GeneratedClass aClass);
+    }
+    
     /**
      * Constructor
      */
@@ -27,6 +50,26 @@ public abstract class Generator
     {
         classDescriptions = pClassDescriptions;
         languageProperties = pLanguageProperties;
+        
+        String parallelismOption = this.getOption("parallelism");
+        if(parallelismOption != null)
+        {
+            try
+            {
+                parallelism = Integer.parseInt(parallelismOption.trim());
+            }
+            catch(NumberFormatException e)
+            {
+                System.out.println("parallelism is not an integer. Fix the XML file or the xmlpg.parallelism property.");
+                System.out.println(e);
+                System.exit(-1);
+            }
+            
+            if(parallelism <= 0)
+                parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        
+        incremental = this.getBooleanOption("incremental");
 
         // Directory is set in the subclasses
 
@@ -50,6 +93,125 @@ public abstract class Generator
      */
     public abstract void writeClasses();
     
+    /**
+     * The name of this language on the command line, eg "java", "cpp" or "csharp".
+     * This is the class name of the generator without the Generator suffix, lower cased.
+     */
+    public String getLanguageName()
+    {
+        String className = this.getClass().getSimpleName();
+        
+        if(className.endsWith("Generator"))
+            className = className.substring(0, className.length() - "Generator".length());
+        
+        return className.toLowerCase();
+    }
+    
+    /**
+     * Returns a -Dxmlpg setting from the command line, or null if it is not set. A
+     * setting qualified with the language, such as -Dxmlpg.java.generatedSourceDir,
+     * takes precedence over the plain -Dxmlpg.generatedSourceDir, so a run that
+     * generates several languages at once can still configure each one separately.
+     */
+    protected String getCommandLineProperty(String name)
+    {
+        String value = System.getProperty("xmlpg." + this.getLanguageName() + "." + name);
+        
+        if(value == null)
+            value = System.getProperty("xmlpg." + name);
+        
+        return value;
+    }
+    
+    /**
+     * Returns a code generation option. A -Dxmlpg.name=value on the command line
+     * takes precedence over a name="value" attribute on the language element in
+     * the XML file. Returns null if the option is set in neither place.
+     */
+    protected String getOption(String name)
+    {
+        String value = this.getCommandLineProperty(name);
+        
+        if(value == null && languageProperties != null)
+            value = languageProperties.getProperty(name);
+        
+        return value;
+    }
+    
+    /**
+     * Returns true if the option is set to "true", false if it is set to anything
+     * else or not set at all.
+     */
+    protected boolean getBooleanOption(String name)
+    {
+        String value = this.getOption(name);
+        
+        return value != null && value.trim().equalsIgnoreCase("true");
+    }
+    
+    /**
+     * Runs the emitter once for every class in the collection. With a parallelism of
+     * one this happens in iteration order on the calling thread. Otherwise the classes
+     * are fanned out to a fork-join pool and this returns once all of them are written.
+     * Each class is handled by exactly one task, so the files produced are the same
+     * either way; only the order of any console output changes.
+     */
+    protected void forEachClass(Collection classes, final ClassEmitter emitter)
+    {
+        if(parallelism <= 1)
+        {
+            Iterator it = classes.iterator();
+            while(it.hasNext())
+            {
+                emitter.emit((GeneratedClass)it.next());
+            }
+            return;
+        }
+        
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try
+        {
+            List<ForkJoinTask> tasks = new ArrayList<ForkJoinTask>();
+            Iterator it = classes.iterator();
+            while(it.hasNext())
+            {
+                final GeneratedClass aClass = (GeneratedClass)it.next();
+                tasks.add(pool.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        emitter.emit(aClass);
+                    }
+                }));
+            }
+            
+            for(int idx = 0; idx < tasks.size(); idx++)
+            {
+                tasks.get(idx).join();
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Opens a writer for one generated source file; the caller must close it. Normally
+     * the file is created, or emptied if it already exists, and written as the code is
+     * generated. In incremental mode the code is held in memory instead, and on close
+     * the file is only rewritten if its content changed, so downstream builds recompile
+     * just the classes that differ.
+     */
+    protected PrintWriter openOutputFile(File outputFile) throws IOException
+    {
+        if(incremental)
+            return new IncrementalPrintWriter(outputFile);
+        
+        outputFile.createNewFile();
+        return new PrintWriter(outputFile);
+    }
+    
     /**
      * Create the directory in which to put the generated source code files
      */
@@ -100,6 +262,285 @@ public abstract class Generator
         return new String(stb);
     }
     
+    /**
+     * Returns the number of bytes a primitive type takes on the wire, eg 2 for
+     * "unsigned short", or 0 if the type is not one of the primitive types.
+     */
+    public static int getPrimitiveSize(String fieldType)
+    {
+        if(fieldType.equalsIgnoreCase("unsigned byte") || fieldType.equalsIgnoreCase("byte"))
+            return 1;
+        if(fieldType.equalsIgnoreCase("unsigned short") || fieldType.equalsIgnoreCase("short"))
+            return 2;
+        if(fieldType.equalsIgnoreCase("unsigned int") || fieldType.equalsIgnoreCase("int") || fieldType.equalsIgnoreCase("float"))
+            return 4;
+        if(fieldType.equalsIgnoreCase("unsigned long") || fieldType.equalsIgnoreCase("long") || fieldType.equalsIgnoreCase("double"))
+            return 8;
+
+        return 0;
+    }
+
+    /**
+     * Returns the number of bytes an attribute takes when marshalled, or -1 if that
+     * depends on the data, as it does for variable length lists and for classes that
+     * contain them somewhere. Attributes marked as not serialized take no space.
+     */
+    public int getFixedSize(ClassAttribute anAttribute)
+    {
+        if(anAttribute.shouldSerialize == false)
+            return 0;
+
+        switch(anAttribute.getAttributeKind())
+        {
+            case PRIMITIVE:
+                return getPrimitiveSize(anAttribute.getType());
+
+            case CLASSREF:
+                return this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+
+            case FIXED_LIST:
+                int elementSize;
+                if(anAttribute.getUnderlyingTypeIsPrimitive())
+                    elementSize = getPrimitiveSize(anAttribute.getType());
+                else
+                    elementSize = this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+
+                if(elementSize < 0)
+                    return -1;
+                return elementSize * anAttribute.getListLength();
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns the marshalled size of a class in bytes, superclasses included, or -1
+     * if the size depends on the data.
+     */
+    public int getFixedSize(GeneratedClass aClass)
+    {
+        int size = this.getFixedSuperclassSize(aClass);
+
+        List attributes = aClass.getClassAttributes();
+        for(int idx = 0; idx < attributes.size() && size >= 0; idx++)
+        {
+            int attributeSize = this.getFixedSize((ClassAttribute)attributes.get(idx));
+            if(attributeSize < 0)
+                return -1;
+            size = size + attributeSize;
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the marshalled size of all the superclasses of a class, which is where
+     * the class's own attributes start. Zero for a class with no superclass, -1 if the
+     * superclasses have a size that depends on the data.
+     */
+    public int getFixedSuperclassSize(GeneratedClass aClass)
+    {
+        GeneratedClass parent = (GeneratedClass)classDescriptions.get(aClass.getParentClass());
+        if(parent == null)
+            return 0;
+
+        return this.getFixedSize(parent);
+    }
+
+    /**
+     * Returns the fewest bytes a class can take when marshalled, superclasses included,
+     * counting every variable length list as empty. Unmarshalling code uses this to reject
+     * list counts that the remaining bytes could not possibly hold.
+     */
+    public int getMinimumSize(GeneratedClass aClass)
+    {
+        int size = 0;
+        GeneratedClass parent = (GeneratedClass)classDescriptions.get(aClass.getParentClass());
+        if(parent != null)
+            size = this.getMinimumSize(parent);
+
+        List attributes = aClass.getClassAttributes();
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            if(anAttribute.shouldSerialize == false)
+                continue;
+
+            int elementSize;
+            if(anAttribute.getUnderlyingTypeIsPrimitive())
+                elementSize = getPrimitiveSize(anAttribute.getType());
+            else
+                elementSize = this.getMinimumSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+
+            switch(anAttribute.getAttributeKind())
+            {
+                case PRIMITIVE:
+                case CLASSREF:
+                    size = size + elementSize;
+                    break;
+
+                case FIXED_LIST:
+                    size = size + elementSize * anAttribute.getListLength();
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the offset in bytes of an attribute from the start of the marshalled
+     * class, superclasses included, or -1 if the offset varies because something
+     * before the attribute has a size that depends on the data.
+     */
+    public int getFixedOffset(GeneratedClass aClass, ClassAttribute anAttribute)
+    {
+        int offset = this.getFixedSuperclassSize(aClass);
+
+        List attributes = aClass.getClassAttributes();
+        for(int idx = 0; idx < attributes.size() && offset >= 0; idx++)
+        {
+            ClassAttribute previous = (ClassAttribute)attributes.get(idx);
+            if(previous == anAttribute)
+                return offset;
+
+            int previousSize = this.getFixedSize(previous);
+            if(previousSize < 0)
+                return -1;
+            offset = offset + previousSize;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the class, this one or one of its superclasses, that declares the named
+     * attribute, or null if none of them do.
+     */
+    public GeneratedClass getDeclaringClass(GeneratedClass aClass, String attributeName)
+    {
+        GeneratedClass currentClass = aClass;
+        while(currentClass != null)
+        {
+            if(this.getAttribute(currentClass, attributeName) != null)
+                return currentClass;
+            currentClass = (GeneratedClass)classDescriptions.get(currentClass.getParentClass());
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the attribute with this name declared in the class itself, not its
+     * superclasses, or null if there is none.
+     */
+    public ClassAttribute getAttribute(GeneratedClass aClass, String attributeName)
+    {
+        List attributes = aClass.getClassAttributes();
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            if(anAttribute.getName().equals(attributeName))
+                return anAttribute;
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds the classes that give pduType an initial value, keyed by that value as an
+     * Integer in ascending order. If two classes claim the same type the first by name
+     * is kept and the clash is reported. Empty if the XML file has no PDUs.
+     */
+    public TreeMap<Integer, GeneratedClass> getPduTypes()
+    {
+        TreeMap<Integer, GeneratedClass> pduTypes = new TreeMap<Integer, GeneratedClass>();
+
+        List names = new ArrayList(classDescriptions.keySet());
+        Collections.sort(names);
+        for(int idx = 0; idx < names.size(); idx++)
+        {
+            GeneratedClass aClass = (GeneratedClass)classDescriptions.get(names.get(idx));
+            List inits = aClass.getInitialValues();
+            for(int jdx = 0; jdx < inits.size(); jdx++)
+            {
+                InitialValue anInit = (InitialValue)inits.get(jdx);
+                if(!anInit.getVariable().equals("pduType"))
+                    continue;
+
+                Integer pduType;
+                try
+                {
+                    pduType = Integer.valueOf(anInit.getVariableValue().trim());
+                }
+                catch(NumberFormatException e)
+                {
+                    System.out.println("pduType initial value in " + aClass.getName() + " is not an integer, ignored");
+                    continue;
+                }
+
+                GeneratedClass existing = pduTypes.get(pduType);
+                if(existing != null)
+                {
+                    System.out.println("pduType " + pduType + " is used by both " + existing.getName() + " and " + aClass.getName() + "; using " + existing.getName());
+                    continue;
+                }
+                pduTypes.put(pduType, aClass);
+            }
+        }
+
+        return pduTypes;
+    }
+
+    /**
+     * Returns the class that declares the pduType attribute shared by every class in
+     * pduTypes, as returned by getPduTypes(), or null if there are no PDUs or they do
+     * not share one.
+     */
+    public GeneratedClass getPduBaseClass(Map pduTypes)
+    {
+        GeneratedClass baseClass = null;
+
+        Iterator it = pduTypes.values().iterator();
+        while(it.hasNext())
+        {
+            GeneratedClass declaringClass = this.getDeclaringClass((GeneratedClass)it.next(), "pduType");
+            if(declaringClass == null || (baseClass != null && baseClass != declaringClass))
+                return null;
+            baseClass = declaringClass;
+        }
+
+        return baseClass;
+    }
+
+    /**
+     * Turns a camel case attribute name into an upper case constant name with
+     * underscores between the words, eg entityID becomes ENTITY_ID.
+     */
+    public String getConstantName(String name)
+    {
+        StringBuffer constant = new StringBuffer();
+        
+        for(int idx = 0; idx < name.length(); idx++)
+        {
+            char aChar = name.charAt(idx);
+            if(idx > 0 && Character.isUpperCase(aChar))
+            {
+                char previous = name.charAt(idx - 1);
+                boolean nextIsLower = idx + 1 < name.length() && Character.isLowerCase(name.charAt(idx + 1));
+                if(!Character.isUpperCase(previous) || nextIsLower)
+                    constant.append('_');
+            }
+            constant.append(Character.toUpperCase(aChar));
+        }
+        
+        return constant.toString();
+    }
+    
     /** This is ugly and brute force, but I don't see an easier way to do it.
      * Given a mask (like 0xf0) we want to know how many bits to shift an
      * integer when masking in a new value. 
@@ -0,0 +1,92 @@
+package edu.nps.moves.xmlpg;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+
+/**
+ * A PrintWriter for one generated source file that keeps everything written to it
+ * in memory. When it is closed the content is hashed and compared with a hash of
+ * the file already on disk, and the file is only rewritten if the two differ. An
+ * unchanged file keeps its modification time, so javac, msbuild, make and the like
+ * do not rebuild it.
+ */
+
+public class IncrementalPrintWriter extends PrintWriter
+{
+    /** The file the generated code belongs in */
+    private File outputFile;
+
+    /** True once close() has run */
+    private boolean closed = false;
+
+    /** True if close() actually wrote the file */
+    private boolean written = false;
+
+    public IncrementalPrintWriter(File pOutputFile)
+    {
+        super(new StringWriter());
+        outputFile = pOutputFile;
+    }
+
+    /**
+     * Compares what was written with the existing file, replaces the file if they
+     * differ, and closes the writer. Problems writing the file are printed and leave
+     * checkError() returning true, the same as any other PrintWriter error.
+     */
+    public void close()
+    {
+        synchronized(lock)
+        {
+            if(closed)
+                return;
+            closed = true;
+
+            super.flush();
+            byte[] content = out.toString().getBytes();
+            super.close();
+
+            try
+            {
+                if(outputFile.exists() && outputFile.length() == content.length &&
+                   MessageDigest.isEqual(contentHash(Files.readAllBytes(outputFile.toPath())), contentHash(content)))
+                {
+                    return;
+                }
+
+                Files.write(outputFile.toPath(), content);
+                written = true;
+            }
+            catch(IOException e)
+            {
+                System.out.println("Could not write " + outputFile + ": " + e);
+                this.setError();
+            }
+        }
+    }
+
+    /**
+     * True if closing the writer changed the file on disk, false if the file already
+     * held exactly this content.
+     */
+    public boolean wasWritten()
+    {
+        return written;
+    }
+
+    /**
+     * SHA-256 hash of some file content.
+     */
+    public static byte[] contentHash(byte[] content)
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+}
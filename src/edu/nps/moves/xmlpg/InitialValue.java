@@ -1,5 +1,7 @@
 package edu.nps.moves.xmlpg;
 
+import java.io.*;
+
 /**
  * Represents an initial value for a primitive type. This can be set in a subclass
  * of a given class, for example to initialize a header, like version number of
@@ -7,7 +9,7 @@ package edu.nps.moves.xmlpg;
  *
  * @author DMcG
  */
-public class InitialValue 
+public class InitialValue implements Serializable
 {
     /** The field name that will be  initialized in this class's constructor */
     private String variable;
@@ -24,6 +24,18 @@ public class JavaGenerator extends Generator
     /** "false" or "true" */
     boolean useHibernateAnnotations = true;
     
+    /** If true, a flyweight <Name>View class that reads straight from a ByteBuffer is
+     * written alongside each class. Set with generateViews="true" on the java element
+     * or -Dxmlpg.generateViews=true.
+     */
+    boolean generateViews = false;
+    
+    /** If greater than zero, each class gets static acquire() and instance release()
+     * methods backed by a per-thread pool holding at most this many recycled instances.
+     * Set with poolSize="n" on the java element or -Dxmlpg.poolSize=n.
+     */
+    int poolSize = 0;
+    
     /** Maps the primitive types listed in the XML file to the java types */
     Properties types = new Properties();
     
@@ -52,16 +64,15 @@ public class JavaGenerator extends Generator
 
         try
         {
-            Properties systemProperties = System.getProperties();
             
             // The command line (passed in as -D system properties to the java invocation)
             // may override some settings in the XML file. If these are non-null, they
             // take precedence over
-            String clUseHibernate = systemProperties.getProperty("xmlpg.useHibernate");
-            String clUseJaxb = systemProperties.getProperty("xmlpg.useJaxb");
-            String clDirectory = systemProperties.getProperty("xmlpg.generatedSourceDir");
+            String clUseHibernate = this.getCommandLineProperty("useHibernate");
+            String clUseJaxb = this.getCommandLineProperty("useJaxb");
+            String clDirectory = this.getCommandLineProperty("generatedSourceDir");
             //System.out.println("clDirectory=" + clDirectory);
-            String clPackage = systemProperties.getProperty("xmlpg.package");
+            String clPackage = this.getCommandLineProperty("package");
 
             //System.out.println("System properties: " + systemProperties);
             
@@ -97,6 +108,23 @@ public class JavaGenerator extends Generator
             System.exit(-1);
         }
         
+        this.generateViews = this.getBooleanOption("generateViews");
+        
+        String poolSizeOption = this.getOption("poolSize");
+        if(poolSizeOption != null)
+        {
+            try
+            {
+                this.poolSize = Integer.parseInt(poolSizeOption.trim());
+            }
+            catch(NumberFormatException e)
+            {
+                System.out.println("poolSize is not an integer. Fix the XML file or the xmlpg.poolSize property.");
+                System.out.println(e);
+                System.exit(-1);
+            }
+        }
+        
         // Set up a mapping between the strings used in the XML file and the strings used
         // in the java file, specifically the data types. This could be externalized to
         // a properties file, but there's only a dozen or so and an external props file
@@ -166,50 +194,907 @@ public class JavaGenerator extends Generator
     {
         this.createDirectory();
         
-        Iterator it = classDescriptions.values().iterator();
+        this.forEachClass(classDescriptions.values(), new ClassEmitter()
+        {
+            public void emit(GeneratedClass aClass)
+            {
+                writeClassFile(aClass);
+            }
+        });
         
-        while(it.hasNext())
+        this.writePduSupportClasses();
+    } // End write classes
+    
+    /**
+     * The source code file for a class with this name, in the package directory if
+     * there is a package.
+     */
+    private File getSourceFile(String name)
+    {
+        // Create package structure, if any
+        String pack = languageProperties.getProperty("package");
+        String fullPath;
+          
+        // If we have a package specified, replace the dots in the package name (edu.nps.moves.dis)
+        // with slashes (edu/nps/moves/dis and create that directory
+        if(pack != null)
         {
-            try
-           {
-              GeneratedClass aClass = (GeneratedClass)it.next();
-              String name = aClass.getName();
-              
-              // Create package structure, if any
-              String pack = languageProperties.getProperty("package");
-              String fullPath;
-              
-              // If we have a package specified, replace the dots in the package name (edu.nps.moves.dis)
-              // with slashes (edu/nps/moves/dis and create that directory
-              if(pack != null)
-              {
-                  pack = pack.replace(".", "/");
-                  fullPath = getDirectory() + "/" + pack + "/" + name + ".java";
-                  //System.out.println("full path is " + fullPath);
-              }
-              else
-             {
-                   fullPath = getDirectory() + "/" + name + ".java";
-             }
-			 //System.out.println("Creating Java source code file for " + fullPath);
+            pack = pack.replace(".", "/");
+            fullPath = getDirectory() + "/" + pack + "/" + name + ".java";
+            //System.out.println("full path is " + fullPath);
+        }
+        else
+        {
+            fullPath = getDirectory() + "/" + name + ".java";
+        }
+        //System.out.println("Creating Java source code file for " + fullPath);
+        
+        return new File(fullPath);
+    }
+    
+    /**
+     * Works out the path of the source code file for one class, then writes the
+     * class to it. Called once per class, possibly from several threads at once.
+     */
+    private void writeClassFile(GeneratedClass aClass)
+    {
+        try
+        {
+            String name = aClass.getName();
               
-              // Create the new, empty file, and create printwriter object for output to it
-              File outputFile = new File(fullPath);
-              outputFile.getParentFile().mkdirs();
-              outputFile.createNewFile();
-              PrintWriter pw = new PrintWriter(outputFile);
+            // Create the new, empty file, and create printwriter object for output to it
+            File outputFile = this.getSourceFile(name);
+            outputFile.getParentFile().mkdirs();
+            PrintWriter pw = this.openOutputFile(outputFile);
               
-              // print the source code of the class to the file
-              this.writeClass(pw, aClass);
-           }
-           catch(Exception e)
-           {
-               System.out.println("error creating source code " + e);
-           }
-            
-        } // End while
+            // print the source code of the class to the file
+            this.writeClass(pw, aClass);
+            
+            if(this.generateViews)
+            {
+                File viewFile = new File(outputFile.getParentFile(), name + "View.java");
+                PrintWriter viewWriter = this.openOutputFile(viewFile);
+                this.writeViewClass(viewWriter, aClass);
+            }
+        }
+        catch(Exception e)
+        {
+            System.out.println("error creating source code " + e);
+        }
+    }
     
-    } // End write classes
+    /**
+     * Writes the classes that work on marshalled PDUs of any type: PduFactory, and if
+     * the PDU header has a length field, PduVisitor and PduBatchDecoder, and if it also
+     * has a timestamp, PduReplay. Nothing is written if the XML file has no PDUs.
+     */
+    private void writePduSupportClasses()
+    {
+        TreeMap<Integer, GeneratedClass> pduTypes = this.getPduTypes();
+        GeneratedClass baseClass = this.getPduBaseClass(pduTypes);
+        if(baseClass == null)
+        {
+            if(!pduTypes.isEmpty())
+                System.out.println("PDU classes do not share a pduType attribute; no PduFactory written");
+            return;
+        }
+        
+        String baseName = baseClass.getName();
+        ClassAttribute pduTypeAttribute = this.getAttribute(baseClass, "pduType");
+        int pduTypeOffset = this.getFixedOffset(baseClass, pduTypeAttribute);
+        if(pduTypeOffset < 0)
+        {
+            System.out.println("pduType is not at a fixed offset in " + baseName + "; no PduFactory written");
+            return;
+        }
+        
+        try
+        {
+            this.writePduFactory(pduTypes, baseClass, pduTypeAttribute, pduTypeOffset);
+            
+            ClassAttribute lengthAttribute = this.getAttribute(baseClass, "length");
+            if(lengthAttribute == null || this.getFixedOffset(baseClass, lengthAttribute) < 0)
+            {
+                System.out.println("PDUs have no length field at a fixed offset; no PduBatchDecoder written");
+                return;
+            }
+            this.writePduVisitor(pduTypes, baseClass);
+            this.writePduBatchDecoder(pduTypes, baseClass, lengthAttribute);
+            
+            ClassAttribute timestampAttribute = this.getAttribute(baseClass, "timestamp");
+            if(timestampAttribute == null || this.getFixedOffset(baseClass, timestampAttribute) < 0)
+            {
+                System.out.println("PDUs have no timestamp field at a fixed offset; no PduReplay written");
+                return;
+            }
+            this.writePduReplay(pduTypes, baseClass, timestampAttribute);
+        }
+        catch(Exception e)
+        {
+            System.out.println("error creating source code " + e);
+        }
+    }
+    
+    /**
+     * Opens the source file for a generated class that is not in the XML file, and
+     * writes its package declaration.
+     */
+    private PrintWriter openSupportFile(String name) throws IOException
+    {
+        File outputFile = this.getSourceFile(name);
+        outputFile.getParentFile().mkdirs();
+        PrintWriter pw = this.openOutputFile(outputFile);
+        
+        String packageName = languageProperties.getProperty("package");
+        if(packageName != null)
+        {
+            pw.println("package " + packageName + ";");
+            pw.println();
+        }
+        
+        return pw;
+    }
+    
+    /**
+     * Writes PduFactory, which picks the class for a marshalled PDU from its pduType
+     * field. The types come from the pduType initial values in the XML file. create()
+     * is a switch over the types, which javac compiles to a jump table since the
+     * types are small and dense, and decode() keeps one reusable object per type in
+     * an array indexed by type.
+     */
+    private void writePduFactory(TreeMap<Integer, GeneratedClass> pduTypes, GeneratedClass baseClass, ClassAttribute pduTypeAttribute, int pduTypeOffset) throws IOException
+    {
+        String baseName = baseClass.getName();
+        int typeCount = pduTypes.lastKey().intValue() + 1;
+        
+        PrintWriter pw = this.openSupportFile("PduFactory");
+        
+        pw.println("/**");
+        pw.println(" * Creates and unmarshals PDUs by their pduType field, with no reflection. Static");
+        pw.println(" * methods may be used from any thread. An instance keeps one reusable PDU per type");
+        pw.println(" * for decode(), and so should only be used by one thread.");
+        pw.println(" *");
+        pw.println(" * Generated by xmlpg from the pduType initial values in the XML file.");
+        pw.println(" */");
+        pw.println("public class PduFactory");
+        pw.println("{");
+        pw.println("   /** Offset of the pduType field from the start of a marshalled PDU */");
+        pw.println("   public static final int PDU_TYPE_OFFSET = " + pduTypeOffset + ";");
+        pw.println();
+        pw.println("   /** One more than the largest pduType known to the factory */");
+        pw.println("   public static final int PDU_TYPE_COUNT = " + typeCount + ";");
+        pw.println();
+        pw.println("   /** PDUs reused by decode(), indexed by pduType and created on first use */");
+        pw.println("   private final " + baseName + "[] instances = new " + baseName + "[PDU_TYPE_COUNT];");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Returns a new PDU of the class for this pduType, or null if the type is unknown.");
+        pw.println(" */");
+        pw.println("public static " + baseName + " create(int pduType)");
+        pw.println("{");
+        pw.println("   switch(pduType)");
+        pw.println("   {");
+        Iterator<Map.Entry<Integer, GeneratedClass>> it = pduTypes.entrySet().iterator();
+        while(it.hasNext())
+        {
+            Map.Entry<Integer, GeneratedClass> entry = it.next();
+            GeneratedClass aClass = entry.getValue();
+            pw.println("       case " + entry.getKey() + ": return " + this.newInstance(aClass.getName()) + ";");
+        }
+        pw.println("       default: return null;");
+        pw.println("   }");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Returns the pduType of the PDU starting at the buffer's position, without moving it.");
+        pw.println(" */");
+        pw.println("public static int peekPduType(java.nio.ByteBuffer buff)");
+        pw.println("{");
+        pw.println("   return " + this.viewRead(pduTypeAttribute.getType(), "buff.position() + PDU_TYPE_OFFSET") + ";");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Unmarshals the PDU at the buffer's position into a new object of the right class.");
+        pw.println(" * Returns null and leaves the position alone if the pduType is unknown.");
+        pw.println(" */");
+        pw.println("public static " + baseName + " unmarshal(java.nio.ByteBuffer buff)");
+        pw.println("{");
+        pw.println("   " + baseName + " pdu = create(peekPduType(buff));");
+        pw.println("   if(pdu != null)");
+        pw.println("       pdu.unmarshal(buff);");
+        pw.println("   return pdu;");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Unmarshals the PDU at the buffer's position into the object this factory keeps");
+        pw.println(" * for its pduType. The same object is returned for every PDU of a type, so it is");
+        pw.println(" * only good until the next PDU of that type is decoded. Returns null and leaves the");
+        pw.println(" * position alone if the pduType is unknown.");
+        pw.println(" */");
+        pw.println("public " + baseName + " decode(java.nio.ByteBuffer buff)");
+        pw.println("{");
+        pw.println("   int pduType = peekPduType(buff);");
+        pw.println("   if(pduType >= PDU_TYPE_COUNT)");
+        pw.println("       return null;");
+        pw.println();
+        pw.println("   " + baseName + " pdu = instances[pduType];");
+        pw.println("   if(pdu == null)");
+        pw.println("   {");
+        pw.println("       pdu = create(pduType);");
+        pw.println("       if(pdu == null)");
+        pw.println("           return null;");
+        pw.println("       instances[pduType] = pdu;");
+        pw.println("   }");
+        pw.println("   pdu.unmarshal(buff);");
+        pw.println("   return pdu;");
+        pw.println("}");
+        pw.println("} // end of class");
+        pw.close();
+    }
+    
+    /**
+     * Writes PduVisitor, the callback PduBatchDecoder hands PDUs to. It has a visit
+     * method for each PDU class, which does nothing unless overridden.
+     */
+    private void writePduVisitor(TreeMap<Integer, GeneratedClass> pduTypes, GeneratedClass baseClass) throws IOException
+    {
+        PrintWriter pw = this.openSupportFile("PduVisitor");
+        
+        pw.println("/**");
+        pw.println(" * Receives the PDUs PduBatchDecoder finds. Override accept() to choose which PDUs are");
+        pw.println(" * decoded, and the visit methods for the types of interest; the rest do nothing.");
+        pw.println(" * The PDU objects passed in are reused for the next PDU of the same type, so copy");
+        pw.println(" * anything that must be kept.");
+        pw.println(" */");
+        pw.println("public abstract class PduVisitor");
+        pw.println("{");
+        pw.println("/**");
+        pw.println(" * Called for each PDU before anything is decoded, with the PDU still marshalled in buff");
+        pw.println(" * from offset for length bytes. Header fields can be read with the PduBatchDecoder peek");
+        pw.println(" * methods. Return false to skip the PDU without decoding it. The default decodes every PDU.");
+        pw.println(" */");
+        pw.println("public boolean accept(int pduType, java.nio.ByteBuffer buff, int offset, int length)");
+        pw.println("{");
+        pw.println("   return true;");
+        pw.println("}");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Called instead of a visit method for an accepted PDU that could not be decoded, either");
+        pw.println(" * because its pduType is unknown or because its contents run past its length field.");
+        pw.println(" */");
+        pw.println("public void visitUndecoded(int pduType, java.nio.ByteBuffer buff, int offset, int length)");
+        pw.println("{");
+        pw.println("}");
+        
+        Iterator<GeneratedClass> it = pduTypes.values().iterator();
+        while(it.hasNext())
+        {
+            String name = it.next().getName();
+            pw.println();
+            pw.println("public void visit" + name + "(" + name + " pdu)");
+            pw.println("{");
+            pw.println("}");
+        }
+        pw.println("} // end of class");
+        pw.close();
+    }
+    
+    /**
+     * Writes PduBatchDecoder, which walks PDUs stored back to back in a buffer or a
+     * file. Only the header is read until the visitor accepts a PDU, and accepted PDUs
+     * are unmarshalled into objects reused from a PduFactory. Files are memory mapped
+     * a window at a time rather than read onto the heap.
+     */
+    private void writePduBatchDecoder(TreeMap<Integer, GeneratedClass> pduTypes, GeneratedClass baseClass, ClassAttribute lengthAttribute) throws IOException
+    {
+        String baseName = baseClass.getName();
+        PrintWriter pw = this.openSupportFile("PduBatchDecoder");
+        
+        pw.println("/**");
+        pw.println(" * Decodes PDUs stored back to back, each starting where the last one ended, as in");
+        pw.println(" * capture files and multicast bundles. The header of each PDU is read in place and");
+        pw.println(" * shown to the visitor, and only the PDUs it accepts are unmarshalled, into objects");
+        pw.println(" * reused from one PDU to the next. Files are memory mapped, not read onto the heap.");
+        pw.println(" * A decoder should only be used by one thread at a time.");
+        pw.println(" *");
+        pw.println(" * Generated by xmlpg.");
+        pw.println(" */");
+        pw.println("public class PduBatchDecoder");
+        pw.println("{");
+        pw.println("   /** Size of the fixed part of the PDU header; no PDU is shorter */");
+        pw.println("   public static final int HEADER_SIZE = " + this.getFixedSize(baseClass) + ";");
+        pw.println();
+        pw.println("   /** Offset of the length field from the start of a marshalled PDU */");
+        pw.println("   public static final int LENGTH_OFFSET = " + this.getFixedOffset(baseClass, lengthAttribute) + ";");
+        pw.println();
+        pw.println("   /** How much of a file is memory mapped at a time */");
+        pw.println("   public static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;");
+        pw.println();
+        pw.println("   /** Holds the objects accepted PDUs are unmarshalled into */");
+        pw.println("   private final PduFactory factory = new PduFactory();");
+        pw.println();
+        pw.println("   /** File position of the start of the buffer being decoded, 0 for a plain buffer */");
+        pw.println("   private long windowStart = 0;");
+        pw.println();
+        
+        // Readers for each header field, at an offset rather than the buffer position
+        List ivars = baseClass.getClassAttributes();
+        for(int idx = 0; idx < ivars.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+            int fieldOffset = this.getFixedOffset(baseClass, anAttribute);
+            if(anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.PRIMITIVE || fieldOffset < 0)
+                continue;
+            
+            pw.println("/** Reads the " + anAttribute.getName() + " field of the PDU that starts at offset */");
+            pw.println("public static " + types.getProperty(anAttribute.getType()) + " peek" + this.initialCap(anAttribute.getName()) + "(java.nio.ByteBuffer buff, int offset)");
+            pw.println("{");
+            pw.println("   return " + this.viewRead(anAttribute.getType(), "offset + " + fieldOffset) + ";");
+            pw.println("}");
+            pw.println();
+        }
+        
+        pw.println("/**");
+        pw.println(" * Converts an offset passed to the visitor into a position in the file, while");
+        pw.println(" * decode(FileChannel, PduVisitor) is running. For a plain buffer it is unchanged.");
+        pw.println(" */");
+        pw.println("public long getFilePosition(int offset)");
+        pw.println("{");
+        pw.println("   return windowStart + offset;");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Decodes the PDUs from the buffer's position up to its limit. Stops at the first PDU");
+        pw.println(" * that is not wholly in the buffer, leaving the position at its start, so a caller");
+        pw.println(" * reading from a stream can compact the buffer, read more and call again. Also stops");
+        pw.println(" * at a length field too small to be a PDU, since nothing after it can be trusted.");
+        pw.println(" * @return the number of PDUs passed over, accepted or not");
+        pw.println(" */");
+        pw.println("public int decode(java.nio.ByteBuffer buff, PduVisitor visitor)");
+        pw.println("{");
+        pw.println("   int count = 0;");
+        pw.println("   int limit = buff.limit();");
+        pw.println();
+        pw.println("   while(limit - buff.position() >= HEADER_SIZE)");
+        pw.println("   {");
+        pw.println("       int offset = buff.position();");
+        pw.println("       int length = peek" + this.initialCap(lengthAttribute.getName()) + "(buff, offset);");
+        pw.println("       if(length < HEADER_SIZE || length > limit - offset)");
+        pw.println("           break;");
+        pw.println();
+        pw.println("       int pduType = peekPduType(buff, offset);");
+        pw.println("       if(visitor.accept(pduType, buff, offset, length))");
+        pw.println("       {");
+        pw.println("           // Keep a PDU with a bad length field from reading into the next one");
+        pw.println("           buff.limit(offset + length);");
+        pw.println("           try");
+        pw.println("           {");
+        pw.println("               this.dispatch(pduType, buff, offset, length, visitor);");
+        pw.println("           }");
+        pw.println("           finally");
+        pw.println("           {");
+        pw.println("               buff.limit(limit);");
+        pw.println("           }");
+        pw.println("       }");
+        pw.println("       buff.position(offset + length);");
+        pw.println("       count++;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   return count;");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Decodes every PDU in a file of back to back PDUs. The file is memory mapped a window");
+        pw.println(" * at a time, so it may be larger than the heap or than 2GB. A partial PDU at the end of");
+        pw.println(" * the file, or anything after a corrupt length field, is ignored.");
+        pw.println(" * @return the number of PDUs passed over, accepted or not");
+        pw.println(" */");
+        pw.println("public long decode(java.nio.channels.FileChannel channel, PduVisitor visitor) throws java.io.IOException");
+        pw.println("{");
+        pw.println("   long count = 0;");
+        pw.println("   long position = 0;");
+        pw.println("   long size = channel.size();");
+        pw.println();
+        pw.println("   try");
+        pw.println("   {");
+        pw.println("       while(position < size)");
+        pw.println("       {");
+        pw.println("           long windowSize = Math.min(MAP_WINDOW_SIZE, size - position);");
+        pw.println("           java.nio.MappedByteBuffer window = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, position, windowSize);");
+        pw.println("           windowStart = position;");
+        pw.println("           count = count + this.decode(window, visitor);");
+        pw.println();
+        pw.println("           // No progress means a corrupt length or a partial PDU at the end of the file");
+        pw.println("           if(window.position() == 0)");
+        pw.println("               break;");
+        pw.println("           position = position + window.position();");
+        pw.println("       }");
+        pw.println("   }");
+        pw.println("   finally");
+        pw.println("   {");
+        pw.println("       windowStart = 0;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   return count;");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Decodes every PDU in a file of back to back PDUs.");
+        pw.println(" * @see #decode(java.nio.channels.FileChannel, PduVisitor)");
+        pw.println(" */");
+        pw.println("public long decode(java.io.File file, PduVisitor visitor) throws java.io.IOException");
+        pw.println("{");
+        pw.println("   java.io.RandomAccessFile input = new java.io.RandomAccessFile(file, \"r\");");
+        pw.println("   try");
+        pw.println("   {");
+        pw.println("       return this.decode(input.getChannel(), visitor);");
+        pw.println("   }");
+        pw.println("   finally");
+        pw.println("   {");
+        pw.println("       input.close();");
+        pw.println("   }");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Unmarshals an accepted PDU and passes it to the visit method for its class.");
+        pw.println(" */");
+        pw.println("private void dispatch(int pduType, java.nio.ByteBuffer buff, int offset, int length, PduVisitor visitor)");
+        pw.println("{");
+        pw.println("   " + baseName + " pdu;");
+        pw.println("   try");
+        pw.println("   {");
+        pw.println("       pdu = factory.decode(buff);");
+        pw.println("   }");
+        pw.println("   catch(java.nio.BufferUnderflowException e)");
+        pw.println("   {");
+        pw.println("       pdu = null;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   if(pdu == null)");
+        pw.println("   {");
+        pw.println("       buff.position(offset);");
+        pw.println("       visitor.visitUndecoded(pduType, buff, offset, length);");
+        pw.println("       return;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   switch(pduType)");
+        pw.println("   {");
+        Iterator<Map.Entry<Integer, GeneratedClass>> it = pduTypes.entrySet().iterator();
+        while(it.hasNext())
+        {
+            Map.Entry<Integer, GeneratedClass> entry = it.next();
+            String name = entry.getValue().getName();
+            pw.println("       case " + entry.getKey() + ": visitor.visit" + name + "((" + name + ")pdu); break;");
+        }
+        pw.println("   }");
+        pw.println("}");
+        pw.println("} // end of class");
+        pw.close();
+    }
+    
+    /**
+     * Returns the offset of the first EntityID in a marshalled PDU of this class,
+     * superclasses included, or -1 if it has none at a fixed offset.
+     */
+    private int getEntityIDOffset(GeneratedClass aClass)
+    {
+        List<GeneratedClass> chain = new ArrayList<GeneratedClass>();
+        GeneratedClass currentClass = aClass;
+        while(currentClass != null)
+        {
+            chain.add(0, currentClass);
+            currentClass = (GeneratedClass)classDescriptions.get(currentClass.getParentClass());
+        }
+        
+        for(int idx = 0; idx < chain.size(); idx++)
+        {
+            GeneratedClass chainClass = chain.get(idx);
+            List ivars = chainClass.getClassAttributes();
+            for(int jdx = 0; jdx < ivars.size(); jdx++)
+            {
+                ClassAttribute anAttribute = (ClassAttribute)ivars.get(jdx);
+                if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF &&
+                   anAttribute.getType().equals("EntityID"))
+                {
+                    return this.getFixedOffset(chainClass, anAttribute);
+                }
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Writes PduReplay, a tool that replays a capture file of back to back PDUs. The
+     * file is indexed once through PduBatchDecoder, reading only headers, into
+     * primitive arrays of file position, length, type, time and entity. PDUs are then
+     * sent as slices of the memory mapped file, paced by their timestamps at any
+     * speed. Timestamps are taken to be DIS timestamps, 2^31 ticks an hour in the top
+     * 31 bits, which wrap every hour.
+     */
+    private void writePduReplay(TreeMap<Integer, GeneratedClass> pduTypes, GeneratedClass baseClass, ClassAttribute timestampAttribute) throws IOException
+    {
+        PrintWriter pw = this.openSupportFile("PduReplay");
+        
+        GeneratedClass entityIDClass = (GeneratedClass)classDescriptions.get("EntityID");
+        int entityIDSize = 0;
+        if(entityIDClass != null)
+        {
+            entityIDSize = this.getFixedSize(entityIDClass);
+            if(entityIDSize < 0 || entityIDSize > 7)
+                entityIDSize = 0;
+        }
+        int typeCount = pduTypes.lastKey().intValue() + 1;
+        
+        pw.println("/**");
+        pw.println(" * Replays a capture file of PDUs stored back to back, as PduBatchDecoder reads them.");
+        pw.println(" * Opening the file builds an index of every PDU's position, length, type, time and");
+        pw.println(" * entity from the headers alone. The index is held in primitive arrays and the PDUs");
+        pw.println(" * stay in the file, which is memory mapped rather than read onto the heap. PDUs can then");
+        pw.println(" * be looked up by time or entity and sent at the original rate, faster or slower.");
+        pw.println(" *");
+        pw.println(" * Times are nanoseconds from the first PDU, from the DIS timestamps. The hourly wrap");
+        pw.println(" * is unrolled, and a time never goes back, so PDUs out of order keep the time of the");
+        pw.println(" * one before them. Entities are packed keys made from the bytes of the first EntityID");
+        pw.println(" * in the PDU, or -1 if it has none.");
+        pw.println(" *");
+        pw.println(" * Generated by xmlpg.");
+        pw.println(" */");
+        pw.println("public class PduReplay");
+        pw.println("{");
+        pw.println("   /** Length of one timestamp tick in nanoseconds; an hour is 2^31 ticks */");
+        pw.println("   public static final double NANOS_PER_TICK = 3600.0e9 / 2147483648.0;");
+        pw.println();
+        pw.println("   /** Ticks in an hour, when the timestamp wraps back to zero */");
+        pw.println("   private static final long TICKS_PER_HOUR = 1L << 31;");
+        pw.println();
+        pw.println("   /** Size of a marshalled EntityID, 0 if entities are not indexed */");
+        pw.println("   public static final int ENTITY_ID_SIZE = " + entityIDSize + ";");
+        pw.println();
+        pw.println("   /** Offset of the EntityID in a PDU of each type, -1 if there is none */");
+        pw.print("   private static final int[] ENTITY_ID_OFFSETS = {");
+        for(int pduType = 0; pduType < typeCount; pduType++)
+        {
+            GeneratedClass aClass = pduTypes.get(Integer.valueOf(pduType));
+            int entityIDOffset = -1;
+            if(aClass != null && entityIDSize > 0)
+                entityIDOffset = this.getEntityIDOffset(aClass);
+            
+            if(pduType > 0)
+                pw.print(",");
+            pw.print(pduType % 16 == 0 ? "\n      " : " ");
+            pw.print(entityIDOffset);
+        }
+        pw.println(" };");
+        pw.println();
+        pw.println("   /** Receives each PDU as it is replayed */");
+        pw.println("   public interface Sink");
+        pw.println("   {");
+        pw.println("       /** pdu holds exactly one PDU, from its position to its limit */");
+        pw.println("       public void send(java.nio.ByteBuffer pdu) throws java.io.IOException;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   private final java.io.RandomAccessFile file;");
+        pw.println("   private final java.nio.channels.FileChannel channel;");
+        pw.println();
+        pw.println("   /** The index, one entry per PDU in file order */");
+        pw.println("   private int count = 0;");
+        pw.println("   private long[] positions = new long[1024];");
+        pw.println("   private int[] lengths = new int[1024];");
+        pw.println("   private short[] types = new short[1024];");
+        pw.println("   private long[] times = new long[1024];");
+        pw.println("   private long[] entities = new long[1024];");
+        pw.println();
+        pw.println("   /** The mapped part of the file that PDUs are sliced from */");
+        pw.println("   private java.nio.MappedByteBuffer window;");
+        pw.println("   private long windowStart;");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Opens a capture file and indexes it. Call close() when done.");
+        pw.println(" */");
+        pw.println("public PduReplay(java.io.File capture) throws java.io.IOException");
+        pw.println("{");
+        pw.println("   file = new java.io.RandomAccessFile(capture, \"r\");");
+        pw.println("   channel = file.getChannel();");
+        pw.println("   try");
+        pw.println("   {");
+        pw.println("       this.buildIndex();");
+        pw.println("   }");
+        pw.println("   catch(java.io.IOException e)");
+        pw.println("   {");
+        pw.println("       file.close();");
+        pw.println("       throw e;");
+        pw.println("   }");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("public void close() throws java.io.IOException");
+        pw.println("{");
+        pw.println("   window = null;");
+        pw.println("   file.close();");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Walks the file's headers with a PduBatchDecoder that accepts nothing, so no PDU is");
+        pw.println(" * unmarshalled while indexing.");
+        pw.println(" */");
+        pw.println("private void buildIndex() throws java.io.IOException");
+        pw.println("{");
+        pw.println("   final PduBatchDecoder decoder = new PduBatchDecoder();");
+        pw.println("   decoder.decode(channel, new PduVisitor()");
+        pw.println("   {");
+        pw.println("       long firstTicks = -1;");
+        pw.println("       long lastTicks = 0;");
+        pw.println("       long wrapTicks = 0;");
+        pw.println();
+        pw.println("       public boolean accept(int pduType, java.nio.ByteBuffer buff, int offset, int length)");
+        pw.println("       {");
+        pw.println("           long ticks = PduBatchDecoder.peek" + this.initialCap(timestampAttribute.getName()) + "(buff, offset) >>> 1;");
+        pw.println("           if(firstTicks < 0)");
+        pw.println("               firstTicks = ticks;");
+        pw.println("           else if(lastTicks - ticks > TICKS_PER_HOUR / 2)");
+        pw.println("               wrapTicks = wrapTicks + TICKS_PER_HOUR;");
+        pw.println("           lastTicks = ticks;");
+        pw.println();
+        pw.println("           long time = (long)((wrapTicks + ticks - firstTicks) * NANOS_PER_TICK);");
+        pw.println("           if(count > 0 && time < times[count - 1])");
+        pw.println("               time = times[count - 1];");
+        pw.println();
+        pw.println("           add(decoder.getFilePosition(offset), length, pduType, time, entityKey(buff, offset, pduType, length));");
+        pw.println("           return false;");
+        pw.println("       }");
+        pw.println("   });");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/** Appends one PDU to the index, growing the arrays as needed */");
+        pw.println("private void add(long position, int length, int pduType, long time, long entity)");
+        pw.println("{");
+        pw.println("   if(count == positions.length)");
+        pw.println("   {");
+        pw.println("       int capacity = count * 2;");
+        pw.println("       positions = java.util.Arrays.copyOf(positions, capacity);");
+        pw.println("       lengths = java.util.Arrays.copyOf(lengths, capacity);");
+        pw.println("       types = java.util.Arrays.copyOf(types, capacity);");
+        pw.println("       times = java.util.Arrays.copyOf(times, capacity);");
+        pw.println("       entities = java.util.Arrays.copyOf(entities, capacity);");
+        pw.println("   }");
+        pw.println("   positions[count] = position;");
+        pw.println("   lengths[count] = length;");
+        pw.println("   types[count] = (short)pduType;");
+        pw.println("   times[count] = time;");
+        pw.println("   entities[count] = entity;");
+        pw.println("   count++;");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * The packed key of the first EntityID in the PDU at offset, or -1 if it has none.");
+        pw.println(" */");
+        pw.println("public static long entityKey(java.nio.ByteBuffer buff, int offset, int pduType, int length)");
+        pw.println("{");
+        pw.println("   if(pduType >= ENTITY_ID_OFFSETS.length || ENTITY_ID_OFFSETS[pduType] < 0 ||");
+        pw.println("      ENTITY_ID_OFFSETS[pduType] + ENTITY_ID_SIZE > length)");
+        pw.println("       return -1;");
+        pw.println();
+        pw.println("   long key = 0;");
+        pw.println("   int at = offset + ENTITY_ID_OFFSETS[pduType];");
+        pw.println("   for(int idx = 0; idx < ENTITY_ID_SIZE; idx++)");
+        pw.println("   {");
+        pw.println("       key = (key << 8) | (buff.get(at + idx) & 0xFF);");
+        pw.println("   }");
+        pw.println("   return key;");
+        pw.println("}");
+        pw.println();
+        
+        if(entityIDSize > 0)
+        {
+            pw.println("/**");
+            pw.println(" * The packed key for an EntityID, for use with indicesOfEntity().");
+            pw.println(" */");
+            pw.println("public static long entityKey(EntityID id)");
+            pw.println("{");
+            pw.println("   java.nio.ByteBuffer buff = java.nio.ByteBuffer.allocate(ENTITY_ID_SIZE);");
+            pw.println("   id.marshal(buff);");
+            pw.println("   long key = 0;");
+            pw.println("   for(int idx = 0; idx < ENTITY_ID_SIZE; idx++)");
+            pw.println("   {");
+            pw.println("       key = (key << 8) | (buff.get(idx) & 0xFF);");
+            pw.println("   }");
+            pw.println("   return key;");
+            pw.println("}");
+            pw.println();
+        }
+        
+        pw.println("/** Number of PDUs in the capture */");
+        pw.println("public int size()");
+        pw.println("{");
+        pw.println("   return count;");
+        pw.println("}");
+        pw.println();
+        pw.println("public long getFilePosition(int index)");
+        pw.println("{");
+        pw.println("   return positions[index];");
+        pw.println("}");
+        pw.println();
+        pw.println("public int getLength(int index)");
+        pw.println("{");
+        pw.println("   return lengths[index];");
+        pw.println("}");
+        pw.println();
+        pw.println("public int getPduType(int index)");
+        pw.println("{");
+        pw.println("   return types[index];");
+        pw.println("}");
+        pw.println();
+        pw.println("/** Nanoseconds from the first PDU in the capture */");
+        pw.println("public long getTime(int index)");
+        pw.println("{");
+        pw.println("   return times[index];");
+        pw.println("}");
+        pw.println();
+        pw.println("/** The packed key of the PDU's first EntityID, or -1 */");
+        pw.println("public long getEntityKey(int index)");
+        pw.println("{");
+        pw.println("   return entities[index];");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Index of the first PDU at or after a time, in nanoseconds from the first PDU, or");
+        pw.println(" * size() if there is none.");
+        pw.println(" */");
+        pw.println("public int indexAtTime(long time)");
+        pw.println("{");
+        pw.println("   int low = 0;");
+        pw.println("   int high = count;");
+        pw.println("   while(low < high)");
+        pw.println("   {");
+        pw.println("       int middle = (low + high) >>> 1;");
+        pw.println("       if(times[middle] < time)");
+        pw.println("           low = middle + 1;");
+        pw.println("       else");
+        pw.println("           high = middle;");
+        pw.println("   }");
+        pw.println("   return low;");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Indices of the PDUs whose first EntityID has this packed key, in file order.");
+        pw.println(" */");
+        pw.println("public int[] indicesOfEntity(long key)");
+        pw.println("{");
+        pw.println("   int matches = 0;");
+        pw.println("   for(int idx = 0; idx < count; idx++)");
+        pw.println("   {");
+        pw.println("       if(entities[idx] == key)");
+        pw.println("           matches++;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   int[] indices = new int[matches];");
+        pw.println("   matches = 0;");
+        pw.println("   for(int idx = 0; idx < count; idx++)");
+        pw.println("   {");
+        pw.println("       if(entities[idx] == key)");
+        pw.println("           indices[matches++] = idx;");
+        pw.println("   }");
+        pw.println("   return indices;");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Returns a read only buffer holding one PDU, sliced from the mapped file without");
+        pw.println(" * copying. It stays valid after later calls, but not after close().");
+        pw.println(" */");
+        pw.println("public java.nio.ByteBuffer getPdu(int index) throws java.io.IOException");
+        pw.println("{");
+        pw.println("   long position = positions[index];");
+        pw.println("   int length = lengths[index];");
+        pw.println("   if(window == null || position < windowStart || position + length > windowStart + window.capacity())");
+        pw.println("   {");
+        pw.println("       long windowSize = Math.min(PduBatchDecoder.MAP_WINDOW_SIZE, channel.size() - position);");
+        pw.println("       window = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, position, windowSize);");
+        pw.println("       windowStart = position;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   java.nio.ByteBuffer pdu = window.duplicate();");
+        pw.println("   pdu.position((int)(position - windowStart));");
+        pw.println("   pdu.limit(pdu.position() + length);");
+        pw.println("   return pdu.slice();");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Sends the PDUs from index from up to, but not including, index to. Each is sent when");
+        pw.println(" * its time from the first one sent, divided by speed, has passed; a speed of 2 replays");
+        pw.println(" * twice as fast. A speed of 0 or less sends as fast as the sink will take them.");
+        pw.println(" * Returns early if the thread is interrupted.");
+        pw.println(" * @return the number of PDUs sent");
+        pw.println(" */");
+        pw.println("public int replay(int from, int to, double speed, Sink sink) throws java.io.IOException");
+        pw.println("{");
+        pw.println("   long start = System.nanoTime();");
+        pw.println("   int sent = 0;");
+        pw.println();
+        pw.println("   for(int idx = from; idx < to; idx++)");
+        pw.println("   {");
+        pw.println("       if(speed > 0)");
+        pw.println("       {");
+        pw.println("           long due = start + (long)((times[idx] - times[from]) / speed);");
+        pw.println("           long wait;");
+        pw.println("           while((wait = due - System.nanoTime()) > 0)");
+        pw.println("           {");
+        pw.println("               java.util.concurrent.locks.LockSupport.parkNanos(wait);");
+        pw.println("               if(Thread.currentThread().isInterrupted())");
+        pw.println("                   return sent;");
+        pw.println("           }");
+        pw.println("       }");
+        pw.println("       sink.send(this.getPdu(idx));");
+        pw.println("       sent++;");
+        pw.println("   }");
+        pw.println();
+        pw.println("   return sent;");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Sends PDUs from index from up to to through a datagram channel to target.");
+        pw.println(" * @see #replay(int, int, double, Sink)");
+        pw.println(" */");
+        pw.println("public int replay(int from, int to, double speed, final java.nio.channels.DatagramChannel datagrams, final java.net.SocketAddress target) throws java.io.IOException");
+        pw.println("{");
+        pw.println("   return this.replay(from, to, speed, new Sink()");
+        pw.println("   {");
+        pw.println("       public void send(java.nio.ByteBuffer pdu) throws java.io.IOException");
+        pw.println("       {");
+        pw.println("           datagrams.send(pdu, target);");
+        pw.println("       }");
+        pw.println("   });");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Replays a capture file to a host and port: PduReplay capture host port [speed]");
+        pw.println(" */");
+        pw.println("public static void main(String[] args) throws Exception");
+        pw.println("{");
+        pw.println("   if(args.length < 3)");
+        pw.println("   {");
+        pw.println("       System.out.println(\"Usage: PduReplay captureFile host port [speed]\");");
+        pw.println("       System.exit(-1);");
+        pw.println("   }");
+        pw.println();
+        pw.println("   double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;");
+        pw.println("   java.net.SocketAddress target = new java.net.InetSocketAddress(args[1], Integer.parseInt(args[2]));");
+        pw.println();
+        pw.println("   PduReplay replay = new PduReplay(new java.io.File(args[0]));");
+        pw.println("   java.nio.channels.DatagramChannel datagrams = java.nio.channels.DatagramChannel.open();");
+        pw.println("   try");
+        pw.println("   {");
+        pw.println("       System.out.println(\"Replaying \" + replay.size() + \" PDUs\");");
+        pw.println("       int sent = replay.replay(0, replay.size(), speed, datagrams, target);");
+        pw.println("       System.out.println(\"Sent \" + sent + \" PDUs\");");
+        pw.println("   }");
+        pw.println("   finally");
+        pw.println("   {");
+        pw.println("       datagrams.close();");
+        pw.println("       replay.close();");
+        pw.println("   }");
+        pw.println("}");
+        pw.println("} // end of class");
+        pw.close();
+    }
     
       /**
      * Generate a source code file with getters, setters, ivars, and marshal/unmarshal
@@ -223,10 +1108,19 @@ public class JavaGenerator extends Generator
 		pw.flush();
         this.writeClassDeclaration(pw, aClass);
 		pw.flush();
+        this.writeLayoutConstants(pw, aClass);
+		pw.flush();
         this.writeIvars(pw, aClass);
 		pw.flush();
         this.writeConstructor(pw, aClass);
 		pw.flush();
+        this.writeResetMethod(pw, aClass);
+		pw.flush();
+        if(this.poolSize > 0)
+        {
+            this.writePoolMethods(pw, aClass);
+            pw.flush();
+        }
         this.writeGetMarshalledSizeMethod(pw, aClass);
 		pw.flush();
         this.writeGettersAndSetters(pw, aClass);
@@ -244,6 +1138,7 @@ public class JavaGenerator extends Generator
         if( aClass.getName().equals("Pdu") )
 	{
             this.writeMarshalMethodToByteArray(pw, aClass);
+            this.writeMarshalMethodToDirectBuffer(pw, aClass);
             pw.flush();
         }
 
@@ -253,14 +1148,278 @@ public class JavaGenerator extends Generator
             this.writeXmlRootMarshallMethod(pw, aClass);
         }
         
-        //this.writeXmlMarshallMethod(pw, aClass);
-        this.writeEqualityMethod(pw, aClass);
+        //this.writeXmlMarshallMethod(pw, aClass);
+        this.writeEqualityMethod(pw, aClass);
+        
+        pw.println("} // end of class");
+        pw.flush();
+        pw.close();
+    }
+    
+    /**
+     * Writes a flyweight view of a class. A view holds no field values of its own. It
+     * is pointed at a marshalled object in a ByteBuffer with wrap(), and each getter
+     * reads its field from the buffer at an offset worked out here from the attribute
+     * list. Offsets behind a variable length list are computed at run time from the
+     * list's count field. Nested classes are read through views that are allocated
+     * once and re-pointed on every call, so reading a message allocates nothing.
+     */
+    private void writeViewClass(PrintWriter pw, GeneratedClass aClass)
+    {
+        String viewName = aClass.getName() + "View";
+        boolean isRoot = aClass.getParentClass().equalsIgnoreCase("root");
+        List ivars = aClass.getClassAttributes();
+        
+        String packageName = languageProperties.getProperty("package");
+        if(packageName != null)
+        {
+             pw.println("package " + packageName + ";" );
+        }
+        pw.println();
+        
+        pw.println("/**");
+        pw.println(" * Flyweight view of a marshalled " + aClass.getName() + ". Point it at the first byte of one with");
+        pw.println(" * wrap() and the getters read the fields straight out of the buffer, which must be in network");
+        pw.println(" * (big endian) byte order. Nothing is copied or allocated per message, so a single view can be");
+        pw.println(" * re-wrapped over each message received. Views are not thread safe.");
+        pw.println(" */");
+        if(isRoot)
+            pw.println("public class " + viewName);
+        else
+            pw.println("public class " + viewName + " extends " + aClass.getParentClass() + "View");
+        pw.println("{");
+        
+        if(isRoot)
+        {
+            pw.println("   /** Buffer holding the marshalled object */");
+            pw.println("   protected java.nio.ByteBuffer buff;");
+            pw.println();
+            pw.println("   /** Position in the buffer of the first byte of the object */");
+            pw.println("   protected int offset;");
+            pw.println();
+        }
+        
+        // Views for nested classes, allocated once per view
+        for(int idx = 0; idx < ivars.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+            if(anAttribute.shouldSerialize == false)
+                continue;
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+            {
+                pw.println("   protected final " + anAttribute.getType() + "View " + anAttribute.getName() + " = new " + anAttribute.getType() + "View();");
+                pw.println();
+            }
+            else if(!anAttribute.getUnderlyingTypeIsPrimitive() && this.getFixedSize(anAttribute) < 0 &&
+                    this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType())) < 0)
+            {
+                pw.println("   /** Used to step over the " + anAttribute.getName() + " entries when working out where the list ends */");
+                pw.println("   protected final " + anAttribute.getType() + "View " + anAttribute.getName() + "Cursor = new " + anAttribute.getType() + "View();");
+                pw.println();
+            }
+        }
+        
+        pw.println("/** Points the view at a marshalled " + aClass.getName() + " that starts at offset in buff */");
+        pw.println("public " + viewName + " wrap(java.nio.ByteBuffer buff, int offset)");
+        pw.println("{");
+        if(isRoot)
+        {
+            this.writeByteOrderAssertion(pw, "    ");
+            pw.println("    this.buff = buff;");
+            pw.println("    this.offset = offset;");
+        }
+        else
+        {
+            pw.println("    super.wrap(buff, offset);");
+        }
+        pw.println("    return this;");
+        pw.println("}");
+        pw.println();
+        
+        if(isRoot)
+        {
+            pw.println("public java.nio.ByteBuffer getBuffer()");
+            pw.println("{ return buff; \n}");
+            pw.println();
+            pw.println("public int getOffset()");
+            pw.println("{ return offset; \n}");
+            pw.println();
+        }
+        
+        // The position of each field is offset + constant + dynamic, where dynamic is
+        // a sum of method calls for whatever came before it with a data dependent size.
+        int constant = 0;
+        String dynamic = "";
+        
+        if(!isRoot)
+        {
+            int superclassSize = this.getFixedSuperclassSize(aClass);
+            if(superclassSize >= 0)
+                constant = superclassSize;
+            else
+                dynamic = " + super.getMarshalledSize()";
+        }
+        
+        for(int idx = 0; idx < ivars.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+            
+            if(anAttribute.shouldSerialize == false)
+            {
+                 pw.println("    // attribute " + anAttribute.getName() + " marked as not serialized");
+                 continue;
+            }
+            
+            String position = "offset + " + constant + dynamic;
+            String capped = this.initialCap(anAttribute.getName());
+            int attributeSize = this.getFixedSize(anAttribute);
+            
+            if(anAttribute.getComment() != null)
+            {
+                pw.println("/** " + anAttribute.getComment() + " */");
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+            {
+                String beanType = types.getProperty(anAttribute.getType());
+                pw.println("public " + beanType + " get" + capped + "()");
+                pw.println("{ return " + this.viewRead(anAttribute.getType(), position) + "; \n}");
+                pw.println();
+                
+                List bitfields = anAttribute.bitFieldList;
+                for(int jdx = 0; jdx < bitfields.size(); jdx++)
+                {
+                    BitField bitfield = (BitField)bitfields.get(jdx);
+                    if(bitfield.comment != null)
+                    {
+                        pw.println( "/**\n * " + bitfield.comment + "\n */");
+                    }
+                    pw.println("public int get" + capped + "_" + bitfield.name + "()");
+                    pw.println("{ return (int)((get" + capped + "() & " + bitfield.mask + ") >> " + super.getBitsToShift(anAttribute, bitfield.mask) + "); \n}");
+                    pw.println();
+                }
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+            {
+                pw.println("public " + anAttribute.getType() + "View get" + capped + "()");
+                pw.println("{ return " + anAttribute.getName() + ".wrap(buff, " + position + "); \n}");
+                pw.println();
+                
+                if(attributeSize < 0)
+                    dynamic = dynamic + " + get" + capped + "().getMarshalledSize()";
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST ||
+               anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+            {
+                String count;
+                if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+                {
+                    count = Integer.toString(anAttribute.getListLength());
+                    pw.println("public int get" + capped + "Length()");
+                    pw.println("{ return " + count + "; \n}");
+                    pw.println();
+                }
+                else
+                {
+                    count = "get" + capped + "Count()";
+                    pw.println("/** Number of entries in the " + anAttribute.getName() + " list, read from " + anAttribute.getCountFieldName() + " */");
+                    pw.println("public int get" + capped + "Count()");
+                    pw.println("{ return (int)get" + this.initialCap(anAttribute.getCountFieldName()) + "(); \n}");
+                    pw.println();
+                }
+                
+                if(anAttribute.getUnderlyingTypeIsPrimitive())
+                {
+                    int elementSize = getPrimitiveSize(anAttribute.getType());
+                    pw.println("public " + types.getProperty(anAttribute.getType()) + " get" + capped + "(int idx)");
+                    pw.println("{ return " + this.viewRead(anAttribute.getType(), position + " + idx * " + elementSize) + "; \n}");
+                    pw.println();
+                    
+                    if(attributeSize < 0)
+                        dynamic = dynamic + " + " + count + " * " + elementSize;
+                }
+                else
+                {
+                    String elementView = anAttribute.getType() + "View";
+                    int elementSize = this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+                    
+                    pw.println("/** Points view at entry idx of the " + anAttribute.getName() + " list and returns it */");
+                    pw.println("public " + elementView + " get" + capped + "(int idx, " + elementView + " view)");
+                    if(elementSize >= 0)
+                    {
+                        pw.println("{ return view.wrap(buff, " + position + " + idx * " + elementSize + "); \n}");
+                        pw.println();
+                        
+                        if(attributeSize < 0)
+                            dynamic = dynamic + " + " + count + " * " + elementSize;
+                    }
+                    else
+                    {
+                        // Entries of different sizes have to be stepped over one at a time
+                        pw.println("{");
+                        pw.println("    int at = " + position + ";");
+                        pw.println("    for(int jdx = 0; jdx < idx; jdx++)");
+                        pw.println("    {");
+                        pw.println("        at = at + view.wrap(buff, at).getMarshalledSize();");
+                        pw.println("    }");
+                        pw.println("    return view.wrap(buff, at);");
+                        pw.println("}");
+                        pw.println();
+                        
+                        pw.println("/** Marshalled size of the whole " + anAttribute.getName() + " list */");
+                        pw.println("protected int get" + capped + "MarshalledSize()");
+                        pw.println("{");
+                        pw.println("    int size = 0;");
+                        pw.println("    for(int idx = 0; idx < " + count + "; idx++)");
+                        pw.println("    {");
+                        pw.println("        size = size + " + anAttribute.getName() + "Cursor.wrap(buff, " + position + " + size).getMarshalledSize();");
+                        pw.println("    }");
+                        pw.println("    return size;");
+                        pw.println("}");
+                        pw.println();
+                        
+                        dynamic = dynamic + " + get" + capped + "MarshalledSize()";
+                    }
+                }
+            }
+            
+            if(attributeSize >= 0)
+                constant = constant + attributeSize;
+        }
+        
+        pw.println("/** Marshalled size of the " + aClass.getName() + " the view is pointed at */");
+        pw.println("public int getMarshalledSize()");
+        pw.println("{ return " + constant + dynamic + "; \n}");
+        pw.println();
         
         pw.println("} // end of class");
         pw.flush();
         pw.close();
     }
     
+    /**
+     * Returns the Java expression that reads a primitive of the given XML type from
+     * the view's buffer at position, as the type its getter returns.
+     */
+    private String viewRead(String xmlType, String position)
+    {
+        if(xmlType.equalsIgnoreCase("unsigned byte"))
+            return "(short)(buff.get(" + position + ") & 0xFF)";
+        if(xmlType.equalsIgnoreCase("unsigned short"))
+            return "(int)(buff.getShort(" + position + ") & 0xFFFF)";
+        if(xmlType.equalsIgnoreCase("unsigned int"))
+            return "(long)(buff.getInt(" + position + ") & 0xFFFFFFFFL)";
+        
+        String capped = this.initialCap(marshalTypes.getProperty(xmlType));
+        if( capped.equals("Byte") ){
+            capped = "";    // ByteBuffer just has get() for bytes
+        }
+        return "buff.get" + capped + "(" + position + ")";
+    }
+    
     /**
      * Writes the package and package import code at the top of the Java source file
      * 
@@ -280,7 +1439,7 @@ public class JavaGenerator extends Generator
         pw.println();
         
         // Write the various import statements
-        String imports = languageProperties.getProperty("imports");
+        String imports = this.getOption("imports");
         StringTokenizer tokenizer = new StringTokenizer(imports, ", ");
         while(tokenizer.hasMoreTokens())
         {
@@ -361,6 +1520,38 @@ public class JavaGenerator extends Generator
         pw.println("{");
     }
     
+    /**
+     * Writes constants for the marshalled size of the class and the byte offsets of its
+     * fields, worked out from the attribute list. MARSHALLED_SIZE is -1 if the size depends
+     * on the contents, and offsets are only written for fields whose position does not.
+     */
+    private void writeLayoutConstants(PrintWriter pw, GeneratedClass aClass)
+    {
+        List ivars = aClass.getClassAttributes();
+        
+        pw.println("   /** Size in bytes of a marshalled " + aClass.getName() + ", or -1 if it depends on the contents */");
+        pw.println("   public static final int MARSHALLED_SIZE = " + this.getFixedSize(aClass) + ";");
+        pw.println();
+        
+        boolean first = true;
+        for(int idx = 0; idx < ivars.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+            int offset = this.getFixedOffset(aClass, anAttribute);
+            if(anAttribute.shouldSerialize == false || offset < 0)
+                continue;
+            
+            if(first)
+            {
+                pw.println("   // Byte offsets of the fields from the start of a marshalled " + aClass.getName());
+                first = false;
+            }
+            pw.println("   public static final int OFFSET_" + this.getConstantName(anAttribute.getName()) + " = " + offset + ";");
+        }
+        if(!first)
+            pw.println();
+    }
+    
     private void writeIvars(PrintWriter pw, GeneratedClass aClass)
     {
 
@@ -463,7 +1654,16 @@ public class JavaGenerator extends Generator
                     pw.println("   /** " + anAttribute.getComment() + " */");
                 }
                 
-                pw.println("   protected List< " + attributeType + " > " + anAttribute.getName() + " = new ArrayList< " + attributeType + " >(); ");
+                if(anAttribute.getUnderlyingTypeIsPrimitive() == true)
+                {
+                    // Held in an array with one slot per entry, so the values are never boxed
+                    pw.println("   protected " + types.getProperty(attributeType) + "[]  " + anAttribute.getName() + " = new " + 
+                               types.getProperty(attributeType) + "[0]; \n");
+                }
+                else
+                {
+                    pw.println("   protected List< " + attributeType + " > " + anAttribute.getName() + " = new ArrayList< " + attributeType + " >(); ");
+                }
             }
         } // End of loop through ivars
     }
@@ -479,6 +1679,37 @@ public class JavaGenerator extends Generator
         pw.println(" {");
         
         // Set primitive types with initial values
+        this.writeInitialValues(pw, aClass);
+        
+        // If we have fixed lists with object instances in them, initialize those
+
+        for(int idx = 0; idx < ivars.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+            {
+                //System.out.println("Generating constructor fixed list for " + anAttribute.getName() + " listIsClass:" + anAttribute.listIsClass());
+                if(anAttribute.listIsClass() == true)
+                {
+                    pw.println("\n     for(int idx = 0; idx < " + anAttribute.getName() + ".length; idx++)");
+                    pw.println("     {");
+                    pw.println("         " + anAttribute.getName() + "[idx] = new " + anAttribute.getType() + "();");
+                    pw.println("     }\n");
+                }
+            }
+                
+        }
+        pw.println(" }");
+        
+    }
+    
+    /**
+     * Writes the setter calls that give attributes their initial values. Used by both
+     * the constructor and reset(), so a reset object matches a new one.
+     */
+    private void writeInitialValues(PrintWriter pw, GeneratedClass aClass)
+    {
         List inits = aClass.getInitialValues();
         for(int idx = 0; idx < inits.size(); idx++)
         {
@@ -517,28 +1748,255 @@ public class JavaGenerator extends Generator
                 pw.println("    " + anInit.getSetterMethodName() + "( (" +  types.getProperty(aType) + ")" + anInit.getVariableValue() + " );");
             }
         } // End initialize initial values
+    }
+    
+    /**
+     * Writes reset(), which puts an object back into the state the constructor left
+     * it in without allocating anything. Nested objects and the objects in fixed
+     * arrays are reset in place, primitive arrays are zeroed, and variable lists are
+     * emptied. The objects that were in the lists are left alone, even with pools
+     * turned on, as the caller may still hold them; only release() recycles them.
+     */
+    private void writeResetMethod(PrintWriter pw, GeneratedClass aClass)
+    {
+        List ivars = aClass.getClassAttributes();
+        
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Returns this object to the state it had when it was constructed. Objects taken out");
+        pw.println(" * of its lists stay valid; they are dropped from the lists but not released.");
+        pw.println(" */");
+        pw.println("public void reset()");
+        pw.println("{");
+        
+        if(!aClass.getParentClass().equalsIgnoreCase("root"))
+        {
+            pw.println("   super.reset();");
+        }
         
-        // If we have fixed lists with object instances in them, initialize those
-
         for(int idx = 0; idx < ivars.size(); idx++)
         {
             ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
             
+            if(anAttribute.shouldSerialize == false)
+                continue;
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+            {
+                String attributeType = types.getProperty(anAttribute.getType());
+                String defaultValue = anAttribute.getDefaultValue();
+                if(defaultValue == null)
+                    defaultValue = "0";
+                
+                pw.println("   " + anAttribute.getName() + " = (" + attributeType + ")" + defaultValue + ";");
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+            {
+                pw.println("   " + anAttribute.getName() + ".reset();");
+            }
+            
             if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
             {
-                //System.out.println("Generating constructor fixed list for " + anAttribute.getName() + " listIsClass:" + anAttribute.listIsClass());
-                if(anAttribute.listIsClass() == true)
+                if(anAttribute.getUnderlyingTypeIsPrimitive() == true)
                 {
-                    pw.println("\n     for(int idx = 0; idx < " + anAttribute.getName() + ".length; idx++)");
-                    pw.println("     {");
-                    pw.println("         " + anAttribute.getName() + "[idx] = new " + anAttribute.getType() + "();");
-                    pw.println("     }\n");
+                    String attributeType = types.getProperty(anAttribute.getType());
+                    pw.println("   java.util.Arrays.fill(" + anAttribute.getName() + ", (" + attributeType + ")0);");
+                }
+                else if(anAttribute.listIsClass() == true)
+                {
+                    pw.println("   for(int idx = 0; idx < " + anAttribute.getName() + ".length; idx++)");
+                    pw.println("   {");
+                    pw.println("       " + anAttribute.getName() + "[idx].reset();");
+                    pw.println("   }");
+                }
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+            {
+                if(anAttribute.getUnderlyingTypeIsPrimitive() == true)
+                {
+                    String attributeType = types.getProperty(anAttribute.getType());
+                    pw.println("   if(" + anAttribute.getName() + ".length != 0)");
+                    pw.println("       " + anAttribute.getName() + " = new " + attributeType + "[0];");
+                }
+                else
+                {
+                    this.writeListClear(pw, anAttribute, "   ");
                 }
             }
-                
         }
-        pw.println(" }");
         
+        this.writeInitialValues(pw, aClass);
+        
+        pw.println("}");
+        pw.println();
+    }
+    
+    /**
+     * Writes the pool for a class: a static acquire() that hands out a recycled
+     * instance if the calling thread has one, and a release() that releases the objects
+     * in its variable lists, resets the instance and keeps it for the next acquire() on
+     * the same thread. Only release() recycles list objects. Each thread keeps at most
+     * poolSize instances per class; anything released beyond that is left to the
+     * garbage collector. Because the pool is per thread no locking is needed, but an
+     * object released on one thread is only handed out again on that thread.
+     */
+    private void writePoolMethods(PrintWriter pw, GeneratedClass aClass)
+    {
+        String name = aClass.getName();
+        String stackType = "java.util.ArrayDeque<" + name + ">";
+        
+        pw.println();
+        pw.println("/** Most instances each thread keeps for reuse by acquire() */");
+        pw.println("public static final int POOL_SIZE = " + this.poolSize + ";");
+        pw.println();
+        pw.println("/** Released instances, one stack per thread */");
+        pw.println("private static final ThreadLocal<" + stackType + "> pool = new ThreadLocal<" + stackType + ">()");
+        pw.println("{");
+        pw.println("    protected " + stackType + " initialValue()");
+        pw.println("    {");
+        pw.println("        return new " + stackType + "(POOL_SIZE);");
+        pw.println("    }");
+        pw.println("};");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Returns an instance released earlier on this thread, or a new one if there is none.");
+        pw.println(" * Either way it is in the same state as a newly constructed object.");
+        pw.println(" */");
+        pw.println("public static " + name + " acquire()");
+        pw.println("{");
+        pw.println("   " + name + " instance = pool.get().pollFirst();");
+        pw.println("   if(instance == null)");
+        pw.println("       instance = new " + name + "();");
+        pw.println("   return instance;");
+        pw.println("}");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Resets this object and returns it to this thread's pool. Objects in its variable");
+        pw.println(" * lists are released too. Do not use the object, or anything taken from its lists,");
+        pw.println(" * after releasing it.");
+        pw.println(" */");
+        pw.println("public void release()");
+        pw.println("{");
+        pw.println("   releaseListEntries();");
+        pw.println("   reset();");
+        pw.println("   " + stackType + " stack = pool.get();");
+        pw.println("   if(stack.size() < POOL_SIZE)");
+        pw.println("       stack.offerFirst(this);");
+        pw.println("}");
+        pw.println();
+        
+        pw.println("/** Releases the objects in the variable lists, superclasses' lists included, and empties the lists */");
+        pw.println("protected void releaseListEntries()");
+        pw.println("{");
+        if(!aClass.getParentClass().equalsIgnoreCase("root"))
+        {
+            pw.println("   super.releaseListEntries();");
+        }
+        List ivars = aClass.getClassAttributes();
+        for(int idx = 0; idx < ivars.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+            if(anAttribute.shouldSerialize == false ||
+               anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.VARIABLE_LIST ||
+               marshalTypes.getProperty(anAttribute.getType()) != null)
+                continue;
+            
+            pw.println("   for(int idx = 0; idx < " + anAttribute.getName() + ".size(); idx++)");
+            pw.println("   {");
+            pw.println("       " + anAttribute.getName() + ".get(idx).release();");
+            pw.println("   }");
+            pw.println("   " + anAttribute.getName() + ".clear();");
+        }
+        pw.println("}");
+        pw.println();
+    }
+    
+    /**
+     * Writes the check that a variable list's count, just read from a ByteBuffer, is one the
+     * bytes remaining could hold at the smallest size an entry can take. A negative or larger
+     * count throws the BufferUnderflowException that running out of bytes would, before
+     * anything is allocated for it.
+     */
+    private void writeListCountCheck(PrintWriter pw, GeneratedClass aClass, ClassAttribute anAttribute)
+    {
+        String count = anAttribute.getCountFieldName();
+        int minSize = anAttribute.getUnderlyingTypeIsPrimitive() ? getPrimitiveSize(anAttribute.getType()) :
+            this.getMinimumSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+        
+        if(minSize > 0)
+            pw.println("       if(" + count + " < 0 || " + count + " > buff.remaining() / " + minSize + ")");
+        else
+            pw.println("       if(" + count + " < 0)");
+        pw.println("           throw new java.nio.BufferUnderflowException();");
+    }
+    
+    /**
+     * Writes the allocation of the array holding a variable list of primitives, made only
+     * when the entry count changes, so reused objects usually keep their array. From a
+     * ByteBuffer the count has already been checked. From a stream it is only checked to be
+     * an array length, and the array starts at no more than 1024 entries and grows as they
+     * are read, so a bad count cannot allocate more than the data holds.
+     */
+    private void writeListArray(PrintWriter pw, GeneratedClass aClass, ClassAttribute anAttribute, boolean checked)
+    {
+        String name = anAttribute.getName();
+        String count = anAttribute.getCountFieldName();
+        String type = types.getProperty(anAttribute.getType());
+        
+        // Counts held in a long, such as unsigned ints, need a cast to be an array length
+        String cast = "";
+        GeneratedClass declaringClass = this.getDeclaringClass(aClass, count);
+        if(declaringClass != null && "long".equals(types.getProperty(this.getAttribute(declaringClass, count).getType())))
+            cast = "(int)";
+        
+        if(checked)
+        {
+            pw.println("       if(" + name + ".length != " + count + ")");
+            pw.println("           " + name + " = new " + type + "[" + cast + count + "];");
+            return;
+        }
+        
+        if(cast.length() > 0)
+            pw.println("       if(" + count + " < 0 || " + count + " > Integer.MAX_VALUE)");
+        else
+            pw.println("       if(" + count + " < 0)");
+        pw.println("           throw new java.io.IOException(\"" + count + " of \" + " + count + " + \" is not a list length\");");
+        pw.println("       if(" + name + ".length != " + count + ")");
+        pw.println("           " + name + " = new " + type + "[(int)Math.min(" + count + ", 1024)];");
+    }
+    
+    /**
+     * Writes the code that empties a variable list. The objects in it are not released,
+     * even with pools on, since the caller may still hold them.
+     */
+    private void writeListClear(PrintWriter pw, ClassAttribute anAttribute, String indent)
+    {
+        pw.println(indent + anAttribute.getName() + ".clear();");
+    }
+    
+    /**
+     * The expression that creates an object, taken from its pool if pools are on.
+     */
+    private String newInstance(String type)
+    {
+        if(this.poolSize > 0)
+            return type + ".acquire()";
+        
+        return "new " + type + "()";
+    }
+    
+    /**
+     * The expression for the number of entries in a variable list. Lists of
+     * primitives are arrays, anything else is a java.util.List.
+     */
+    private String listLength(ClassAttribute listAttribute)
+    {
+        if(listAttribute.getUnderlyingTypeIsPrimitive())
+            return listAttribute.getName() + ".length";
+        
+        return listAttribute.getName() + ".size()";
     }
     
     public void writeGetMarshalledSizeMethod(PrintWriter pw, GeneratedClass aClass)
@@ -553,6 +2011,16 @@ public class JavaGenerator extends Generator
         }
         pw.println("public int getMarshalledSize()");
         pw.println("{");
+        
+        // Fixed size classes know their size at generation time
+        if(this.getFixedSize(aClass) >= 0)
+        {
+            pw.println("   return MARSHALLED_SIZE;");
+            pw.println("}");
+            pw.println();
+            return;
+        }
+        
         pw.println("   int marshalSize = 0; ");
         pw.println();
         
@@ -605,7 +2073,11 @@ public class JavaGenerator extends Generator
                 // If this is a dynamic list of primitives, it's the list size times the size of the primitive.
                 if(anAttribute.getUnderlyingTypeIsPrimitive() == true)
                 {
-                    pw.println( anAttribute.getName() + ".size() " + " * " + primitiveSizes.get(anAttribute.getType()) + ";  // " + anAttribute.getName());
+                    pw.println("   marshalSize = marshalSize + " + anAttribute.getName() + ".length * " + primitiveSizes.get(anAttribute.getType()) + ";  // " + anAttribute.getName());
+                }
+                else if(this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType())) >= 0)
+                {
+                    pw.println("   marshalSize = marshalSize + " + anAttribute.getName() + ".size() * " + anAttribute.getType() + ".MARSHALLED_SIZE;  // " + anAttribute.getName());
                 }
                 else
                 {
@@ -701,7 +2173,7 @@ public class JavaGenerator extends Generator
                         pw.println("@Basic");
                     }
                     pw.println("public " + beanType + " get" + this.initialCap(anAttribute.getName()) + "()");
-                    pw.println("{ return (" + beanType + ")" + listAttribute.getName() + ".size();");
+                    pw.println("{ return (" + beanType + ")" + this.listLength(listAttribute) + ";");
                     pw.println("}");
                     pw.println();
                     
@@ -797,7 +2269,30 @@ public class JavaGenerator extends Generator
             }
                 
             
-             if( (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) )
+             if( (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) &&
+                 anAttribute.getUnderlyingTypeIsPrimitive())
+             {
+                 String arrayType = types.getProperty(anAttribute.getType()) + "[]";
+                 pw.println("/** The array length is the number of entries marshalled */");
+                 pw.println("public void set" + this.initialCap(anAttribute.getName()) + "(" + arrayType + " p" + this.initialCap(anAttribute.getName()) + ")");
+                 pw.println("{ " + anAttribute.getName() + " = p" + this.initialCap(anAttribute.getName()) + ";");
+                 pw.println("}");
+                 
+                 pw.println();
+
+                 if(this.useJaxbAnnotations)
+                 {
+                    pw.println("@XmlElement(name=\"" + anAttribute.getName() + "\" )");
+                 }
+                 if(this.useHibernateAnnotations)
+                 {
+                     pw.println("@Basic");
+                 }
+                 pw.println("public " + arrayType + " get" + this.initialCap(anAttribute.getName()) + "()");
+                 pw.println("{ return " + anAttribute.getName() + "; }");
+                 pw.println();
+             }
+             else if( (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) )
              {
                  pw.println("public void set" + this.initialCap(anAttribute.getName()) + "(List<" + anAttribute.getType() + ">" + " p" + this.initialCap(anAttribute.getName()) + ")");
                  pw.println("{ " + anAttribute.getName() + " = p" + this.initialCap(anAttribute.getName()) + ";");
@@ -950,7 +2445,7 @@ public class JavaGenerator extends Generator
                else
                {
                    ClassAttribute listAttribute = anAttribute.getDynamicListClassAttribute();
-                   pw.println("       dos.write" + capped + "( (" + marshalType + ")" + listAttribute.getName() + ".size());");
+                   pw.println("       dos.write" + capped + "( (" + marshalType + ")" + this.listLength(listAttribute) + ");");
                }
                 
             }
@@ -1001,7 +2496,7 @@ public class JavaGenerator extends Generator
             if( (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) )
             {
                 pw.println();
-                pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".size(); idx++)");
+                pw.println("       for(int idx = 0; idx < " + this.listLength(anAttribute) + "; idx++)");
                 pw.println("       {");
                 
                 // This is some sleaze. We're an array, but an array of what? We could be either a
@@ -1014,7 +2509,7 @@ public class JavaGenerator extends Generator
                 if(anAttribute.getUnderlyingTypeIsPrimitive())
                 {
                     String capped = this.initialCap(marshalType);
-                    pw.println("           dos.write" + capped + "(" + anAttribute.getName() + ");");
+                    pw.println("           dos.write" + capped + "(" + anAttribute.getName() + "[idx]);");
                 }
                 else
                 {
@@ -1120,8 +2615,22 @@ public class JavaGenerator extends Generator
             
             if( (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) )
             {
+                if(anAttribute.getUnderlyingTypeIsPrimitive())
+                {
+                    this.writeListArray(pw, aClass, anAttribute, false);
+                }
+                else
+                {
+                    this.writeListClear(pw, anAttribute, "       ");
+                }
                 pw.println("       for(int idx = 0; idx < " + anAttribute.getCountFieldName() + "; idx++)");
                 pw.println("       {");
+                if(anAttribute.getUnderlyingTypeIsPrimitive())
+                {
+                    // The array grows as entries arrive, since a stream's length is not known
+                    pw.println("           if(idx == " + anAttribute.getName() + ".length)");
+                    pw.println("               " + anAttribute.getName() + " = java.util.Arrays.copyOf(" + anAttribute.getName() + ", (int)Math.min(" + anAttribute.getCountFieldName() + ", 2L * idx));");
+                }
                 
                 // This is some sleaze. We're an array, but an array of what? We could be either a
                 // primitive or a class. We need to figure out which. This is done via the expedient
@@ -1132,14 +2641,15 @@ public class JavaGenerator extends Generator
                 
                 if(marshalType == null) // It's a class
                 {
-                    pw.println("           " + anAttribute.getType() + " anX = new " + anAttribute.getType() + "();");
+                    pw.println("           " + anAttribute.getType() + " anX = " + this.newInstance(anAttribute.getType()) + ";");
                     pw.println("           anX.unmarshal(dis);");
                     pw.println("           " + anAttribute.getName() + ".add(anX);");
                 }
                 else // It's a primitive
                 {
-                    String capped = this.initialCap(marshalType);
-                    pw.println("           dis.read" + capped + "(" + anAttribute.getName() + ");");
+                    String unmarshalType = unmarshalTypes.getProperty(anAttribute.getType());
+                    String cast = "(" + types.getProperty(anAttribute.getType()) + ")";
+                    pw.println("           " + anAttribute.getName() + "[idx] = " + cast + "dis.read" + this.initialCap(unmarshalType) + "();");
                 }
                 pw.println("       }");
                 pw.println();
@@ -1180,6 +2690,10 @@ public class JavaGenerator extends Generator
         {
             pw.println("       super.marshal(buff);");
         }
+        else
+        {
+            this.writeByteOrderAssertion(pw, "       ");
+        }
 
 
         //pw.println("    try \n    {");
@@ -1217,7 +2731,7 @@ public class JavaGenerator extends Generator
                {
                    ClassAttribute listAttribute = anAttribute.getDynamicListClassAttribute();
                    //pw.println("       dos.write" + capped + "( (" + marshalType + ")" + listAttribute.getName() + ".size());");
-                   pw.println("       buff.put" + capped + "( (" + marshalType + ")" + listAttribute.getName() + ".size());");
+                   pw.println("       buff.put" + capped + "( (" + marshalType + ")" + this.listLength(listAttribute) + ");");
                }
 
             }
@@ -1274,7 +2788,7 @@ public class JavaGenerator extends Generator
             if( (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) )
             {
                 pw.println();
-                pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".size(); idx++)");
+                pw.println("       for(int idx = 0; idx < " + this.listLength(anAttribute) + "; idx++)");
                 pw.println("       {");
 
                 // This is some sleaze. We're an array, but an array of what? We could be either a
@@ -1291,7 +2805,7 @@ public class JavaGenerator extends Generator
                         capped = "";    // ByteBuffer just uses put() for bytes
                     }
                     //pw.println("           dos.write" + capped + "(" + anAttribute.getName() + ");");
-                    pw.println("           buff.put" + capped + "(" + anAttribute.getName() + ");");
+                    pw.println("           buff.put" + capped + "((" + marshalType + ")" + anAttribute.getName() + "[idx]);");
                 }
                 else
                 {
@@ -1335,6 +2849,10 @@ public class JavaGenerator extends Generator
         {
             pw.println("       super.unmarshal(buff);\n");
         }
+        else
+        {
+            this.writeByteOrderAssertion(pw, "       ");
+        }
 
 
         //pw.println("    try \n    {");
@@ -1418,6 +2936,15 @@ public class JavaGenerator extends Generator
 
             if( (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) )
             {
+                this.writeListCountCheck(pw, aClass, anAttribute);
+                if(anAttribute.getUnderlyingTypeIsPrimitive())
+                {
+                    this.writeListArray(pw, aClass, anAttribute, true);
+                }
+                else
+                {
+                    this.writeListClear(pw, anAttribute, "       ");
+                }
                 pw.println("       for(int idx = 0; idx < " + anAttribute.getCountFieldName() + "; idx++)");
                 pw.println("       {");
 
@@ -1430,7 +2957,7 @@ public class JavaGenerator extends Generator
 
                 if(marshalType == null) // It's a class
                 {
-                    pw.println("            " + anAttribute.getType() + " anX = new " + anAttribute.getType() + "();");
+                    pw.println("            " + anAttribute.getType() + " anX = " + this.newInstance(anAttribute.getType()) + ";");
                     //pw.println("            anX.unmarshal(dis);");
                     pw.println("            anX.unmarshal(buff);");
                     pw.println("            " + anAttribute.getName() + ".add(anX);");
@@ -1441,8 +2968,13 @@ public class JavaGenerator extends Generator
                     if( capped.equals("Byte") ){
                         capped = "";
                     }
-                    //pw.println("           dis.read" + capped + "(" + anAttribute.getName() + ");");
-                    pw.println("           buff.get" + capped + "(" + anAttribute.getName() + ");");
+                    String unmarshalType = unmarshalTypes.getProperty(anAttribute.getType());
+                    if(unmarshalType.equalsIgnoreCase("UnsignedByte"))
+                        pw.println("           " + anAttribute.getName() + "[idx] = (short)(buff.get() & 0xFF);");
+                    else if(unmarshalType.equalsIgnoreCase("UnsignedShort"))
+                        pw.println("           " + anAttribute.getName() + "[idx] = (int)(buff.getShort() & 0xFFFF);");
+                    else
+                        pw.println("           " + anAttribute.getName() + "[idx] = buff.get" + capped + "();");
                 }
                 pw.println("       }");
                 pw.println();
@@ -1494,6 +3026,57 @@ public class JavaGenerator extends Generator
 
     }
     
+    /**
+     * Also placed in the {@link Pdu} class. Writes two methods that marshal for a socket
+     * write: one fills a buffer the caller keeps, typically a direct buffer allocated
+     * once, and one allocates a direct buffer of exactly the right size. Both set the
+     * buffer to network byte order and leave it flipped, so it can go straight to
+     * DatagramChannel.write() or send() with no copy.
+     *
+     * @param pw
+     * @param aClass
+     */
+    private void writeMarshalMethodToDirectBuffer(PrintWriter pw, GeneratedClass aClass)
+    {
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Marshals into a newly allocated direct ByteBuffer that holds exactly this Pdu.");
+        pw.println(" * The buffer is in network byte order and flipped, ready to write to a channel.");
+        pw.println(" * @return a direct ByteBuffer with the marshalled {@link Pdu}");
+        pw.println(" */");
+        pw.println("public java.nio.ByteBuffer marshalDirect()");
+        pw.println("{");
+        pw.println("    return marshalDirect(java.nio.ByteBuffer.allocateDirect(getMarshalledSize()));");
+        pw.println("}");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * Clears buff, sets it to network byte order, marshals into it from the start and");
+        pw.println(" * flips it, ready to write to a channel. Reusing one direct buffer this way sends");
+        pw.println(" * Pdus without allocating or copying.");
+        pw.println(" * @throws java.nio.BufferOverflowException if buff is too small");
+        pw.println(" * @param buff The buffer to marshal into, usually a direct buffer");
+        pw.println(" * @return buff");
+        pw.println(" */");
+        pw.println("public java.nio.ByteBuffer marshalDirect(java.nio.ByteBuffer buff)");
+        pw.println("{");
+        pw.println("    buff.clear();");
+        pw.println("    buff.order(java.nio.ByteOrder.BIG_ENDIAN);");
+        pw.println("    marshal(buff);");
+        pw.println("    buff.flip();");
+        pw.println("    return buff;");
+        pw.println("}");
+    }
+    
+    /**
+     * DIS is big endian on the wire. The ByteBuffer methods trust the caller's buffer,
+     * so with assertions enabled they check its order rather than silently writing
+     * little endian data. Only root classes check, since subclasses call super first.
+     */
+    private void writeByteOrderAssertion(PrintWriter pw, String indent)
+    {
+        pw.println(indent + "assert buff.order() == java.nio.ByteOrder.BIG_ENDIAN : \"buffer must be in network (big endian) byte order\";");
+    }
+    
   
     
     /**
@@ -1789,7 +3372,7 @@ public class JavaGenerator extends Generator
             if( (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) )
             {
                 pw.println();
-                pw.println("       for(int idx = 0; idx < " + anAttribute.getName() + ".size(); idx++)");
+                pw.println("       for(int idx = 0; idx < " + this.listLength(anAttribute) + "; idx++)");
                 pw.println("       {");
                 
                 // This is some sleaze. We're an array, but an array of what? We could be either a
@@ -1802,7 +3385,7 @@ public class JavaGenerator extends Generator
                 if(anAttribute.getUnderlyingTypeIsPrimitive())
                 {
                     String capped = this.initialCap(marshalType);
-                    pw.println("           dos.write" + capped + "(" + anAttribute.getName() + ");");
+                    pw.println("           dos.write" + capped + "(" + anAttribute.getName() + "[idx]);");
                 }
                 else
                 {
@@ -1925,7 +3508,13 @@ public class JavaGenerator extends Generator
 					pw.println();
 				}
 
-				if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) {
+				if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST
+						&& anAttribute.getUnderlyingTypeIsPrimitive()) {
+					pw.println();
+					pw.println("     if( ! (java.util.Arrays.equals(" + anAttribute.getName()
+							+ ", rhs." + anAttribute.getName() + "))) ivarsEqual = false;");
+					pw.println();
+				} else if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) {
 					pw.println();
 					pw.println("     for(int idx = 0; idx < "
 							+ anAttribute.getName() + ".size(); idx++)");
@@ -31,11 +31,16 @@ package edu.nps.moves.xmlpg;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * Generates Javascript source files that marshal and unmarshal to IEEE DIS.
@@ -68,17 +73,35 @@ public class JavascriptGenerator extends Generator
     /** sizes of various primitive types */
     Properties primitiveSizes = new Properties();
     
+    /** The DataView get and set method suffix for each primitive type. 64 bit integers
+     * have none; they are read and written as two 32 bit halves so they stay numbers.
+     */
+    Properties dataViewTypes = new Properties();
+    
+    /** If true, every class also gets decodeFromDataView(), encodeToDataView() and
+     * getMarshalledSize(), which read and write an ArrayBuffer through a DataView at offsets
+     * worked out at generation time, rather than going through InputStream and OutputStream.
+     * Set with dataViewCodecs="true" on the javascript element or -Dxmlpg.dataViewCodecs=true.
+     */
+    boolean dataViewCodecs = false;
+    
+    /** If true, each class is written as an ES module that imports the classes it uses and
+     * exports its constructor, instead of a script adding it to the namespace object, and
+     * PduFactory.js is written to load PDU classes as they are needed. Set with
+     * esModules="true" on the javascript element or -Dxmlpg.esModules=true.
+     */
+    boolean esModules = false;
+    
     
     public JavascriptGenerator(HashMap pClassDescriptions, Properties pJavascriptProperties)
     {
         super(pClassDescriptions, pJavascriptProperties);
         this.javascriptProperties = pJavascriptProperties;
 
-        Properties systemProperties = System.getProperties();
         //System.out.println("System properties:" + systemProperties);
         //System.out.println("Javascript properties: " + pJavascriptProperties);
         namespace = javascriptProperties.getProperty("namespace");
-        super.setDirectory(systemProperties.getProperty("xmlpg.generatedSourceDir"));
+        super.setDirectory(this.getCommandLineProperty("generatedSourceDir"));
         
         //super.setDirectory("javascript/dis");
         //System.out.println("Destination directory: " + pJavascriptProperties.getProperty("xmlpg.generatedSourceDir"));
@@ -169,6 +192,20 @@ public class JavascriptGenerator extends Generator
         unmarshalTypes.setProperty("double", "float64");
         unmarshalTypes.setProperty("float", "float32");
         
+        dataViewTypes.setProperty("unsigned short", "Uint16");
+        dataViewTypes.setProperty("unsigned byte", "Uint8");
+        dataViewTypes.setProperty("unsigned int", "Uint32");
+        
+        dataViewTypes.setProperty("byte", "Int8");
+        dataViewTypes.setProperty("short", "Int16");
+        dataViewTypes.setProperty("int", "Int32");
+        
+        dataViewTypes.setProperty("double", "Float64");
+        dataViewTypes.setProperty("float", "Float32");
+        
+        dataViewCodecs = this.getBooleanOption("dataViewCodecs");
+        esModules = this.getBooleanOption("esModules");
+        
         // How big various primitive types are
         primitiveSizes.setProperty("unsigned short", "2");
         primitiveSizes.setProperty("unsigned byte", "1");
@@ -193,49 +230,18 @@ public class JavascriptGenerator extends Generator
 
         this.createDirectory();
         
-        Iterator it = classDescriptions.values().iterator();
+        this.forEachClass(classDescriptions.values(), new ClassEmitter()
+        {
+            public void emit(GeneratedClass aClass)
+            {
+                writeClassFile(aClass);
+            }
+        });
         
-        while(it.hasNext())
+        if(esModules)
         {
-            try
-           {
-              GeneratedClass aClass = (GeneratedClass)it.next();
-              String name = aClass.getName();
-              
-              // Create package structure, if any
-              String pack = languageProperties.getProperty("namespace");
-              String fullPath;
-              
-              // If we have a package specified, replace the dots in the package name (edu.nps.moves.dis)
-              // with slashes (edu/nps/moves/dis and create that directory
-              if(pack != null)
-              {
-                  pack = pack.replace(".", "/");
-                  fullPath = getDirectory() + "/" + name + ".js";
-                  //System.out.println("full path is " + fullPath);
-              }
-              else
-             {
-                   fullPath = getDirectory() + "/" + name + ".js";
-             }
-             //System.out.println("Creating Javascript source code file for " + fullPath);
-              
-              // Create the new, empty file, and create printwriter object for output to it
-              File outputFile = new File(fullPath);
-              outputFile.getParentFile().mkdirs();
-              outputFile.createNewFile();
-              PrintWriter pw = new PrintWriter(outputFile);
-              
-              // print the source code of the class to the file
-              this.writeClass(pw, aClass);
-           }
-           catch(Exception e)
-           {
-               System.out.println("error creating source code " + e);
-               e.printStackTrace();
-           }
-            
-        } // End while
+            this.writePduFactory();
+        }
         
         // Write out a require.js exports file. This is later incorporated
         // into the dis.js file via ant.
@@ -246,8 +252,7 @@ public class JavascriptGenerator extends Generator
             String fullPath = getDirectory() + "/exports.js";
             File outputFile = new File(fullPath);
             outputFile.getParentFile().mkdirs();
-            outputFile.createNewFile();
-            PrintWriter pw = new PrintWriter(outputFile);
+            PrintWriter pw = this.openOutputFile(outputFile);
             
             pw.println();
             pw.println("// Exports for the dis module, used in require.js");
@@ -271,6 +276,49 @@ public class JavascriptGenerator extends Generator
     
     } // End write classes
     
+    /**
+     * Works out the path of the javascript file for one class, then writes the
+     * class to it. Called once per class, possibly from several threads at once.
+     */
+    private void writeClassFile(GeneratedClass aClass)
+    {
+        try
+        {
+            String name = aClass.getName();
+              
+            // Create package structure, if any
+            String pack = languageProperties.getProperty("namespace");
+            String fullPath;
+              
+            // If we have a package specified, replace the dots in the package name (edu.nps.moves.dis)
+            // with slashes (edu/nps/moves/dis and create that directory
+            if(pack != null)
+            {
+                pack = pack.replace(".", "/");
+                fullPath = getDirectory() + "/" + name + ".js";
+                //System.out.println("full path is " + fullPath);
+            }
+            else
+            {
+                fullPath = getDirectory() + "/" + name + ".js";
+            }
+            //System.out.println("Creating Javascript source code file for " + fullPath);
+              
+            // Create the new, empty file, and create printwriter object for output to it
+            File outputFile = new File(fullPath);
+            outputFile.getParentFile().mkdirs();
+            PrintWriter pw = this.openOutputFile(outputFile);
+              
+            // print the source code of the class to the file
+            this.writeClass(pw, aClass);
+        }
+        catch(Exception e)
+        {
+            System.out.println("error creating source code " + e);
+            e.printStackTrace();
+        }
+    }
+    
     /**
      * Generate a source code file with a psuedo-classical constructor. 
      * No getters or setters; that's sorta not the style in javascript.
@@ -286,6 +334,12 @@ public class JavascriptGenerator extends Generator
         
         this.writeDecoder(pw, aClass);
         this.writeEncoder(pw, aClass);
+        if(dataViewCodecs)
+        {
+            this.writeDataViewCodec(pw, aClass, true);
+            this.writeDataViewCodec(pw, aClass, false);
+            this.writeGetMarshalledSize(pw, aClass);
+        }
         pw.flush();
         
         this.writeFlagMethods(pw, aClass);
@@ -294,7 +348,12 @@ public class JavascriptGenerator extends Generator
         pw.println("}; // end of class");
         pw.println();
         
-        this.writeNodeJsExports(pw, aClass);
+        this.writeLayoutConstants(pw, aClass);
+        
+        if(!esModules)
+        {
+            this.writeNodeJsExports(pw, aClass);
+        }
         
         pw.println("// End of " + aClass.getName() + " class");
         pw.println();
@@ -302,6 +361,37 @@ public class JavascriptGenerator extends Generator
         pw.close();
     }
     
+    /**
+     * Writes constants for the marshalled size of the class and the byte offsets of its
+     * fields, as properties of the constructor. MARSHALLED_SIZE is -1 if the size depends
+     * on the contents, and offsets are only written for fields whose position does not.
+     */
+    private void writeLayoutConstants(PrintWriter pw, GeneratedClass aClass)
+    {
+        List ivars = aClass.getClassAttributes();
+        String className = this.getClassReference(aClass.getName());
+        
+        pw.println("// Size in bytes of a marshalled " + aClass.getName() + ", or -1 if it depends on the contents");
+        pw.println(className + ".MARSHALLED_SIZE = " + this.getFixedSize(aClass) + ";");
+        
+        boolean first = true;
+        for(int idx = 0; idx < ivars.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+            int offset = this.getFixedOffset(aClass, anAttribute);
+            if(anAttribute.shouldSerialize == false || offset < 0)
+                continue;
+            
+            if(first)
+            {
+                pw.println("// Byte offsets of the fields from the start of a marshalled " + aClass.getName());
+                first = false;
+            }
+            pw.println(className + ".OFFSET_" + this.getConstantName(anAttribute.getName()) + " = " + offset + ";");
+        }
+        pw.println();
+    }
+    
     /**
      * Write nodejs exports module to make functions available
      * @param pw
@@ -348,7 +438,7 @@ public class JavascriptGenerator extends Generator
         // Start writing the function
         pw.println();
         //pw.println("  " + aClass.getName()+ ".prototype. encodeToBinary = function(outputStream)");
-        pw.println("  " + namespace + "." + aClass.getName()+ ".prototype.encodeToBinary = function(outputStream)");
+        pw.println("  " + this.getClassReference(aClass.getName())+ ".prototype.encodeToBinary = function(outputStream)");
         pw.println("  {");
         
         for(int idx = 0; idx < allAttributes.size(); idx++)
@@ -469,7 +559,7 @@ public class JavascriptGenerator extends Generator
         }
                 
         //pw.println("  this.initFromBinary = function(inputStream)");
-        pw.println("  " + namespace + "." + aClass.getName() + ".prototype.initFromBinary = function(inputStream)");
+        pw.println("  " + this.getClassReference(aClass.getName()) + ".prototype.initFromBinary = function(inputStream)");
         pw.println("  {");
         
         for(int idx = 0; idx < allAttributes.size(); idx++)
@@ -547,7 +637,7 @@ public class JavascriptGenerator extends Generator
                 
                 if(marshalType == null) // It's a class
                 {
-                    pw.println("           var anX = new " + namespace + "." + anAttribute.getType() + "();");
+                    pw.println("           var anX = new " + this.getClassReference(anAttribute.getType()) + "();");
                     pw.println("           anX.initFromBinary(inputStream);");
                     pw.println("           this." + anAttribute.getName() + ".push(anX);");
                 }
@@ -565,6 +655,314 @@ public class JavascriptGenerator extends Generator
     }
     
     
+    /**
+     * Returns the attributes of a class and all its superclasses, in the order they are
+     * marshalled.
+     */
+    private List getAllAttributes(GeneratedClass aClass)
+    {
+        List allAttributes = new ArrayList();
+        GeneratedClass parent = (GeneratedClass)classDescriptions.get(aClass.getParentClass());
+        if(parent != null)
+        {
+            allAttributes.addAll(this.getAllAttributes(parent));
+        }
+        allAttributes.addAll(aClass.getClassAttributes());
+        return allAttributes;
+    }
+    
+    /**
+     * Writes decodeFromDataView(dataView, byteOffset) or encodeToDataView(dataView, byteOffset).
+     * Both return the offset just past the object. Fields are read and written with the
+     * DataView's big endian accessors at a constant distance from pos, which only moves
+     * on past something whose size depends on its contents. Fixed lists of bytes are
+     * copied in one go through a typed array over the same buffer; wider types are left
+     * to the DataView, as typed arrays use the host's byte order.
+     */
+    private void writeDataViewCodec(PrintWriter pw, GeneratedClass aClass, boolean decode)
+    {
+        List allAttributes = this.getAllAttributes(aClass);
+        String function = decode ? "decodeFromDataView" : "encodeToDataView";
+        int constant = 0;
+        
+        pw.println();
+        pw.println("  /**");
+        if(decode)
+            pw.println("   * Reads the object from the DataView at byteOffset. Returns the offset just past it.");
+        else
+            pw.println("   * Writes the object into the DataView at byteOffset, which must have getMarshalledSize() bytes free. Returns the offset just past it.");
+        pw.println("   */");
+        pw.println("  " + this.getClassReference(aClass.getName()) + ".prototype." + function + " = function(dataView, byteOffset)");
+        pw.println("  {");
+        pw.println("       var pos = byteOffset;");
+        
+        for(int idx = 0; idx < allAttributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)allAttributes.get(idx);
+            String ivar = "this." + anAttribute.getName();
+            String offset = constant == 0 ? "pos" : "pos + " + constant;
+            
+            if(anAttribute.shouldSerialize == false)
+            {
+                pw.println("       // attribute " + anAttribute.getName() + " marked as not serialized");
+                continue;
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+            {
+                String value = ivar;
+                if(!decode && anAttribute.getIsDynamicListLengthField())
+                {
+                    value = "this." + anAttribute.getDynamicListClassAttribute().getName() + ".length";
+                }
+                
+                if(decode)
+                    pw.println("       " + ivar + " = " + this.getDataViewRead(anAttribute.getType(), offset) + ";");
+                else
+                    pw.println("       " + this.getDataViewWrite(anAttribute.getType(), offset, value) + ";");
+                constant += getPrimitiveSize(anAttribute.getType());
+                continue;
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+            {
+                int size = this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+                if(size >= 0)
+                {
+                    pw.println("       " + ivar + "." + function + "(dataView, " + offset + ");");
+                    constant += size;
+                }
+                else
+                {
+                    constant = this.moveDataViewPosition(pw, constant);
+                    pw.println("       pos = " + ivar + "." + function + "(dataView, pos);");
+                }
+                continue;
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST && anAttribute.getUnderlyingTypeIsPrimitive())
+            {
+                int size = getPrimitiveSize(anAttribute.getType());
+                int length = anAttribute.getListLength();
+                
+                if(size == 1)
+                {
+                    String arrayType = dataViewTypes.getProperty(anAttribute.getType()) + "Array";
+                    String view = "new " + arrayType + "(dataView.buffer, dataView.byteOffset + " + offset + ", " + length + ")";
+                    if(decode)
+                    {
+                        pw.println("       if(!(" + ivar + " instanceof " + arrayType + ") || " + ivar + ".length !== " + length + ")");
+                        pw.println("           " + ivar + " = new " + arrayType + "(" + length + ");");
+                        pw.println("       " + ivar + ".set(" + view + ");");
+                    }
+                    else
+                    {
+                        pw.println("       " + view + ".set(" + ivar + ");");
+                    }
+                }
+                else
+                {
+                    String elementOffset = offset + " + idx * " + size;
+                    if(decode)
+                    {
+                        pw.println("       if(" + ivar + " === undefined)");
+                        pw.println("           " + ivar + " = new Array(" + length + ");");
+                    }
+                    pw.println("       for(var idx = 0; idx < " + length + "; idx++)");
+                    pw.println("       {");
+                    if(decode)
+                        pw.println("          " + ivar + "[idx] = " + this.getDataViewRead(anAttribute.getType(), elementOffset) + ";");
+                    else
+                        pw.println("          " + this.getDataViewWrite(anAttribute.getType(), elementOffset, ivar + "[idx]") + ";");
+                    pw.println("       }");
+                }
+                constant += size * length;
+                continue;
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+            {
+                int size = this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+                if(size < 0)
+                {
+                    constant = this.moveDataViewPosition(pw, constant);
+                    offset = "pos";
+                }
+                
+                pw.println("       for(var idx = 0; idx < " + anAttribute.getListLength() + "; idx++)");
+                pw.println("       {");
+                if(decode)
+                {
+                    pw.println("          if(" + ivar + "[idx] === undefined)");
+                    pw.println("              " + ivar + "[idx] = new " + this.getClassReference(anAttribute.getType()) + "();");
+                }
+                if(size >= 0)
+                    pw.println("          " + ivar + "[idx]." + function + "(dataView, " + offset + " + idx * " + size + ");");
+                else
+                    pw.println("          pos = " + ivar + "[idx]." + function + "(dataView, pos);");
+                pw.println("       }");
+                
+                if(size >= 0)
+                    constant += size * anAttribute.getListLength();
+                continue;
+            }
+            
+            // Variable list. Everything after it is at an offset that depends on its length.
+            constant = this.moveDataViewPosition(pw, constant);
+            String count = decode ? "this." + anAttribute.getCountFieldName() : ivar + ".length";
+            
+            // A count that is negative, or more than the bytes left could hold, is a bad message
+            if(decode)
+            {
+                int minSize = anAttribute.getUnderlyingTypeIsPrimitive() ? getPrimitiveSize(anAttribute.getType()) :
+                    this.getMinimumSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+                String check = count + " < 0";
+                if(minSize > 0)
+                    check = check + " || " + count + " > (dataView.byteLength - pos) / " + minSize;
+                pw.println("       if(" + check + ")");
+                pw.println("           throw new RangeError(\"" + anAttribute.getCountFieldName() + " of \" + " + count + " + \" does not fit the data\");");
+            }
+            pw.println("       for(var idx = 0; idx < " + count + "; idx++)");
+            pw.println("       {");
+            if(anAttribute.getUnderlyingTypeIsPrimitive())
+            {
+                if(decode)
+                    pw.println("          " + ivar + "[idx] = " + this.getDataViewRead(anAttribute.getType(), "pos") + ";");
+                else
+                    pw.println("          " + this.getDataViewWrite(anAttribute.getType(), "pos", ivar + "[idx]") + ";");
+                pw.println("          pos += " + getPrimitiveSize(anAttribute.getType()) + ";");
+            }
+            else
+            {
+                // Objects already in the list are decoded into rather than replaced
+                if(decode)
+                {
+                    pw.println("          if(idx === " + ivar + ".length)");
+                    pw.println("              " + ivar + ".push(new " + this.getClassReference(anAttribute.getType()) + "());");
+                }
+                pw.println("          pos = " + ivar + "[idx]." + function + "(dataView, pos);");
+            }
+            pw.println("       }");
+            if(decode)
+                pw.println("       " + ivar + ".length = " + count + ";");
+        }
+        
+        this.moveDataViewPosition(pw, constant);
+        pw.println("       return pos;");
+        pw.println("  };");
+    }
+    
+    /**
+     * Writes the statement moving pos past the fields at constant offsets from it, if there
+     * are any. Returns the new distance from pos, which is always 0.
+     */
+    private int moveDataViewPosition(PrintWriter pw, int constant)
+    {
+        if(constant > 0)
+        {
+            pw.println("       pos += " + constant + ";");
+        }
+        return 0;
+    }
+    
+    /**
+     * Returns an expression reading a primitive from the DataView at offset
+     */
+    private String getDataViewRead(String xmlType, String offset)
+    {
+        String method = dataViewTypes.getProperty(xmlType);
+        if(method != null)
+        {
+            return "dataView.get" + method + "(" + offset + ")";
+        }
+        
+        // 64 bit integers, as a BigInt so no bits are lost
+        String method64 = xmlType.startsWith("unsigned") ? "getBigUint64" : "getBigInt64";
+        return "dataView." + method64 + "(" + offset + ")";
+    }
+    
+    /**
+     * Returns a statement writing a primitive to the DataView at offset
+     */
+    private String getDataViewWrite(String xmlType, String offset, String value)
+    {
+        String method = dataViewTypes.getProperty(xmlType);
+        if(method != null)
+        {
+            return "dataView.set" + method + "(" + offset + ", " + value + ")";
+        }
+        
+        // 64 bit integers, from a BigInt or a whole number
+        String method64 = xmlType.startsWith("unsigned") ? "setBigUint64" : "setBigInt64";
+        return "dataView." + method64 + "(" + offset + ", BigInt(" + value + "))";
+    }
+    
+    /**
+     * Writes getMarshalledSize(), so an ArrayBuffer of the right size can be made
+     * before calling encodeToDataView().
+     */
+    private void writeGetMarshalledSize(PrintWriter pw, GeneratedClass aClass)
+    {
+        pw.println();
+        pw.println("  " + this.getClassReference(aClass.getName()) + ".prototype.getMarshalledSize = function()");
+        pw.println("  {");
+        
+        if(this.getFixedSize(aClass) >= 0)
+        {
+            pw.println("       return " + this.getClassReference(aClass.getName()) + ".MARSHALLED_SIZE;");
+            pw.println("  };");
+            return;
+        }
+        
+        List allAttributes = this.getAllAttributes(aClass);
+        int constant = 0;
+        List terms = new ArrayList();
+        
+        for(int idx = 0; idx < allAttributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)allAttributes.get(idx);
+            String ivar = "this." + anAttribute.getName();
+            int fixed = this.getFixedSize(anAttribute);
+            
+            if(anAttribute.shouldSerialize == false)
+                continue;
+            
+            if(fixed >= 0)
+            {
+                constant += fixed;
+            }
+            else if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+            {
+                terms.add("       size += " + ivar + ".getMarshalledSize();");
+            }
+            else if(anAttribute.getUnderlyingTypeIsPrimitive())
+            {
+                terms.add("       size += " + ivar + ".length * " + getPrimitiveSize(anAttribute.getType()) + ";");
+            }
+            else
+            {
+                int elementSize = this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+                if(elementSize >= 0)
+                {
+                    terms.add("       size += " + ivar + ".length * " + elementSize + ";");
+                }
+                else
+                {
+                    terms.add("       for(var idx = 0; idx < " + ivar + ".length; idx++)");
+                    terms.add("          size += " + ivar + "[idx].getMarshalledSize();");
+                }
+            }
+        }
+        
+        pw.println("       var size = " + constant + ";");
+        for(int idx = 0; idx < terms.size(); idx++)
+        {
+            pw.println((String)terms.get(idx));
+        }
+        pw.println("       return size;");
+        pw.println("  };");
+    }
+    
     private void writeClassComments(PrintWriter pw, GeneratedClass aClass)
     {
          // Print class comments header
@@ -591,6 +989,12 @@ public class JavascriptGenerator extends Generator
      */
     private void writeClassDeclaration(PrintWriter pw, GeneratedClass aClass)
     {
+        if(esModules)
+        {
+            this.writeModuleDeclaration(pw, aClass);
+            return;
+        }
+        
         pw.println("// On the client side, support for a  namespace.");
         pw.println("if (typeof " + namespace +  " === \"undefined\")\n " +  namespace + " = {};\n");
         pw.println();
@@ -603,6 +1007,216 @@ public class JavascriptGenerator extends Generator
          pw.println("{");
     }
     
+    /**
+     * Writes the imports of the classes this one creates, including those its superclasses
+     * hold, followed by the exported constructor.
+     */
+    private void writeModuleDeclaration(PrintWriter pw, GeneratedClass aClass)
+    {
+        Set imports = new TreeSet();
+        List allAttributes = this.getAllAttributes(aClass);
+        for(int idx = 0; idx < allAttributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)allAttributes.get(idx);
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE || anAttribute.getUnderlyingTypeIsPrimitive())
+                continue;
+            imports.add(anAttribute.getType());
+        }
+        imports.remove(aClass.getName());
+        
+        Iterator it = imports.iterator();
+        while(it.hasNext())
+        {
+            String className = (String)it.next();
+            pw.println("import { " + className + " } from \"./" + className + ".js\";");
+        }
+        pw.println();
+        
+        pw.println("export function " + aClass.getName() + "()");
+        pw.println("{");
+    }
+    
+    /**
+     * Returns how generated code refers to a class: through the namespace object, or
+     * by its imported name when writing ES modules.
+     */
+    private String getClassReference(String className)
+    {
+        if(esModules)
+        {
+            return className;
+        }
+        return namespace + "." + className;
+    }
+    
+    /**
+     * Writes PduFactory.js, the table from pduType to PDU class used with ES modules.
+     * Classes named in the eagerPdus option are imported up front. The rest are loaded with
+     * a dynamic import() the first time their type is asked for, so a bundler can split
+     * them out and a client only parses the PDUs it receives.
+     */
+    private void writePduFactory()
+    {
+        TreeMap pduTypes = this.getPduTypes();
+        GeneratedClass baseClass = this.getPduBaseClass(pduTypes);
+        if(baseClass == null)
+        {
+            if(!pduTypes.isEmpty())
+                System.out.println("PDU classes do not share a pduType attribute; no PduFactory written");
+            return;
+        }
+        
+        ClassAttribute pduTypeAttribute = this.getAttribute(baseClass, "pduType");
+        int pduTypeOffset = this.getFixedOffset(baseClass, pduTypeAttribute);
+        if(pduTypeOffset < 0)
+        {
+            System.out.println("pduType is not at a fixed offset in " + baseClass.getName() + "; no PduFactory written");
+            return;
+        }
+        
+        Set eager = new HashSet();
+        String eagerPdus = this.getOption("eagerPdus");
+        if(eagerPdus != null)
+        {
+            String[] names = eagerPdus.split(",");
+            for(int idx = 0; idx < names.length; idx++)
+            {
+                String name = names[idx].trim();
+                if(name.length() == 0)
+                    continue;
+                if(!pduTypes.containsValue(classDescriptions.get(name)))
+                {
+                    System.out.println("eagerPdus names " + name + ", which is not a PDU class; ignored");
+                    continue;
+                }
+                eager.add(name);
+            }
+        }
+        
+        try
+        {
+            File outputFile = new File(getDirectory() + "/PduFactory.js");
+            outputFile.getParentFile().mkdirs();
+            PrintWriter pw = this.openOutputFile(outputFile);
+            
+            pw.println("/**");
+            pw.println(" * Creates PDUs by their pduType field. PDU classes are loaded the first time their type");
+            pw.println(" * is asked for, apart from those imported below, which are always available.");
+            pw.println(" *");
+            pw.println(" * Generated by xmlpg from the pduType initial values in the XML file.");
+            pw.println(" */");
+            
+            Iterator it = pduTypes.values().iterator();
+            while(it.hasNext())
+            {
+                String name = ((GeneratedClass)it.next()).getName();
+                if(eager.contains(name))
+                    pw.println("import { " + name + " } from \"./" + name + ".js\";");
+            }
+            pw.println();
+            
+            pw.println("/** Offset of the pduType field from the start of a marshalled PDU */");
+            pw.println("export const PDU_TYPE_OFFSET = " + pduTypeOffset + ";");
+            pw.println();
+            
+            pw.println("// PDU constructors indexed by pduType, filled in as their modules load");
+            pw.println("var pduClasses = [];");
+            it = pduTypes.entrySet().iterator();
+            while(it.hasNext())
+            {
+                Map.Entry entry = (Map.Entry)it.next();
+                String name = ((GeneratedClass)entry.getValue()).getName();
+                if(eager.contains(name))
+                    pw.println("pduClasses[" + entry.getKey() + "] = " + name + ";");
+            }
+            pw.println();
+            
+            pw.println("// Loaders for the modules of the other PDUs, indexed by pduType");
+            pw.println("var pduLoaders = [];");
+            it = pduTypes.entrySet().iterator();
+            while(it.hasNext())
+            {
+                Map.Entry entry = (Map.Entry)it.next();
+                String name = ((GeneratedClass)entry.getValue()).getName();
+                if(!eager.contains(name))
+                    pw.println("pduLoaders[" + entry.getKey() + "] = function() { return import(\"./" + name + ".js\").then(function(module) { return module." + name + "; }); };");
+            }
+            pw.println();
+            
+            pw.println("/**");
+            pw.println(" * Returns the constructor for this pduType if it has been loaded, otherwise undefined.");
+            pw.println(" */");
+            pw.println("export function getPduClass(pduType)");
+            pw.println("{");
+            pw.println("   return pduClasses[pduType];");
+            pw.println("}");
+            pw.println();
+            
+            pw.println("/**");
+            pw.println(" * Returns a promise of the constructor for this pduType, loading its module if it has");
+            pw.println(" * not been already. The promise is of undefined if the type is unknown.");
+            pw.println(" */");
+            pw.println("export function loadPduClass(pduType)");
+            pw.println("{");
+            pw.println("   if(pduClasses[pduType] !== undefined)");
+            pw.println("      return Promise.resolve(pduClasses[pduType]);");
+            pw.println("   if(pduLoaders[pduType] === undefined)");
+            pw.println("      return Promise.resolve(undefined);");
+            pw.println("   return pduLoaders[pduType]().then(function(pduClass)");
+            pw.println("   {");
+            pw.println("      pduClasses[pduType] = pduClass;");
+            pw.println("      return pduClass;");
+            pw.println("   });");
+            pw.println("}");
+            pw.println();
+            
+            pw.println("/**");
+            pw.println(" * Returns a promise of a new PDU of the class for this pduType, or of undefined if the type is unknown.");
+            pw.println(" */");
+            pw.println("export function createPdu(pduType)");
+            pw.println("{");
+            pw.println("   return loadPduClass(pduType).then(function(pduClass)");
+            pw.println("   {");
+            pw.println("      return pduClass === undefined ? undefined : new pduClass();");
+            pw.println("   });");
+            pw.println("}");
+            pw.println();
+            
+            pw.println("/**");
+            pw.println(" * Returns the pduType of the PDU at byteOffset in the DataView.");
+            pw.println(" */");
+            pw.println("export function getPduType(dataView, byteOffset)");
+            pw.println("{");
+            pw.println("   return " + this.getDataViewRead(pduTypeAttribute.getType(), "byteOffset + PDU_TYPE_OFFSET") + ";");
+            pw.println("}");
+            
+            if(dataViewCodecs)
+            {
+                pw.println();
+                pw.println("/**");
+                pw.println(" * Returns a promise of a new PDU decoded from byteOffset in the DataView, or of");
+                pw.println(" * undefined if its type is unknown.");
+                pw.println(" */");
+                pw.println("export function decodePdu(dataView, byteOffset)");
+                pw.println("{");
+                pw.println("   return createPdu(getPduType(dataView, byteOffset)).then(function(pdu)");
+                pw.println("   {");
+                pw.println("      if(pdu !== undefined)");
+                pw.println("         pdu.decodeFromDataView(dataView, byteOffset);");
+                pw.println("      return pdu;");
+                pw.println("   });");
+                pw.println("}");
+            }
+            
+            pw.flush();
+            pw.close();
+        }
+        catch(Exception e)
+        {
+            System.out.println("error creating source code " + e);
+        }
+    }
+    
     /**
      * Some fields have integers with bit fields defined, eg an integer where 
      * bits 0-2 represent some value, while bits 3-4 represent another value, 
@@ -640,7 +1254,7 @@ public class JavascriptGenerator extends Generator
                         {
                             pw.println("/** " + bitfield.comment + " */");
                         }
-                        pw.println("" + namespace + "." + aClass.getName() + ".prototype.get" + methodBase + " = function()");
+                        pw.println(this.getClassReference(aClass.getName()) + ".prototype.get" + methodBase + " = function()");
                         pw.println("{");
                         
                         pw.println("   var val = this." + bitfield.parentAttribute.getName() + " & " + bitfield.mask + ";");
@@ -656,7 +1270,7 @@ public class JavascriptGenerator extends Generator
                         {
                             pw.println("/** " + bitfield.comment +  " */");
                         }
-                        pw.println("" + namespace + "." + aClass.getName() + ".prototype.set" + methodBase + "= function(val)");
+                        pw.println(this.getClassReference(aClass.getName()) + ".prototype.set" + methodBase + "= function(val)");
                         pw.println("{");
                         //pw.println("  var aVal = 0;");
                         pw.println("  this." + bitfield.parentAttribute.getName() + " &= ~" + bitfield.mask + "; // Zero existing bits");
@@ -749,7 +1363,7 @@ public class JavascriptGenerator extends Generator
                     pw.println("   /** " + anAttribute.getComment() + " */");
                 }
                 
-                pw.println( "   this." + anAttribute.getName() + " = new " + namespace + "." + attributeType + "(); \n");
+                pw.println( "   this." + anAttribute.getName() + " = new " + this.getClassReference(attributeType) + "(); \n");
             }
         
             // The attribute is a fixed list, ie an array of some type--maybe primitve, maybe a class.
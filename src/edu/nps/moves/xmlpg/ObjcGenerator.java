@@ -39,12 +39,21 @@ public class ObjcGenerator extends Generator
         */
     Properties objcProperties;
 
+    /** Maps the primitive types listed in the XML file to the fixed width C types used in structs */
+    Properties structTypes = new Properties();
+
+    /** If true, each class keeps its fields in a plain C struct, with C arrays for lists,
+     * and its properties are accessors onto the struct. The structs are marshalled to and
+     * from bytes by C functions that allocate nothing for a list that has room already.
+     * Set with cStructs="true" on the objc element or -Dxmlpg.cStructs=true.
+     */
+    boolean cStructs = false;
+
     public ObjcGenerator(HashMap pClassDescriptions, Properties pObjcProperties)
     {
         super(pClassDescriptions, pObjcProperties);
 
-        Properties systemProperties = System.getProperties();
-        String clDirectory = systemProperties.getProperty("xmlpg.generatedSourceDir");
+        String clDirectory = this.getCommandLineProperty("generatedSourceDir");
 
         // Directory to place generated source code
         if(clDirectory != null)
@@ -99,6 +108,20 @@ public class ObjcGenerator extends Generator
         primitiveSizes.setProperty("double", "8");
         primitiveSizes.setProperty("float", "4");
 
+        structTypes.setProperty("unsigned short", "uint16_t");
+        structTypes.setProperty("unsigned byte", "uint8_t");
+        structTypes.setProperty("unsigned int", "uint32_t");
+        structTypes.setProperty("unsigned long", "uint64_t");
+
+        structTypes.setProperty("byte", "int8_t");
+        structTypes.setProperty("short", "int16_t");
+        structTypes.setProperty("int", "int32_t");
+        structTypes.setProperty("long", "int64_t");
+
+        structTypes.setProperty("double", "double");
+        structTypes.setProperty("float", "float");
+
+        cStructs = this.getBooleanOption("cStructs");
     }
 
     /**
@@ -108,24 +131,34 @@ public class ObjcGenerator extends Generator
     {
         this.createDirectory();
         
-        Iterator it = classDescriptions.values().iterator();
-
-        // Loop through all the class descriptions, generating a header file and cpp file for each.
-        while(it.hasNext())
+        if(cStructs)
+            this.writeStructSupportFile();
+        
+        // Loop through all the class descriptions, generating a header file and .m file for each.
+        this.forEachClass(classDescriptions.values(), new ClassEmitter()
         {
-            try
-           {
-              GeneratedClass aClass = (GeneratedClass)it.next();
-			  // System.out.println("Generating class " + aClass.getName());
-              this.writeHeaderFile(aClass);
-              this.writeObjcFile(aClass);
-           }
-           catch(Exception e)
-           {
-                System.out.println("error creating source code " + e);
-           }
-
-        } // End while
+            public void emit(GeneratedClass aClass)
+            {
+                try
+                {
+                    // System.out.println("Generating class " + aClass.getName());
+                    if(cStructs)
+                    {
+                        writeStructHeaderFile(aClass);
+                        writeStructObjcFile(aClass);
+                    }
+                    else
+                    {
+                        writeHeaderFile(aClass);
+                        writeObjcFile(aClass);
+                    }
+                }
+                catch(Exception e)
+                {
+                    System.out.println("error creating source code " + e);
+                }
+            }
+        });
 
     }
 
@@ -141,8 +174,7 @@ public void writeHeaderFile(GeneratedClass aClass)
         //System.out.println("Creating cpp and .h source code files for " + name);
         String headerFullPath = getDirectory() + "/" + name + ".h";
         File outputFile = new File(headerFullPath);
-        outputFile.createNewFile();
-        PrintWriter pw = new PrintWriter(outputFile);
+        PrintWriter pw = this.openOutputFile(outputFile);
 
         // Write includes for any classes we may reference. this generates multiple #includes if we
         // use a class multiple times, but that's innocuous. We could sort and do a unqiue to prevent
@@ -193,6 +225,8 @@ public void writeHeaderFile(GeneratedClass aClass)
             pw.println();
         }
 
+        this.writeLayoutConstants(pw, aClass);
+
          // Print out class header and ivars
 
         if(aClass.getParentClass().equalsIgnoreCase("root"))
@@ -318,8 +352,7 @@ public void writeObjcFile(GeneratedClass aClass)
         System.out.println("Creating Objc .m and .h source code files for " + name);
         String headerFullPath = getDirectory() + "/" + name + ".m";
         File outputFile = new File(headerFullPath);
-        outputFile.createNewFile();
-        PrintWriter pw = new PrintWriter(outputFile);
+        PrintWriter pw = this.openOutputFile(outputFile);
 
         pw.println("#import \"" + aClass.getName() + ".h\" ");
         pw.println();
@@ -772,6 +805,38 @@ private void writeInitializer(PrintWriter pw, GeneratedClass aClass)
     pw.println("}\n");
 }
 
+/**
+ * Writes constants for the marshalled size of the class and the byte offsets of its
+ * fields, worked out from the attribute list. The size is -1 if it depends on the
+ * contents, and offsets are only written for fields whose position does not. Objective-C
+ * classes have no class constants, so these are an enum named after the class.
+ */
+public void writeLayoutConstants(PrintWriter pw, GeneratedClass aClass)
+{
+    List ivars = aClass.getClassAttributes();
+    String name = aClass.getName();
+
+    pw.println("// Size in bytes of a marshalled " + name + ", or -1 if it depends on the contents,");
+    pw.println("// and the byte offsets of its fields from the start of a marshalled " + name);
+    pw.println("enum");
+    pw.println("{");
+    pw.print("    " + name + "MarshalledSize = " + this.getFixedSize(aClass));
+
+    for(int idx = 0; idx < ivars.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+        int offset = this.getFixedOffset(aClass, anAttribute);
+        if(anAttribute.shouldSerialize == false || offset < 0)
+            continue;
+
+        pw.println(",");
+        pw.print("    " + name + "OffsetOf" + this.initialCap(anAttribute.getName()) + " = " + offset);
+    }
+    pw.println();
+    pw.println("};");
+    pw.println();
+}
+
 public void writeGetMarshalledSizeMethod(PrintWriter pw, GeneratedClass aClass)
 {
     List ivars = aClass.getClassAttributes();
@@ -780,6 +845,16 @@ public void writeGetMarshalledSizeMethod(PrintWriter pw, GeneratedClass aClass)
     pw.println();
     pw.println("-(int)getMarshalledSize");
     pw.println("{");
+
+    // Fixed size classes know their size at generation time
+    if(this.getFixedSize(aClass) >= 0)
+    {
+        pw.println("   return " + aClass.getName() + "MarshalledSize;");
+        pw.println("}");
+        pw.println();
+        return;
+    }
+
     pw.println("   int marshalSize = 0;");
     pw.println();
 
@@ -827,6 +902,10 @@ public void writeGetMarshalledSizeMethod(PrintWriter pw, GeneratedClass aClass)
             {
                 pw.println( anAttribute.getName() + ".size() " + " * " + primitiveSizes.get(anAttribute.getType()) + ";  // " + anAttribute.getName());
             }
+            else if(this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType())) >= 0)
+            {
+                pw.println("   marshalSize = marshalSize + (int)[" + anAttribute.getName() + " count] * " + anAttribute.getType() + "MarshalledSize;  // " + anAttribute.getName());
+            }
             else
             {
                 pw.println();
@@ -868,6 +947,942 @@ public void writeDeallocMethod(PrintWriter pw, GeneratedClass aClass)
     pw.println();
 }
 
+/**
+ * Writes XmlpgBytes.h, the inline functions the struct marshalling functions use to put
+ * values into and get them out of bytes in network byte order, and to grow lists.
+ */
+public void writeStructSupportFile()
+{
+    try
+    {
+        File outputFile = new File(getDirectory() + "/XmlpgBytes.h");
+        PrintWriter pw = this.openOutputFile(outputFile);
+
+        pw.println("#ifndef XMLPG_BYTES_H");
+        pw.println("#define XMLPG_BYTES_H");
+        pw.println();
+        pw.println("#include <stdint.h>");
+        pw.println("#include <stdlib.h>");
+        pw.println("#include <string.h>");
+        pw.println();
+
+        for(int bits = 16; bits <= 64; bits = bits * 2)
+        {
+            String type = "uint" + bits + "_t";
+            int size = bits / 8;
+
+            pw.println("// Writes value at bytes, most significant byte first. The caller checks the bounds.");
+            pw.println("static inline void XmlpgPut" + bits + "(uint8_t *bytes, " + type + " value)");
+            pw.println("{");
+            pw.println("    for(int idx = 0; idx < " + size + "; idx++)");
+            pw.println("    {");
+            pw.println("        bytes[idx] = (uint8_t)(value >> (8 * (" + (size - 1) + " - idx)));");
+            pw.println("    }");
+            pw.println("}");
+            pw.println();
+            pw.println("// Reads a value stored most significant byte first at bytes. The caller checks the bounds.");
+            pw.println("static inline " + type + " XmlpgGet" + bits + "(const uint8_t *bytes)");
+            pw.println("{");
+            pw.println("    " + type + " value = 0;");
+            pw.println("    for(int idx = 0; idx < " + size + "; idx++)");
+            pw.println("    {");
+            pw.println("        value = (" + type + ")((value << 8) | bytes[idx]);");
+            pw.println("    }");
+            pw.println("    return value;");
+            pw.println("}");
+            pw.println();
+        }
+
+        String[][] floats = { {"Float", "float", "32"}, {"Double", "double", "64"} };
+        for(int idx = 0; idx < floats.length; idx++)
+        {
+            String bitsType = "uint" + floats[idx][2] + "_t";
+            pw.println("static inline void XmlpgPut" + floats[idx][0] + "(uint8_t *bytes, " + floats[idx][1] + " value)");
+            pw.println("{");
+            pw.println("    " + bitsType + " bits;");
+            pw.println("    memcpy(&bits, &value, sizeof(bits));");
+            pw.println("    XmlpgPut" + floats[idx][2] + "(bytes, bits);");
+            pw.println("}");
+            pw.println();
+            pw.println("static inline " + floats[idx][1] + " XmlpgGet" + floats[idx][0] + "(const uint8_t *bytes)");
+            pw.println("{");
+            pw.println("    " + bitsType + " bits = XmlpgGet" + floats[idx][2] + "(bytes);");
+            pw.println("    " + floats[idx][1] + " value;");
+            pw.println("    memcpy(&value, &bits, sizeof(value));");
+            pw.println("    return value;");
+            pw.println("}");
+            pw.println();
+        }
+
+        pw.println("// Makes room for count entries of elementSize bytes in the list at *list, which has room");
+        pw.println("// for *capacity. The list only ever grows, and new entries are zeroed. Returns 0 if out of memory");
+        pw.println("// or if the list would not fit in a size_t.");
+        pw.println("static inline int XmlpgReserve(void **list, uint32_t *capacity, uint32_t count, size_t elementSize)");
+        pw.println("{");
+        pw.println("    if(count <= *capacity)");
+        pw.println("        return 1;");
+        pw.println("    if(count > SIZE_MAX / elementSize)");
+        pw.println("        return 0;");
+        pw.println("    uint8_t *grown = (uint8_t*)realloc(*list, count * elementSize);");
+        pw.println("    if(grown == NULL)");
+        pw.println("        return 0;");
+        pw.println("    memset(grown + *capacity * elementSize, 0, (count - *capacity) * elementSize);");
+        pw.println("    *list = grown;");
+        pw.println("    *capacity = count;");
+        pw.println("    return 1;");
+        pw.println("}");
+        pw.println();
+        pw.println("#endif");
+
+        pw.flush();
+        pw.close();
+    }
+    catch(Exception e)
+    {
+        System.out.println(e);
+    }
+}
+
+/**
+ * Writes the header for a class backed by a C struct: the struct, the C functions that
+ * work on it, and the Objective-C interface whose properties are accessors onto it.
+ */
+public void writeStructHeaderFile(GeneratedClass aClass)
+{
+    try
+    {
+        String name = aClass.getName();
+        String structName = name + "Struct";
+        boolean isRoot = aClass.getParentClass().equalsIgnoreCase("root");
+        List attributes = aClass.getClassAttributes();
+        File outputFile = new File(getDirectory() + "/" + name + ".h");
+        PrintWriter pw = this.openOutputFile(outputFile);
+
+        pw.println("#import <Foundation/Foundation.h>");
+        pw.println("#import \"XmlpgBytes.h\"");
+        if(!isRoot)
+            pw.println("#import \"" + aClass.getParentClass() + ".h\"");
+
+        Set imports = new TreeSet();
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            if(anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.PRIMITIVE && !anAttribute.getUnderlyingTypeIsPrimitive())
+                imports.add(anAttribute.getType());
+        }
+        Iterator it = imports.iterator();
+        while(it.hasNext())
+        {
+            pw.println("#import \"" + it.next() + ".h\"");
+        }
+        pw.println();
+        pw.println();
+
+        if(aClass.getClassComments() != null)
+        {
+            pw.println("// " + aClass.getClassComments() );
+            pw.println();
+            pw.println("// Copyright (c) 2007-2009, MOVES Institute, Naval Postgraduate School. All rights reserved. ");
+            pw.println("//");
+            pw.println("// @author DMcG");
+            pw.println();
+        }
+
+        this.writeLayoutConstants(pw, aClass);
+
+        pw.println("// The fields of " + name + " in host byte order, after those of its superclass, if any, in base.");
+        pw.println("// A variable length list is an array holding as many entries as its count field says,");
+        pw.println("// with room for Capacity entries.");
+        pw.println("typedef struct " + structName);
+        pw.println("{");
+        if(!isRoot)
+            pw.println("    " + aClass.getParentClass() + "Struct base;");
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            String type = this.getStructType(anAttribute.getType());
+
+            if(anAttribute.getComment() != null)
+                pw.println("    /** " + anAttribute.getComment() + " */");
+
+            switch(anAttribute.getAttributeKind())
+            {
+                case PRIMITIVE:
+                case CLASSREF:
+                    pw.println("    " + type + " " + anAttribute.getName() + ";");
+                    break;
+
+                case FIXED_LIST:
+                    pw.println("    " + type + " " + anAttribute.getName() + "[" + anAttribute.getListLength() + "];");
+                    break;
+
+                default:
+                    pw.println("    " + type + " *" + anAttribute.getName() + ";");
+                    pw.println("    uint32_t " + anAttribute.getName() + "Capacity;");
+                    break;
+            }
+        }
+        if(isRoot && attributes.isEmpty())
+            pw.println("    char unused;");
+        pw.println("} " + structName + ";");
+        pw.println();
+
+        pw.println("// Sets the fields of a struct to their initial values. Any lists it held must have been freed.");
+        pw.println("void " + structName + "Init(" + structName + " *s);");
+        pw.println("// Frees the lists the struct holds, but not the struct itself");
+        pw.println("void " + structName + "Free(" + structName + " *s);");
+        pw.println("// Reads the struct from bytes. Returns the number of bytes read, or -1 if length is too short");
+        pw.println("long " + structName + "Unmarshal(" + structName + " *s, const uint8_t *bytes, size_t length);");
+        pw.println("// Writes the struct to bytes. Returns the number of bytes written, or -1 if length is too short");
+        pw.println("long " + structName + "Marshal(const " + structName + " *s, uint8_t *bytes, size_t length);");
+        pw.println("size_t " + structName + "MarshalledSize(const " + structName + " *s);");
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+            {
+                pw.println("// Sets " + anAttribute.getCountFieldName() + " and makes room for that many entries in " + anAttribute.getName() + ". Returns 0 if out of memory.");
+                pw.println("int " + structName + "Set" + this.initialCap(anAttribute.getName()) + "Count(" + structName + " *s, uint32_t count);");
+            }
+        }
+        pw.println();
+
+        if(isRoot)
+        {
+            pw.println("@interface " + name + " : NSObject");
+            pw.println("{");
+            pw.println("  // The fields, in the struct of the object's class, which starts with a " + structName);
+            pw.println("  void *record;");
+            pw.println("}");
+        }
+        else
+        {
+            pw.println("@interface " + name + " : " + aClass.getParentClass());
+        }
+        pw.println();
+
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            String type = this.getStructType(anAttribute.getType());
+
+            switch(anAttribute.getAttributeKind())
+            {
+                case PRIMITIVE:
+                    pw.println("@property(nonatomic) " + type + " " + anAttribute.getName() + ";");
+                    break;
+
+                case FIXED_LIST:
+                    pw.println("@property(nonatomic, readonly) " + type + " *" + anAttribute.getName() + ";");
+                    pw.println("@property(nonatomic, readonly) int " + anAttribute.getName() + "Length;");
+                    break;
+
+                default:
+                    pw.println("@property(nonatomic, readonly) " + type + " *" + anAttribute.getName() + ";");
+                    break;
+            }
+        }
+        pw.println();
+
+        pw.println("-(id)init; // Initializer");
+        if(isRoot)
+        {
+            pw.println("-(id)initWithRecordSize:(size_t)size; // Used by the initializers of subclasses");
+            pw.println("-(void)dealloc;");
+            pw.println("-(void)freeRecordContents;");
+        }
+        pw.println("-(" + structName + "*)" + this.initialLower(structName) + ";");
+        pw.println();
+        pw.println("// Return the number of bytes read or written, or -1 if length is too short");
+        pw.println("-(int)unmarshalFromBytes:(const uint8_t*)bytes length:(size_t)length;");
+        pw.println("-(int)marshalToBytes:(uint8_t*)bytes length:(size_t)length;");
+        if(isRoot)
+        {
+            pw.println("-(int)unmarshalFromData:(NSData*)data;");
+            pw.println("-(NSData*)marshalledData;");
+        }
+        pw.println();
+        pw.println("-(int)getMarshalledSize;");
+        pw.println();
+        pw.println("@end");
+        pw.println();
+
+        this.writeLicenseNotice(pw);
+
+        pw.flush();
+        pw.close();
+    }
+    catch(Exception e)
+    {
+        System.out.println(e);
+    }
+}
+
+/**
+ * Writes the .m file for a class backed by a C struct: the struct functions, then the
+ * Objective-C methods, which call them on the object's record.
+ */
+public void writeStructObjcFile(GeneratedClass aClass)
+{
+    try
+    {
+        String name = aClass.getName();
+        String structName = name + "Struct";
+        String record = "(" + structName + "*)record";
+        String fields = "(" + record + ")";
+        boolean isRoot = aClass.getParentClass().equalsIgnoreCase("root");
+        List attributes = aClass.getClassAttributes();
+        System.out.println("Creating Objc .m and .h source code files for " + name);
+        File outputFile = new File(getDirectory() + "/" + name + ".m");
+        PrintWriter pw = this.openOutputFile(outputFile);
+
+        pw.println("#import \"" + name + ".h\" ");
+        pw.println();
+
+        this.writeStructInitFunction(pw, aClass);
+        this.writeStructFreeFunction(pw, aClass);
+        this.writeStructUnmarshalFunction(pw, aClass);
+        this.writeStructMarshalFunction(pw, aClass);
+        this.writeStructMarshalledSizeFunction(pw, aClass);
+
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            if(anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+                continue;
+
+            String list = "s->" + anAttribute.getName();
+            pw.println("int " + structName + "Set" + this.initialCap(anAttribute.getName()) + "Count(" + structName + " *s, uint32_t count)");
+            pw.println("{");
+            pw.println("    if(!XmlpgReserve((void**)&" + list + ", &" + list + "Capacity, count, sizeof(" + this.getStructType(anAttribute.getType()) + ")))");
+            pw.println("        return 0;");
+            pw.println("    s->" + this.getStructPath(aClass, anAttribute.getCountFieldName()) + " = count;");
+            pw.println("    return 1;");
+            pw.println("}");
+            pw.println();
+        }
+
+        pw.println();
+        pw.println("@implementation " + name);
+        pw.println();
+
+        if(isRoot)
+        {
+            pw.println("-(id)initWithRecordSize:(size_t)size");
+            pw.println("{");
+            pw.println("  self = [super init];");
+            pw.println("  if(self)");
+            pw.println("  {");
+            pw.println("    record = calloc(1, size);");
+            pw.println("    if(record == NULL)");
+            pw.println("    {");
+            pw.println("      [self release];");
+            pw.println("      return nil;");
+            pw.println("    }");
+            pw.println("  }");
+            pw.println("  return self;");
+            pw.println("}");
+            pw.println();
+            pw.println("-(void)dealloc");
+            pw.println("{");
+            pw.println("  [self freeRecordContents];");
+            pw.println("  free(record);");
+            pw.println("  [super dealloc];");
+            pw.println("}");
+            pw.println();
+            pw.println("-(int)unmarshalFromData:(NSData*)data");
+            pw.println("{");
+            pw.println("  return [self unmarshalFromBytes:(const uint8_t*)[data bytes] length:[data length]];");
+            pw.println("}");
+            pw.println();
+            pw.println("-(NSData*)marshalledData");
+            pw.println("{");
+            pw.println("  NSMutableData *data = [NSMutableData dataWithLength:[self getMarshalledSize]];");
+            pw.println("  [self marshalToBytes:(uint8_t*)[data mutableBytes] length:[data length]];");
+            pw.println("  return data;");
+            pw.println("}");
+            pw.println();
+        }
+
+        pw.println("-(id)init");
+        pw.println("{");
+        pw.println("  self = [self initWithRecordSize:sizeof(" + structName + ")];");
+        pw.println("  if(self)");
+        pw.println("    " + structName + "Init(" + record + ");");
+        pw.println("  return self;");
+        pw.println("}");
+        pw.println();
+        pw.println("-(void)freeRecordContents");
+        pw.println("{");
+        pw.println("  " + structName + "Free(" + record + ");");
+        pw.println("}");
+        pw.println();
+        pw.println("-(" + structName + "*)" + this.initialLower(structName));
+        pw.println("{");
+        pw.println("  return " + record + ";");
+        pw.println("}");
+        pw.println();
+
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            String attributeName = anAttribute.getName();
+            String type = this.getStructType(anAttribute.getType());
+
+            switch(anAttribute.getAttributeKind())
+            {
+                case PRIMITIVE:
+                    pw.println("-(" + type + ")" + attributeName);
+                    pw.println("{");
+                    pw.println("  return " + fields + "->" + attributeName + ";");
+                    pw.println("}");
+                    pw.println();
+                    pw.println("-(void)set" + this.initialCap(attributeName) + ":(" + type + ")value");
+                    pw.println("{");
+                    ClassAttribute listAttribute = anAttribute.getIsDynamicListLengthField() ? anAttribute.getDynamicListClassAttribute() : null;
+                    if(listAttribute != null && attributes.contains(listAttribute))
+                    {
+                        pw.println("  if(!" + structName + "Set" + this.initialCap(listAttribute.getName()) + "Count(" + record + ", value))");
+                        pw.println("    [NSException raise:NSMallocException format:@\"No memory for %u " + listAttribute.getName() + "\", (unsigned)value];");
+                    }
+                    else
+                    {
+                        pw.println("  " + fields + "->" + attributeName + " = value;");
+                    }
+                    pw.println("}");
+                    pw.println();
+                    break;
+
+                case CLASSREF:
+                    pw.println("-(" + type + "*)" + attributeName);
+                    pw.println("{");
+                    pw.println("  return &" + fields + "->" + attributeName + ";");
+                    pw.println("}");
+                    pw.println();
+                    break;
+
+                case FIXED_LIST:
+                    pw.println("-(" + type + "*)" + attributeName);
+                    pw.println("{");
+                    pw.println("  return " + fields + "->" + attributeName + ";");
+                    pw.println("}");
+                    pw.println();
+                    pw.println("-(int)" + attributeName + "Length");
+                    pw.println("{");
+                    pw.println("  return " + anAttribute.getListLength() + ";");
+                    pw.println("}");
+                    pw.println();
+                    break;
+
+                default:
+                    pw.println("-(" + type + "*)" + attributeName);
+                    pw.println("{");
+                    pw.println("  return " + fields + "->" + attributeName + ";");
+                    pw.println("}");
+                    pw.println();
+                    break;
+            }
+        }
+
+        pw.println("-(int)unmarshalFromBytes:(const uint8_t*)bytes length:(size_t)length");
+        pw.println("{");
+        pw.println("  return (int)" + structName + "Unmarshal(" + record + ", bytes, length);");
+        pw.println("}");
+        pw.println();
+        pw.println("-(int)marshalToBytes:(uint8_t*)bytes length:(size_t)length");
+        pw.println("{");
+        pw.println("  return (int)" + structName + "Marshal(" + record + ", bytes, length);");
+        pw.println("}");
+        pw.println();
+        pw.println("-(int)getMarshalledSize");
+        pw.println("{");
+        pw.println("  return (int)" + structName + "MarshalledSize(" + record + ");");
+        pw.println("}");
+        pw.println();
+        pw.println("@end\n");
+        pw.println("\n");
+
+        this.writeLicenseNotice(pw);
+
+        pw.flush();
+        pw.close();
+    }
+    catch(Exception e)
+    {
+        System.out.println(e);
+    }
+}
+
+/**
+ * Writes the Init function, which zeroes the struct and then sets the default and
+ * initial values, including those the class gives to fields of its superclasses.
+ */
+private void writeStructInitFunction(PrintWriter pw, GeneratedClass aClass)
+{
+    String structName = aClass.getName() + "Struct";
+    List attributes = aClass.getClassAttributes();
+
+    pw.println("void " + structName + "Init(" + structName + " *s)");
+    pw.println("{");
+    pw.println("    memset(s, 0, sizeof(" + structName + "));");
+    if(!aClass.getParentClass().equalsIgnoreCase("root"))
+        pw.println("    " + aClass.getParentClass() + "StructInit(&s->base);");
+
+    for(int idx = 0; idx < attributes.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+        String field = "s->" + anAttribute.getName();
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE && anAttribute.getDefaultValue() != null)
+        {
+            pw.println("    " + field + " = " + anAttribute.getDefaultValue() + ";");
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+        {
+            pw.println("    " + anAttribute.getType() + "StructInit(&" + field + ");");
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST && !anAttribute.getUnderlyingTypeIsPrimitive())
+        {
+            pw.println("    for(int idx = 0; idx < " + anAttribute.getListLength() + "; idx++)");
+            pw.println("        " + anAttribute.getType() + "StructInit(&" + field + "[idx]);");
+        }
+    }
+
+    List inits = aClass.getInitialValues();
+    for(int idx = 0; idx < inits.size(); idx++)
+    {
+        InitialValue anInitialValue = (InitialValue)inits.get(idx);
+        String path = this.getStructPath(aClass, anInitialValue.getVariable());
+        if(path == null)
+        {
+            System.out.println("Initial value for " + anInitialValue.getVariable() + " in " + aClass.getName() + " is not a field of the class; ignored");
+            continue;
+        }
+        pw.println("    s->" + path + " = " + anInitialValue.getVariableValue() + ";");
+    }
+
+    pw.println("}");
+    pw.println();
+}
+
+/**
+ * Writes the Free function. Only structs of a variable size hold lists, so nothing
+ * is done for nested structs of a fixed size. Every entry a list has room for is freed,
+ * not just those in use, as the others may still hold lists from earlier messages.
+ */
+private void writeStructFreeFunction(PrintWriter pw, GeneratedClass aClass)
+{
+    String structName = aClass.getName() + "Struct";
+    List attributes = aClass.getClassAttributes();
+
+    pw.println("void " + structName + "Free(" + structName + " *s)");
+    pw.println("{");
+    if(this.getFixedSize(aClass) >= 0)
+        pw.println("    (void)s;");
+
+    for(int idx = 0; idx < attributes.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+        String field = "s->" + anAttribute.getName();
+        boolean variableElements = !anAttribute.getUnderlyingTypeIsPrimitive() && anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.PRIMITIVE &&
+            this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType())) < 0;
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF && variableElements)
+        {
+            pw.println("    " + anAttribute.getType() + "StructFree(&" + field + ");");
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST && variableElements)
+        {
+            pw.println("    for(int idx = 0; idx < " + anAttribute.getListLength() + "; idx++)");
+            pw.println("        " + anAttribute.getType() + "StructFree(&" + field + "[idx]);");
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+        {
+            if(variableElements)
+            {
+                pw.println("    for(uint32_t idx = 0; idx < " + field + "Capacity; idx++)");
+                pw.println("        " + anAttribute.getType() + "StructFree(&" + field + "[idx]);");
+            }
+            pw.println("    free(" + field + ");");
+            pw.println("    " + field + " = NULL;");
+            pw.println("    " + field + "Capacity = 0;");
+        }
+    }
+
+    GeneratedClass parent = (GeneratedClass)classDescriptions.get(aClass.getParentClass());
+    if(parent != null && this.getFixedSize(parent) < 0)
+        pw.println("    " + parent.getName() + "StructFree(&s->base);");
+
+    pw.println("}");
+    pw.println();
+}
+
+/**
+ * Writes the Unmarshal function. A fixed size class checks the length once against its
+ * MarshalledSize constant. Otherwise each run of primitive fields is checked before it is
+ * read, and nested structs check their own part. Lists are read into the entries they
+ * already have room for, and only grow when a message holds more than any before it.
+ * A list count is checked against the bytes left, at the smallest size an entry can
+ * take, before any room is made for it.
+ */
+private void writeStructUnmarshalFunction(PrintWriter pw, GeneratedClass aClass)
+{
+    String structName = aClass.getName() + "Struct";
+    List attributes = aClass.getClassAttributes();
+    boolean fixedSize = this.getFixedSize(aClass) >= 0;
+    boolean hasParent = !aClass.getParentClass().equalsIgnoreCase("root");
+
+    boolean nestedStructs = hasParent;
+    for(int idx = 0; idx < attributes.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+        if(anAttribute.shouldSerialize && anAttribute.getAttributeKind() != ClassAttribute.ClassAttributeType.PRIMITIVE &&
+           !anAttribute.getUnderlyingTypeIsPrimitive())
+            nestedStructs = true;
+    }
+
+    pw.println("long " + structName + "Unmarshal(" + structName + " *s, const uint8_t *bytes, size_t length)");
+    pw.println("{");
+    if(fixedSize && this.getFixedSize(aClass) > 0)
+    {
+        pw.println("    if(length < (size_t)" + aClass.getName() + "MarshalledSize) return -1;");
+        pw.println();
+    }
+    if(this.getFixedSize(aClass) == 0 && !hasParent)
+        pw.println("    (void)s; (void)bytes; (void)length;");
+    if(nestedStructs)
+        pw.println("    long result = 0;");
+    if(hasParent)
+    {
+        pw.println("    result = " + aClass.getParentClass() + "StructUnmarshal(&s->base, bytes, length); // unmarshal information in superclass first");
+        pw.println("    if(result < 0) return -1;");
+        pw.println("    size_t pos = (size_t)result;");
+    }
+    else
+    {
+        pw.println("    size_t pos = 0;");
+    }
+
+    for(int idx = 0; idx < attributes.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+        String field = "s->" + anAttribute.getName();
+
+        if(anAttribute.shouldSerialize == false)
+        {
+            pw.println("    // attribute " + anAttribute.getName() + " marked as do not serialize");
+            continue;
+        }
+
+        // Check the space for this field and any primitive fields that directly follow it
+        if(!fixedSize && this.isStructPrimitive(anAttribute) &&
+           (idx == 0 || !this.isStructPrimitive((ClassAttribute)attributes.get(idx - 1))))
+        {
+            int runSize = 0;
+            for(int runIdx = idx; runIdx < attributes.size() && this.isStructPrimitive((ClassAttribute)attributes.get(runIdx)); runIdx++)
+            {
+                runSize = runSize + this.getFixedSize((ClassAttribute)attributes.get(runIdx));
+            }
+            pw.println("    if(length - pos < " + runSize + ") return -1;");
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+        {
+            pw.println("    " + this.getStructGet(anAttribute.getType(), field));
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+        {
+            pw.println("    result = " + anAttribute.getType() + "StructUnmarshal(&" + field + ", bytes + pos, length - pos);");
+            pw.println("    if(result < 0) return -1;");
+            pw.println("    pos += result;");
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+        {
+            pw.println();
+            pw.println("    for(int idx = 0; idx < " + anAttribute.getListLength() + "; idx++)");
+            pw.println("    {");
+            if(anAttribute.getUnderlyingTypeIsPrimitive())
+            {
+                pw.println("        " + this.getStructGet(anAttribute.getType(), field + "[idx]"));
+            }
+            else
+            {
+                pw.println("        result = " + anAttribute.getType() + "StructUnmarshal(&" + field + "[idx], bytes + pos, length - pos);");
+                pw.println("        if(result < 0) return -1;");
+                pw.println("        pos += result;");
+            }
+            pw.println("    }");
+            pw.println();
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+        {
+            String count = "s->" + this.getStructPath(aClass, anAttribute.getCountFieldName());
+
+            pw.println();
+            int elementSize = anAttribute.getUnderlyingTypeIsPrimitive() ? getPrimitiveSize(anAttribute.getType()) :
+                this.getMinimumSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+            if(elementSize > 0)
+                pw.println("    if((length - pos) / " + elementSize + " < (size_t)" + count + ") return -1;");
+            pw.println("    if(!XmlpgReserve((void**)&" + field + ", &" + field + "Capacity, " + count + ", sizeof(" + this.getStructType(anAttribute.getType()) + "))) return -1;");
+            pw.println("    for(uint32_t idx = 0; idx < (uint32_t)" + count + "; idx++)");
+            pw.println("    {");
+            if(anAttribute.getUnderlyingTypeIsPrimitive())
+            {
+                pw.println("        " + this.getStructGet(anAttribute.getType(), field + "[idx]"));
+            }
+            else
+            {
+                pw.println("        result = " + anAttribute.getType() + "StructUnmarshal(&" + field + "[idx], bytes + pos, length - pos);");
+                pw.println("        if(result < 0) return -1;");
+                pw.println("        pos += result;");
+            }
+            pw.println("    }");
+            pw.println();
+        }
+    }
+
+    pw.println("    return (long)pos;");
+    pw.println("}");
+    pw.println();
+}
+
+/**
+ * Writes the Marshal function, which checks the space needed once on the way in and
+ * then writes the fields unchecked. A list's count field gives the number of entries written.
+ */
+private void writeStructMarshalFunction(PrintWriter pw, GeneratedClass aClass)
+{
+    String structName = aClass.getName() + "Struct";
+    List attributes = aClass.getClassAttributes();
+
+    pw.println("long " + structName + "Marshal(const " + structName + " *s, uint8_t *bytes, size_t length)");
+    pw.println("{");
+    if(this.getFixedSize(aClass) < 0)
+        pw.println("    if(length < " + structName + "MarshalledSize(s)) return -1;");
+    else if(this.getFixedSize(aClass) > 0)
+        pw.println("    if(length < (size_t)" + aClass.getName() + "MarshalledSize) return -1;");
+    else if(aClass.getParentClass().equalsIgnoreCase("root"))
+        pw.println("    (void)s; (void)bytes; (void)length;");
+    pw.println();
+
+    if(!aClass.getParentClass().equalsIgnoreCase("root"))
+        pw.println("    size_t pos = (size_t)" + aClass.getParentClass() + "StructMarshal(&s->base, bytes, length); // Marshal information in superclass first");
+    else
+        pw.println("    size_t pos = 0;");
+
+    for(int idx = 0; idx < attributes.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+        String field = "s->" + anAttribute.getName();
+
+        if(anAttribute.shouldSerialize == false)
+        {
+            pw.println("    // attribute " + anAttribute.getName() + " marked as do not serialize");
+            continue;
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+        {
+            pw.println("    " + this.getStructPut(anAttribute.getType(), field));
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+        {
+            pw.println("    pos += " + anAttribute.getType() + "StructMarshal(&" + field + ", bytes + pos, length - pos);");
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST ||
+           anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+        {
+            String count = "" + anAttribute.getListLength();
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+                count = "(uint32_t)s->" + this.getStructPath(aClass, anAttribute.getCountFieldName());
+
+            pw.println();
+            pw.println("    for(uint32_t idx = 0; idx < " + count + "; idx++)");
+            pw.println("    {");
+            if(anAttribute.getUnderlyingTypeIsPrimitive())
+                pw.println("        " + this.getStructPut(anAttribute.getType(), field + "[idx]"));
+            else
+                pw.println("        pos += " + anAttribute.getType() + "StructMarshal(&" + field + "[idx], bytes + pos, length - pos);");
+            pw.println("    }");
+            pw.println();
+        }
+    }
+
+    pw.println("    return (long)pos;");
+    pw.println("}");
+    pw.println();
+}
+
+/**
+ * Writes the MarshalledSize function, which returns the MarshalledSize constant if the
+ * class has a fixed size.
+ */
+private void writeStructMarshalledSizeFunction(PrintWriter pw, GeneratedClass aClass)
+{
+    String structName = aClass.getName() + "Struct";
+    List attributes = aClass.getClassAttributes();
+
+    pw.println("size_t " + structName + "MarshalledSize(const " + structName + " *s)");
+    pw.println("{");
+
+    if(this.getFixedSize(aClass) >= 0)
+    {
+        pw.println("    (void)s;");
+        pw.println("    return " + aClass.getName() + "MarshalledSize;");
+        pw.println("}");
+        pw.println();
+        return;
+    }
+
+    if(!aClass.getParentClass().equalsIgnoreCase("root"))
+        pw.println("    size_t size = " + aClass.getParentClass() + "StructMarshalledSize(&s->base);");
+    else
+        pw.println("    size_t size = 0;");
+
+    int fixed = 0;
+    for(int idx = 0; idx < attributes.size(); idx++)
+    {
+        ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+        String field = "s->" + anAttribute.getName();
+        int attributeSize = this.getFixedSize(anAttribute);
+
+        if(attributeSize >= 0)
+        {
+            fixed = fixed + attributeSize;
+            continue;
+        }
+
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+        {
+            pw.println("    size += " + anAttribute.getType() + "StructMarshalledSize(&" + field + ");");
+            continue;
+        }
+
+        String count = "" + anAttribute.getListLength();
+        if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+            count = "(uint32_t)s->" + this.getStructPath(aClass, anAttribute.getCountFieldName());
+
+        int elementSize = anAttribute.getUnderlyingTypeIsPrimitive() ? getPrimitiveSize(anAttribute.getType()) :
+            this.getFixedSize((GeneratedClass)classDescriptions.get(anAttribute.getType()));
+        if(elementSize >= 0)
+        {
+            pw.println("    size += (size_t)" + count + " * " + elementSize + "; // " + anAttribute.getName());
+        }
+        else
+        {
+            pw.println("    for(uint32_t idx = 0; idx < " + count + "; idx++)");
+            pw.println("        size += " + anAttribute.getType() + "StructMarshalledSize(&" + field + "[idx]);");
+        }
+    }
+
+    pw.println("    return size + " + fixed + ";");
+    pw.println("}");
+    pw.println();
+}
+
+/**
+ * True if an attribute is read straight from the bytes: a primitive, or a fixed list of them.
+ */
+private boolean isStructPrimitive(ClassAttribute anAttribute)
+{
+    if(anAttribute.shouldSerialize == false)
+        return false;
+    if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE)
+        return true;
+    return anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST && anAttribute.getUnderlyingTypeIsPrimitive();
+}
+
+/**
+ * Returns the C type of a primitive in a struct, or the struct of a class.
+ */
+private String getStructType(String xmlType)
+{
+    String type = structTypes.getProperty(xmlType);
+    if(type == null)
+        return xmlType + "Struct";
+    return type;
+}
+
+/**
+ * Returns the path from a struct of this class to a field of it or of a superclass,
+ * eg base.base.pduType, or null if there is no field of that name.
+ */
+private String getStructPath(GeneratedClass aClass, String fieldName)
+{
+    String prefix = "";
+    while(aClass != null)
+    {
+        List attributes = aClass.getClassAttributes();
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            if(((ClassAttribute)attributes.get(idx)).getName().equals(fieldName))
+                return prefix + fieldName;
+        }
+        prefix = prefix + "base.";
+        aClass = (GeneratedClass)classDescriptions.get(aClass.getParentClass());
+    }
+    return null;
+}
+
+/**
+ * Returns the statement reading a primitive of the XML type into field from bytes + pos,
+ * and moving pos past it.
+ */
+private String getStructGet(String xmlType, String field)
+{
+    int size = getPrimitiveSize(xmlType);
+    String type = structTypes.getProperty(xmlType);
+    String value;
+
+    if(xmlType.equals("float"))
+        value = "XmlpgGetFloat(bytes + pos)";
+    else if(xmlType.equals("double"))
+        value = "XmlpgGetDouble(bytes + pos)";
+    else if(size == 1)
+        value = "(" + type + ")bytes[pos]";
+    else
+        value = "(" + type + ")XmlpgGet" + (size * 8) + "(bytes + pos)";
+
+    return field + " = " + value + "; pos += " + size + ";";
+}
+
+/**
+ * Returns the statement writing field as a primitive of the XML type at bytes + pos,
+ * and moving pos past it.
+ */
+private String getStructPut(String xmlType, String field)
+{
+    int size = getPrimitiveSize(xmlType);
+
+    if(xmlType.equals("float"))
+        return "XmlpgPutFloat(bytes + pos, " + field + "); pos += 4;";
+    if(xmlType.equals("double"))
+        return "XmlpgPutDouble(bytes + pos, " + field + "); pos += 8;";
+    if(size == 1)
+        return "bytes[pos] = (uint8_t)" + field + "; pos += 1;";
+    return "XmlpgPut" + (size * 8) + "(bytes + pos, (uint" + (size * 8) + "_t)" + field + "); pos += " + size + ";";
+}
+
+/**
+* returns a string with the first letter lower case.
+*/
+public String initialLower(String aString)
+{
+    StringBuffer stb = new StringBuffer(aString);
+    stb.setCharAt(0, Character.toLowerCase(aString.charAt(0)));
+
+    return new String(stb);
+}
+
 /**
 * returns a string with the first letter capitalized.
 */
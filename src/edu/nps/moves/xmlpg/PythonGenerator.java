@@ -8,12 +8,15 @@ package edu.nps.moves.xmlpg;
 
 import java.io.File;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.ArrayList;
 import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -26,6 +29,16 @@ public class PythonGenerator extends Generator
     public Properties marshalTypes = new Properties();
     public Properties unmarshalTypes = new Properties();
     
+    /** struct module format characters for the primitive types */
+    public Properties structFormats = new Properties();
+    
+    /** If true, the fields of a class are flattened into runs of primitives, each packed
+     * and unpacked by one precompiled struct.Struct, and every class also gets
+     * serialize_into() and parse_from() for bytearrays and memoryviews. Set with
+     * structCodecs="true" on the python element or -Dxmlpg.structCodecs=true.
+     */
+    boolean structCodecs = false;
+    
     public PythonGenerator(HashMap pClassDescriptions, Properties pythonProperties)
     {
         super(pClassDescriptions, pythonProperties);
@@ -56,6 +69,21 @@ public class PythonGenerator extends Generator
         
         unmarshalTypes.setProperty("double", "double");
         unmarshalTypes.setProperty("float", "float");
+        
+        structFormats.setProperty("unsigned short", "H");
+        structFormats.setProperty("unsigned byte", "B");
+        structFormats.setProperty("unsigned int", "I");
+        structFormats.setProperty("unsigned long", "Q");
+        
+        structFormats.setProperty("byte", "b");
+        structFormats.setProperty("short", "h");
+        structFormats.setProperty("int", "i");
+        structFormats.setProperty("long", "q");
+        
+        structFormats.setProperty("double", "d");
+        structFormats.setProperty("float", "f");
+        
+        structCodecs = this.getBooleanOption("structCodecs");
     }
 
     public void writeClasses()
@@ -75,27 +103,46 @@ public class PythonGenerator extends Generator
             System.out.println("putting network code in " + directoryName + "/" + outputFileName);
             File outputFile = new File(directoryName + "/" + outputFileName);
             outputFile.getParentFile().mkdirs();
-            outputFile.createNewFile();
-            pw = new PrintWriter(outputFile);
+            pw = this.openOutputFile(outputFile);
             this.writeLicense(pw);
             pw.println();
             
             pw.println("import DataInputStream");
             pw.println("import DataOutputStream");
+            if(structCodecs)
+            {
+                pw.println("import struct");
+            }
             pw.println();
        
              
               
             System.out.println("number of classes: " + sortedClasses.size());
+            
+            // Everything goes into one file, and superclasses have to come first. Each class
+            // is rendered into its own buffer, possibly in parallel, then the buffers are
+            // written out in sorted order.
+            final Map renderedClasses = new ConcurrentHashMap();
+            this.forEachClass(sortedClasses, new ClassEmitter()
+            {
+                public void emit(GeneratedClass aClass)
+                {
+                    System.out.println("creating python class " + aClass.getName());
+                    StringWriter classText = new StringWriter();
+                    PrintWriter classWriter = new PrintWriter(classText);
+                    writeClass(classWriter, aClass);
+                    classWriter.flush();
+                    renderedClasses.put(aClass.getName(), classText.toString());
+                }
+            });
+            
         Iterator it = sortedClasses.iterator();
          while(it.hasNext())
           {
            
               GeneratedClass aClass = (GeneratedClass)it.next();
-              String name = aClass.getName();
-              System.out.println("creating python class " + name);
               // print the source code of the class to the file
-              this.writeClass(pw, aClass);
+              pw.print((String)renderedClasses.get(aClass.getName()));
            }
          
          pw.flush();
@@ -108,6 +155,36 @@ public class PythonGenerator extends Generator
  
    } // end of writeClasses
     
+    /**
+     * Writes class attributes for the marshalled size of the class and the byte offsets
+     * of its fields. MARSHALLED_SIZE is -1 if the size depends on the contents, and
+     * offsets are only written for fields whose position does not.
+     */
+    public void writeLayoutConstants(PrintWriter pw, GeneratedClass aClass)
+    {
+        List ivars = aClass.getClassAttributes();
+        
+        pw.println(INDENT + "# Size in bytes of a marshalled " + aClass.getName() + ", or -1 if it depends on the contents");
+        pw.println(INDENT + "MARSHALLED_SIZE = " + this.getFixedSize(aClass));
+        
+        boolean first = true;
+        for(int idx = 0; idx < ivars.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)ivars.get(idx);
+            int offset = this.getFixedOffset(aClass, anAttribute);
+            if(anAttribute.shouldSerialize == false || offset < 0)
+                continue;
+            
+            if(first)
+            {
+                pw.println(INDENT + "# Byte offsets of the fields from the start of a marshalled " + aClass.getName());
+                first = false;
+            }
+            pw.println(INDENT + "OFFSET_" + this.getConstantName(anAttribute.getName()) + " = " + offset);
+        }
+        pw.println();
+    }
+    
     public void writeClass(PrintWriter pw, GeneratedClass aClass)
     {
         pw.println();
@@ -118,6 +195,15 @@ public class PythonGenerator extends Generator
         
         pw.println("class " + aClass.getName() + "( " + parentClassName + " ):");
         this.writeClassComments(pw, aClass);
+        this.writeLayoutConstants(pw, aClass);
+        
+        List codecSteps = null;
+        if(structCodecs)
+        {
+            codecSteps = new ArrayList();
+            this.addCodecSteps(aClass, "self", codecSteps);
+            this.writeStructConstants(pw, aClass, codecSteps);
+        }
                 
         pw.println(INDENT + "def __init__(self):");
         pw.println(INDENT + INDENT + "\"\"\" Initializer for " + aClass.getName() + "\"\"\"");
@@ -253,8 +339,15 @@ public class PythonGenerator extends Generator
         } // End initialize initial values
     
     
-        this.writeMarshal(pw, aClass);
-        this.writeUnmarshal(pw, aClass);
+        if(structCodecs)
+        {
+            this.writeStructCodecs(pw, aClass, codecSteps);
+        }
+        else
+        {
+            this.writeMarshal(pw, aClass);
+            this.writeUnmarshal(pw, aClass);
+        }
         this.writeFlagMethods(pw, aClass);
         pw.println();
         pw.println();
@@ -448,6 +541,305 @@ public class PythonGenerator extends Generator
         } // End loop through attributes
     }
     
+    /**
+     * One step in serializing a class with struct codecs: either a run of primitive
+     * fields packed with a single struct.Struct, or a list that is handled by itself.
+     */
+    private static class CodecStep
+    {
+        /** Python expressions for the fields in a run, or null if this is a list */
+        List fields;
+        
+        /** The list attribute, and the expression that reaches it */
+        ClassAttribute listAttribute;
+        String path;
+        
+        /** For a list, the expression for its length field */
+        String countPath;
+    }
+    
+    /**
+     * One primitive field, or fixed list of primitives, in a run
+     */
+    private static class StructField
+    {
+        /** Expression for the field, eg self.entityID.siteID */
+        String path;
+        
+        /** Expression for the value marshalled, usually the same as path */
+        String value;
+        
+        /** The struct format characters for the field */
+        String format;
+        
+        /** Number of elements if this is a fixed list, 0 if it is a single value */
+        int listLength;
+    }
+    
+    /**
+     * Works out the steps for marshalling a class with struct codecs, in wire order. The
+     * class's superclasses and the classes it holds are flattened into it, so a runs of
+     * primitives carries on across them and a fixed size class becomes a single run.
+     * Lists break the runs.
+     */
+    private void addCodecSteps(GeneratedClass aClass, String prefix, List steps)
+    {
+        GeneratedClass parent = (GeneratedClass)classDescriptions.get(aClass.getParentClass());
+        if(parent != null)
+        {
+            this.addCodecSteps(parent, prefix, steps);
+        }
+        
+        List attributes = aClass.getClassAttributes();
+        for(int idx = 0; idx < attributes.size(); idx++)
+        {
+            ClassAttribute anAttribute = (ClassAttribute)attributes.get(idx);
+            String path = prefix + "." + anAttribute.getName();
+            
+            if(anAttribute.shouldSerialize == false)
+                continue;
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF)
+            {
+                this.addCodecSteps((GeneratedClass)classDescriptions.get(anAttribute.getType()), path, steps);
+                continue;
+            }
+            
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE ||
+              (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST && anAttribute.getUnderlyingTypeIsPrimitive()))
+            {
+                StructField field = new StructField();
+                field.path = path;
+                field.value = path;
+                field.format = structFormats.getProperty(anAttribute.getType());
+                
+                if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST)
+                {
+                    field.listLength = anAttribute.getListLength();
+                    field.format = field.listLength + field.format;
+                    field.value = "*" + path;
+                }
+                else if(anAttribute.getIsDynamicListLengthField())
+                {
+                    field.value = "len(" + prefix + "." + anAttribute.getDynamicListClassAttribute().getName() + ")";
+                }
+                
+                CodecStep last = steps.isEmpty() ? null : (CodecStep)steps.get(steps.size() - 1);
+                if(last == null || last.fields == null)
+                {
+                    last = new CodecStep();
+                    last.fields = new ArrayList();
+                    steps.add(last);
+                }
+                last.fields.add(field);
+                continue;
+            }
+            
+            CodecStep step = new CodecStep();
+            step.listAttribute = anAttribute;
+            step.path = path;
+            if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST)
+            {
+                step.countPath = prefix + "." + anAttribute.getCountFieldName();
+            }
+            steps.add(step);
+        }
+    }
+    
+    /**
+     * Writes the precompiled struct.Struct for each run of primitives as a class attribute.
+     * They are named after their position, and always referred to through the class name so
+     * that a subclass's structs do not hide them.
+     */
+    public void writeStructConstants(PrintWriter pw, GeneratedClass aClass, List steps)
+    {
+        int run = 0;
+        for(int idx = 0; idx < steps.size(); idx++)
+        {
+            CodecStep step = (CodecStep)steps.get(idx);
+            if(step.fields == null)
+                continue;
+            
+            if(run == 0)
+            {
+                pw.println(INDENT + "# Precompiled codecs for the runs of primitive fields, superclass and nested fields included");
+            }
+            
+            StringBuffer format = new StringBuffer(">");
+            for(int jdx = 0; jdx < step.fields.size(); jdx++)
+            {
+                format.append(((StructField)step.fields.get(jdx)).format);
+            }
+            pw.println(INDENT + "_STRUCT_" + run + " = struct.Struct(\"" + format + "\")");
+            run++;
+        }
+        if(run > 0)
+        {
+            pw.println();
+        }
+    }
+    
+    /**
+     * Writes serialize() and parse(), which work on the DataOutputStream and DataInputStream
+     * wrappers, and serialize_into() and parse_from(), which work on anything supporting the
+     * buffer protocol. All four go through the precompiled structs, one call per run.
+     */
+    public void writeStructCodecs(PrintWriter pw, GeneratedClass aClass, List steps)
+    {
+        pw.println();
+        pw.println(INDENT + "def serialize(self, outputStream):");
+        pw.println(INDENT + INDENT + "\"\"\"serialize the class \"\"\"");
+        this.writeStructSteps(pw, aClass, steps, false, false);
+        pw.println();
+        
+        pw.println(INDENT + "def serialize_into(self, buffer, offset=0):");
+        pw.println(INDENT + INDENT + "\"\"\"Packs the class into a writable buffer, such as a bytearray or memoryview, at offset. Returns the offset just past it.\"\"\"");
+        this.writeStructSteps(pw, aClass, steps, false, true);
+        pw.println(INDENT + INDENT + "return offset");
+        pw.println();
+        
+        pw.println(INDENT + "def parse(self, inputStream):");
+        pw.println(INDENT + INDENT + "\"\"\"\"Parse a message. This may recursively call embedded objects.\"\"\"");
+        this.writeStructSteps(pw, aClass, steps, true, false);
+        pw.println();
+        
+        pw.println(INDENT + "def parse_from(self, buffer, offset=0):");
+        pw.println(INDENT + INDENT + "\"\"\"Unpacks the class from a buffer, such as bytes or a memoryview, at offset. Returns the offset just past it.\"\"\"");
+        this.writeStructSteps(pw, aClass, steps, true, true);
+        pw.println(INDENT + INDENT + "return offset");
+        pw.println();
+    }
+    
+    /**
+     * Writes the body of one of the struct codec methods. Unpacking reads from the stream
+     * or buffer, packing writes to it; toBuffer picks the buffer and offset versions.
+     */
+    private void writeStructSteps(PrintWriter pw, GeneratedClass aClass, List steps, boolean unpacking, boolean toBuffer)
+    {
+        String tab = INDENT + INDENT;
+        int run = 0;
+        
+        for(int idx = 0; idx < steps.size(); idx++)
+        {
+            CodecStep step = (CodecStep)steps.get(idx);
+            
+            if(step.fields != null)
+            {
+                String codec = aClass.getName() + "._STRUCT_" + run;
+                run++;
+                
+                if(unpacking)
+                {
+                    if(toBuffer)
+                    {
+                        pw.println(tab + "values = " + codec + ".unpack_from(buffer, offset)");
+                        pw.println(tab + "offset += " + codec + ".size");
+                    }
+                    else
+                    {
+                        pw.println(tab + "values = " + codec + ".unpack(inputStream.stream.read(" + codec + ".size))");
+                    }
+                    
+                    int position = 0;
+                    for(int jdx = 0; jdx < step.fields.size(); jdx++)
+                    {
+                        StructField field = (StructField)step.fields.get(jdx);
+                        if(field.listLength > 0)
+                        {
+                            pw.println(tab + field.path + " = list(values[" + position + ":" + (position + field.listLength) + "])");
+                            position += field.listLength;
+                        }
+                        else
+                        {
+                            pw.println(tab + field.path + " = values[" + position + "]");
+                            position++;
+                        }
+                    }
+                }
+                else
+                {
+                    if(toBuffer)
+                    {
+                        pw.println(tab + codec + ".pack_into(buffer, offset,");
+                    }
+                    else
+                    {
+                        pw.println(tab + "outputStream.stream.write(" + codec + ".pack(");
+                    }
+                    
+                    for(int jdx = 0; jdx < step.fields.size(); jdx++)
+                    {
+                        StructField field = (StructField)step.fields.get(jdx);
+                        boolean last = jdx == step.fields.size() - 1;
+                        pw.println(tab + INDENT + field.value + (last ? (toBuffer ? ")" : "))") : ","));
+                    }
+                    
+                    if(toBuffer)
+                    {
+                        pw.println(tab + "offset += " + codec + ".size");
+                    }
+                }
+                continue;
+            }
+            
+            ClassAttribute anAttribute = step.listAttribute;
+            
+            // A list of primitives is packed in one go, with a format built for its length
+            if(anAttribute.getUnderlyingTypeIsPrimitive())
+            {
+                String count = step.countPath != null ? (unpacking ? step.countPath : "len(" + step.path + ")") : String.valueOf(anAttribute.getListLength());
+                String format = "\">%d" + structFormats.getProperty(anAttribute.getType()) + "\" % " + count;
+                String size = count + " * " + getPrimitiveSize(anAttribute.getType());
+                
+                if(unpacking && toBuffer)
+                {
+                    pw.println(tab + step.path + " = list(struct.unpack_from(" + format + ", buffer, offset))");
+                }
+                else if(unpacking)
+                {
+                    pw.println(tab + step.path + " = list(struct.unpack(" + format + ", inputStream.stream.read(" + size + ")))");
+                }
+                else if(toBuffer)
+                {
+                    pw.println(tab + "struct.pack_into(" + format + ", buffer, offset, *" + step.path + ")");
+                }
+                else
+                {
+                    pw.println(tab + "outputStream.stream.write(struct.pack(" + format + ", *" + step.path + "))");
+                }
+                
+                if(toBuffer)
+                {
+                    pw.println(tab + "offset += " + size);
+                }
+                continue;
+            }
+            
+            // A list of objects, each of which is marshalled by its own codecs
+            String call = unpacking ? (toBuffer ? "parse_from(buffer, offset)" : "parse(inputStream)") : (toBuffer ? "serialize_into(buffer, offset)" : "serialize(outputStream)");
+            String assign = toBuffer ? "offset = " : "";
+            
+            if(unpacking && step.countPath != null)
+            {
+                pw.println(tab + step.path + " = []");
+                pw.println(tab + "for idx in range(0, " + step.countPath + "):");
+                pw.println(tab + INDENT + "element = " + anAttribute.getType() + "()");
+                pw.println(tab + INDENT + assign + "element." + call);
+                pw.println(tab + INDENT + step.path + ".append(element)");
+            }
+            else
+            {
+                pw.println(tab + "for element in " + step.path + ":");
+                pw.println(tab + INDENT + assign + "element." + call);
+            }
+        }
+        
+        if(steps.isEmpty() && !toBuffer)
+        {
+            pw.println(tab + "pass");
+        }
+    }
+    
     public void writeClassComments(PrintWriter pw, GeneratedClass aClass)
     {
         pw.println(INDENT + "\"\"\"" + aClass.getClassComments() + "\"\"\"");
@@ -16,12 +16,26 @@ public class SchemaGenerator extends Generator
 
     Set emptyClasses = new HashSet();
 
+    /** Parent class written to each schema, with empty classes skipped over. Filled in by
+     * resolveEmpty, so the class descriptions shared with other generators are left alone. */
+    Map schemaParents = new HashMap();
+
+    /** If true, each type holds the attributes it inherits, rather than an option of its
+     * parent type, and attributes are plain fields and bare lists rather than options and
+     * list wrapper types. Set with flatten="true" on the schema element or -Dxmlpg.flatten=true. */
+    boolean flatten = false;
+
+    /** A capture of PDUs stored back to back. If set, the integer fields in it are used to
+     * recommend schema types, which are written to recommendedTypeOverrideFile, by default
+     * type_override.recommended.properties in the output directory. Set with trafficCapture
+     * on the schema element or -Dxmlpg.trafficCapture. */
+    String trafficCapture = null;
+
     public SchemaGenerator(HashMap pClassDescriptions, Properties pSchemaProperties)
     {
         super(pClassDescriptions, pSchemaProperties);
 
-        Properties systemProperties = System.getProperties();
-        String clPduOffset = systemProperties.getProperty("xmlpg.pduOffset");
+        String clPduOffset = this.getCommandLineProperty("pduOffset");
 
         try {
             if(clPduOffset != null && Integer.parseInt(clPduOffset) > 0)
@@ -33,7 +47,7 @@ public class SchemaGenerator extends Generator
             System.exit(-1);
         }
 
-        String clDirectory = systemProperties.getProperty("xmlpg.generatedSourceDir");
+        String clDirectory = this.getCommandLineProperty("generatedSourceDir");
 
         // Directory to place generated source code
         if(clDirectory != null)
@@ -41,7 +55,7 @@ public class SchemaGenerator extends Generator
 
         super.setDirectory(pSchemaProperties.getProperty("directory"));
 
-        String clTypeOverrideFile = systemProperties.getProperty("xmlpg.typeOverrideFile");
+        String clTypeOverrideFile = this.getCommandLineProperty("typeOverrideFile");
         if(clTypeOverrideFile != null)
             pSchemaProperties.setProperty("typeOverrideFile", clTypeOverrideFile);
 
@@ -53,7 +67,7 @@ public class SchemaGenerator extends Generator
             }
         }
 
-        String clCommandFile = systemProperties.getProperty("xmlpg.commandFile");
+        String clCommandFile = this.getCommandLineProperty("commandFile");
         if(clCommandFile != null)
             pSchemaProperties.setProperty("commandFile", clCommandFile);
 
@@ -65,7 +79,7 @@ public class SchemaGenerator extends Generator
             }
         }
 
-        String clApiOverrideFile = systemProperties.getProperty("xmlpg.apiOverrideFile");
+        String clApiOverrideFile = this.getCommandLineProperty("apiOverrideFile");
         if(clApiOverrideFile != null)
             pSchemaProperties.setProperty("apiOverrideFile", clApiOverrideFile);
 
@@ -93,6 +107,9 @@ public class SchemaGenerator extends Generator
 
         types.setProperty("double", "double");
         types.setProperty("float", "float");
+
+        flatten = this.getBooleanOption("flatten");
+        trafficCapture = this.getOption("trafficCapture");
     }
 
     public String getType(String in) {
@@ -116,8 +133,7 @@ public class SchemaGenerator extends Generator
         try {
             String headerFullPath = getDirectory() + "/Void.schema";
             File outputFile = new File(headerFullPath);
-            outputFile.createNewFile();
-            PrintWriter pw = new PrintWriter(outputFile);
+            PrintWriter pw = this.openOutputFile(outputFile);
             String namespace = languageProperties.getProperty("namespace");
             if(namespace != null) {
                 pw.println("package " + namespace.toLowerCase() + ";");
@@ -134,15 +150,31 @@ public class SchemaGenerator extends Generator
             System.out.println(e);
         }
 
+        // Work out which classes are empty before writing anything. This fills in the
+        // schema parent classes, so it has to happen on one thread, and every schema file
+        // then sees the complete set no matter which order the classes are written in.
         Iterator it = classDescriptions.values().iterator();
-
         while(it.hasNext()) {
-            try {
-                this.writeSchemaFile((GeneratedClass)it.next());
-            }
-            catch(Exception e) {
-                System.out.println("error creating source code " + e);
+            resolveEmpty((GeneratedClass)it.next());
+        }
+
+        this.forEachClass(classDescriptions.values(), new ClassEmitter() {
+            public void emit(GeneratedClass aClass) {
+                try {
+                    writeSchemaFile(aClass);
+                }
+                catch(Exception e) {
+                    System.out.println("error creating source code " + e);
+                }
             }
+        });
+
+        if (trafficCapture != null) {
+            String overrideFile = this.getOption("recommendedTypeOverrideFile");
+            if (overrideFile == null)
+                overrideFile = getDirectory() + "/type_override.recommended.properties";
+
+            new SchemaTypeAdvisor(this, classDescriptions).advise(trafficCapture, new File(overrideFile));
         }
     }
 
@@ -152,18 +184,64 @@ public class SchemaGenerator extends Generator
             return true;
         }
 
-        if (aClass.getParentClass() != null && !aClass.getParentClass().isEmpty() &&
-               !aClass.getParentClass().equalsIgnoreCase("root")) {
-            GeneratedClass gc = (GeneratedClass) classDescriptions.get(aClass.getParentClass());
+        String parentClass = aClass.getParentClass();
+        if (parentClass != null && !parentClass.isEmpty() &&
+               !parentClass.equalsIgnoreCase("root")) {
+            GeneratedClass gc = (GeneratedClass) classDescriptions.get(parentClass);
             resolveEmpty(gc);
-            if (emptyClasses.contains(aClass.getParentClass())) {
-                aClass.setParentClass(gc.getParentClass());
+            if (emptyClasses.contains(parentClass)) {
+                parentClass = gc.getParentClass();
             }
         }
+        schemaParents.put(aClass.getName(), parentClass);
 
         return false;
     }
 
+    /**
+     * The parent class to write in the schema for a class, once resolveEmpty has run.
+     */
+    public String getSchemaParentClass(GeneratedClass aClass) {
+        String parentClass = (String) schemaParents.get(aClass.getName());
+        if (parentClass == null)
+            parentClass = aClass.getParentClass();
+        return parentClass;
+    }
+
+    /**
+     * True if a parent class is written into the schema of its subclasses. Pdu is left
+     * out, as its fields are the header, and the component id stands in for them.
+     */
+    boolean isSchemaParent(String parentClass) {
+        return !parentClass.isEmpty() &&
+               !parentClass.equalsIgnoreCase("root") &&
+               !parentClass.equalsIgnoreCase("Pdu");
+    }
+
+    /**
+     * The attributes of a class preceded by those it inherits, for flattened schemas.
+     * The class each attribute is declared in is put in declaringClasses, so type
+     * overrides of the form Class.attribute still apply to inherited attributes.
+     */
+    public List getFlattenedAttributes(GeneratedClass aClass, Map declaringClasses) {
+        List attributes = new ArrayList();
+
+        String parentClass = getSchemaParentClass(aClass);
+        if (isSchemaParent(parentClass)) {
+            GeneratedClass parent = (GeneratedClass) classDescriptions.get(parentClass);
+            if (parent != null)
+                attributes.addAll(getFlattenedAttributes(parent, declaringClasses));
+        }
+
+        List own = aClass.getClassAttributes();
+        for (int i = 0; i < own.size(); i++) {
+            declaringClasses.put(own.get(i), aClass.getName());
+            attributes.add(own.get(i));
+        }
+
+        return attributes;
+    }
+
     /**
      * Generate a schema file for the classes
      */
@@ -172,16 +250,16 @@ public class SchemaGenerator extends Generator
         if (typeOverrides.getProperty(aClass.getName()) != null)
             return;
 
-        if (resolveEmpty(aClass)) {
+        if (emptyClasses.contains(aClass.getName())) {
             return;
         }
 
         try {
             String name = aClass.getName();
+            String parentClass = getSchemaParentClass(aClass);
             String headerFullPath = getDirectory() + "/" + name + ".schema";
             File outputFile = new File(headerFullPath);
-            outputFile.createNewFile();
-            PrintWriter pw = new PrintWriter(outputFile);
+            PrintWriter pw = this.openOutputFile(outputFile);
 
             // Write includes for any classes we may reference. this generates multiple #includes if we
             // use a class multiple times, but that's innocuous. We could sort and do a unqiue to prevent
@@ -203,9 +281,14 @@ public class SchemaGenerator extends Generator
             boolean isEvent = false;
             boolean isCommand = false;
 
+            List attributes = aClass.getClassAttributes();
+            Map declaringClasses = new IdentityHashMap();
+            if (flatten)
+                attributes = getFlattenedAttributes(aClass, declaringClasses);
+
             Set attribs = new HashSet<String>();
-            for(int i = 0; i < aClass.getClassAttributes().size(); i++) {
-                ClassAttribute anAttribute = (ClassAttribute) aClass.getClassAttributes().get(i);
+            for(int i = 0; i < attributes.size(); i++) {
+                ClassAttribute anAttribute = (ClassAttribute) attributes.get(i);
 
                 if (attribs.contains(anAttribute.getType()))
                     continue;
@@ -237,11 +320,10 @@ public class SchemaGenerator extends Generator
             }
 
             // if we inherit from another class we need to do an include on it
-            if (!aClass.getParentClass().isEmpty() &&
-                    typeOverrides.getProperty(aClass.getParentClass()) == null &&
-                    !aClass.getParentClass().equalsIgnoreCase("root") &&
-                    !aClass.getParentClass().equalsIgnoreCase("Pdu")) {
-                pw.println("import \"" + namespace + aClass.getParentClass() + ".schema\";");
+            if (!flatten &&
+                    typeOverrides.getProperty(parentClass) == null &&
+                    isSchemaParent(parentClass)) {
+                pw.println("import \"" + namespace + parentClass + ".schema\";");
             }
 
             pw.println();
@@ -305,18 +387,16 @@ public class SchemaGenerator extends Generator
 
             GeneratedClass parent = null;
             int id = 1;
-            if (!aClass.getParentClass().isEmpty() &&
-                !aClass.getParentClass().equalsIgnoreCase("root") &&
-                !aClass.getParentClass().equalsIgnoreCase("Pdu")) {
+            if (!flatten && isSchemaParent(parentClass)) {
                 pw.println("  " + "/** Schema does not support inheritance, this is as close as we can get. */");
-                pw.println("  option<" + aClass.getParentClass() + "> super = " + id + ";");
+                pw.println("  option<" + parentClass + "> super = " + id + ";");
                 pw.println();
                 id++;
             }
 
             LinkedList<InternalType> listTypes = new LinkedList<InternalType>();
-            for(int i = 0; i < aClass.getClassAttributes().size(); i++, id++) {
-                ClassAttribute anAttribute = (ClassAttribute)aClass.getClassAttributes().get(i);
+            for(int i = 0; i < attributes.size(); i++, id++) {
+                ClassAttribute anAttribute = (ClassAttribute)attributes.get(i);
 
                 if (emptyClasses.contains(anAttribute.getType()))
                     continue;
@@ -331,12 +411,16 @@ public class SchemaGenerator extends Generator
                     pw.println("  " + "/** " + trimAllWhitespace(anAttribute.getComment()) + " */");
 
 
-                String type = typeOverrides.getProperty(aClass.getName() + "." + anAttribute.getName());
+                String declaringClass = aClass.getName();
+                if (declaringClasses.containsKey(anAttribute))
+                    declaringClass = (String) declaringClasses.get(anAttribute);
+
+                String type = typeOverrides.getProperty(declaringClass + "." + anAttribute.getName());
                 if (type == null)
                     type = getType(anAttribute.getType());
                 if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.PRIMITIVE ||
                    anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.CLASSREF) {
-                    pw.println("  option<" + type + "> " + makeSnakeCase(anAttribute.getName()) + " = " + id + ";");
+                    pw.println("  " + getFieldType(type) + " " + makeSnakeCase(anAttribute.getName()) + " = " + id + ";");
                 }
                 else if(anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.FIXED_LIST ||
                         anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) {
@@ -345,9 +429,11 @@ public class SchemaGenerator extends Generator
                         alias = anAttribute.getType();
                     if (alias.equals("byte") || alias.equals("unsigned byte")) {
                         if (anAttribute.getCouldBeString())
-                            pw.println("  option<string> " + makeSnakeCase(anAttribute.getName()) + " = " + id + ";");
+                            pw.println("  " + getFieldType("string") + " " + makeSnakeCase(anAttribute.getName()) + " = " + id + ";");
                         else
-                            pw.println("  option<bytes> " + makeSnakeCase(anAttribute.getName()) + " = " + id + ";");
+                            pw.println("  " + getFieldType("bytes") + " " + makeSnakeCase(anAttribute.getName()) + " = " + id + ";");
+                    } else if (flatten) {
+                        pw.println("  list<" + type + "> " + makeSnakeCase(anAttribute.getName()) + " = " + id + ";");
                     } else {
                         String prependClass = aClass.getName().replaceAll("Pdu$", "");
 
@@ -378,6 +464,16 @@ public class SchemaGenerator extends Generator
         }
     }
 
+    /**
+     * The type of a field holding a value of this schema type. Every attribute always has
+     * a value, so flattened schemas use the type itself rather than an option of it.
+     */
+    private String getFieldType(String type) {
+        if (flatten)
+            return type;
+        return "option<" + type + ">";
+    }
+
     private class InternalType {
         public String schemaType;
         public String listDataType;
@@ -0,0 +1,425 @@
+package edu.nps.moves.xmlpg;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Recommends schema integer types from recorded traffic. A capture of PDUs stored back to
+ * back, as sent on the wire, is decoded with the class descriptions, and the encoded size
+ * of every integer field value is added up under each schema type it could have: varints,
+ * zigzag varints for signed fields, and fixed width. The type that would have taken the
+ * fewest bytes is written to a type override file, keyed Class.attribute by the class that
+ * declares the attribute, along with the overrides already in use.
+ */
+public class SchemaTypeAdvisor {
+    /** The schema types an integer of each XML type can be written as */
+    static final Map<String, String[]> candidateTypes = new HashMap<String, String[]>();
+
+    static {
+        String[] unsigned32 = { "uint32", "fixed32" };
+        String[] signed32 = { "sint32", "int32", "sfixed32" };
+
+        candidateTypes.put("unsigned byte", unsigned32);
+        candidateTypes.put("unsigned short", unsigned32);
+        candidateTypes.put("unsigned int", unsigned32);
+        candidateTypes.put("unsigned long", new String[] { "uint64", "fixed64" });
+
+        candidateTypes.put("byte", signed32);
+        candidateTypes.put("short", signed32);
+        candidateTypes.put("int", signed32);
+        candidateTypes.put("long", new String[] { "sint64", "int64", "sfixed64" });
+    }
+
+    SchemaGenerator generator;
+
+    Map<?, ?> classDescriptions;
+
+    /** FieldStats for each Class.attribute seen, in name order */
+    Map<String, FieldStats> fieldStats = new TreeMap<String, FieldStats>();
+
+    int pdusRead = 0;
+    int pdusUnknown = 0;
+    int pdusMalformed = 0;
+
+    public SchemaTypeAdvisor(SchemaGenerator generator, Map<?, ?> classDescriptions) {
+        this.generator = generator;
+        this.classDescriptions = classDescriptions;
+    }
+
+    /**
+     * Reads the capture and writes the recommended type override file. Problems are
+     * reported and leave the output unwritten.
+     */
+    public void advise(String captureFile, File overrideFile) {
+        TreeMap<Integer, GeneratedClass> pduTypes = generator.getPduTypes();
+        GeneratedClass baseClass = generator.getPduBaseClass(pduTypes);
+        if (baseClass == null) {
+            System.out.println("PDU classes do not share a pduType attribute; no type overrides recommended");
+            return;
+        }
+
+        int pduTypeOffset = generator.getFixedOffset(baseClass, generator.getAttribute(baseClass, "pduType"));
+        ClassAttribute lengthAttribute = generator.getAttribute(baseClass, "length");
+        if (pduTypeOffset < 0 || lengthAttribute == null || generator.getFixedOffset(baseClass, lengthAttribute) < 0) {
+            System.out.println("PDUs have no pduType and length fields at fixed offsets; no type overrides recommended");
+            return;
+        }
+        int lengthOffset = generator.getFixedOffset(baseClass, lengthAttribute);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(captureFile), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                System.out.println("Capture " + captureFile + " is over 2GB; only the first 2GB is read");
+            }
+            ByteBuffer capture = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+
+            while (capture.remaining() > lengthOffset + 1) {
+                int start = capture.position();
+                int pduType = capture.get(start + pduTypeOffset) & 0xff;
+                int length = capture.getShort(start + lengthOffset) & 0xffff;
+                if (length <= lengthOffset + 1 || length > capture.remaining()) {
+                    System.out.println("PDU at byte " + start + " of the capture has a bad length of " + length + "; stopped reading there");
+                    break;
+                }
+
+                ByteBuffer pdu = capture.duplicate();
+                pdu.limit(start + length);
+                capture.position(start + length);
+
+                GeneratedClass pduClass = pduTypes.get(Integer.valueOf(pduType));
+                if (pduClass == null) {
+                    pdusUnknown++;
+                    continue;
+                }
+
+                // Values are only kept once the whole PDU has decoded
+                Map<String, FieldStats> pduStats = new HashMap<String, FieldStats>();
+                try {
+                    decode(pduClass, pdu, pduStats, true);
+                }
+                catch (BufferUnderflowException | IllegalStateException e) {
+                    pdusMalformed++;
+                    continue;
+                }
+                merge(pduStats);
+                pdusRead++;
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Could not read traffic capture " + captureFile);
+            System.out.println(e);
+            return;
+        }
+
+        try {
+            writeOverrides(captureFile, overrideFile);
+        }
+        catch (IOException e) {
+            System.out.println("Could not write recommended type overrides to " + overrideFile);
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Reads one object of a class, its superclasses' attributes first, recording the value
+     * of each integer field the schema holds as a field of its own. Superclasses past the
+     * schema's, such as the Pdu header, are read but not recorded.
+     */
+    private void decode(GeneratedClass aClass, ByteBuffer buffer, Map<String, FieldStats> pduStats, boolean record) {
+        List<GeneratedClass> hierarchy = new ArrayList<GeneratedClass>();
+        for (GeneratedClass current = aClass; current != null; current = getClass(current.getParentClass())) {
+            hierarchy.add(0, current);
+        }
+
+        // The classes whose fields are in the schema, following the same parents it does
+        Set<GeneratedClass> schemaClasses = new HashSet<GeneratedClass>();
+        for (GeneratedClass current = aClass; current != null; ) {
+            schemaClasses.add(current);
+            String parentClass = generator.getSchemaParentClass(current);
+            current = generator.isSchemaParent(parentClass) ? getClass(parentClass) : null;
+        }
+
+        // Values of the fields read so far, for the lengths of variable lists
+        Map<String, Long> values = new HashMap<String, Long>();
+
+        for (int i = 0; i < hierarchy.size(); i++) {
+            GeneratedClass declaringClass = hierarchy.get(i);
+            List<?> attributes = declaringClass.getClassAttributes();
+            boolean recordClass = record && schemaClasses.contains(declaringClass);
+
+            for (int j = 0; j < attributes.size(); j++) {
+                ClassAttribute anAttribute = (ClassAttribute) attributes.get(j);
+                if (anAttribute.shouldSerialize == false)
+                    continue;
+
+                String key = declaringClass.getName() + "." + anAttribute.getName();
+                boolean recordAttribute = recordClass && isSchemaField(anAttribute);
+
+                switch (anAttribute.getAttributeKind()) {
+                    case PRIMITIVE:
+                        long value = read(anAttribute.getType(), buffer);
+                        values.put(anAttribute.getName(), Long.valueOf(value));
+                        if (recordAttribute)
+                            add(pduStats, key, anAttribute.getType(), value);
+                        break;
+
+                    case CLASSREF:
+                        decodeClass(anAttribute.getType(), buffer, pduStats, recordClass);
+                        break;
+
+                    default:
+                        int count = anAttribute.getListLength();
+                        if (anAttribute.getAttributeKind() == ClassAttribute.ClassAttributeType.VARIABLE_LIST) {
+                            Long countValue = values.get(anAttribute.getCountFieldName());
+                            if (countValue == null || countValue.longValue() < 0)
+                                throw new IllegalStateException("No count for " + key);
+                            count = (int) Math.min(countValue.longValue(), buffer.remaining());
+                        }
+
+                        // Lists of bytes are bytes or string fields in the schema
+                        boolean byteList = anAttribute.getType().equals("byte") || anAttribute.getType().equals("unsigned byte");
+                        for (int idx = 0; idx < count; idx++) {
+                            if (anAttribute.getUnderlyingTypeIsPrimitive()) {
+                                long element = read(anAttribute.getType(), buffer);
+                                if (recordAttribute && !byteList)
+                                    add(pduStats, key, anAttribute.getType(), element);
+                            }
+                            else {
+                                decodeClass(anAttribute.getType(), buffer, pduStats, recordClass);
+                            }
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes a nested object. Classes the schema replaces with a type of their own
+     * through a type override are read past without recording their fields.
+     */
+    private void decodeClass(String className, ByteBuffer buffer, Map<String, FieldStats> pduStats, boolean record) {
+        GeneratedClass aClass = getClass(className);
+        if (aClass == null)
+            throw new IllegalStateException("No class " + className);
+
+        decode(aClass, buffer, pduStats, record && generator.typeOverrides.getProperty(className) == null);
+    }
+
+    private GeneratedClass getClass(String className) {
+        return (GeneratedClass) classDescriptions.get(className);
+    }
+
+    /**
+     * True if the attribute is written as a field of the schema. Padding is left out.
+     */
+    private boolean isSchemaField(ClassAttribute anAttribute) {
+        return !anAttribute.getName().startsWith("pad") && !anAttribute.getName().endsWith("Padding");
+    }
+
+    /**
+     * Reads a primitive in network byte order. Floating point values are read past and
+     * returned as 0, as there is no choice of schema type to make for them.
+     */
+    private long read(String xmlType, ByteBuffer buffer) {
+        switch (Generator.getPrimitiveSize(xmlType)) {
+            case 1:
+                return xmlType.startsWith("unsigned") ? buffer.get() & 0xffL : buffer.get();
+            case 2:
+                return xmlType.startsWith("unsigned") ? buffer.getShort() & 0xffffL : buffer.getShort();
+            case 4:
+                if (xmlType.equals("float")) {
+                    buffer.getFloat();
+                    return 0;
+                }
+                return xmlType.startsWith("unsigned") ? buffer.getInt() & 0xffffffffL : buffer.getInt();
+            case 8:
+                return buffer.getLong();
+            default:
+                throw new IllegalStateException("Unknown primitive type " + xmlType);
+        }
+    }
+
+    private void add(Map<String, FieldStats> pduStats, String key, String xmlType, long value) {
+        String[] candidates = candidateTypes.get(xmlType);
+        if (candidates == null)
+            return;
+
+        FieldStats stats = pduStats.get(key);
+        if (stats == null) {
+            stats = new FieldStats(xmlType, candidates);
+            pduStats.put(key, stats);
+        }
+        stats.add(value);
+    }
+
+    private void merge(Map<String, FieldStats> pduStats) {
+        for (Map.Entry<String, FieldStats> entry : pduStats.entrySet()) {
+            FieldStats stats = fieldStats.get(entry.getKey());
+            if (stats == null)
+                fieldStats.put(entry.getKey(), entry.getValue());
+            else
+                stats.merge(entry.getValue());
+        }
+    }
+
+    /**
+     * Writes the type overrides already in use, then a Class.attribute override for each
+     * field whose values would have been smaller as another type. Ties keep the type in use.
+     */
+    private void writeOverrides(String captureFile, File overrideFile) throws IOException {
+        Properties typeOverrides = generator.typeOverrides;
+        TreeMap<String, String> overrides = new TreeMap<String, String>();
+        Map<String, String> reasons = new HashMap<String, String>();
+
+        for (String key : typeOverrides.stringPropertyNames()) {
+            overrides.put(key, typeOverrides.getProperty(key));
+        }
+
+        int changed = 0;
+        for (Map.Entry<String, FieldStats> entry : fieldStats.entrySet()) {
+            String key = entry.getKey();
+            FieldStats stats = entry.getValue();
+
+            String current = typeOverrides.getProperty(key);
+            if (current == null)
+                current = generator.getType(stats.xmlType);
+
+            int currentIndex = Arrays.asList(stats.candidates).indexOf(current);
+            if (currentIndex < 0)
+                continue;
+
+            int best = currentIndex;
+            for (int i = 0; i < stats.candidates.length; i++) {
+                if (stats.bytes[i] < stats.bytes[best])
+                    best = i;
+            }
+            if (best == currentIndex)
+                continue;
+
+            overrides.put(key, stats.candidates[best]);
+            reasons.put(key, stats.describe());
+            changed++;
+        }
+
+        overrideFile.getParentFile().mkdirs();
+        PrintWriter pw = generator.openOutputFile(overrideFile);
+
+        pw.println("# Schema type overrides recommended from the traffic in " + new File(captureFile).getName());
+        pw.println("# " + pdusRead + " PDUs decoded, " + pdusUnknown + " of unknown types and " + pdusMalformed + " that did not decode were skipped.");
+        pw.println("# " + changed + " fields changed from the types in use. Use this file as the typeOverrideFile.");
+        pw.println();
+
+        for (Map.Entry<String, String> entry : overrides.entrySet()) {
+            String reason = reasons.get(entry.getKey());
+            if (reason != null)
+                pw.println("# " + reason);
+            pw.println(entry.getKey() + " = " + entry.getValue());
+        }
+
+        pw.flush();
+        pw.close();
+
+        System.out.println("Recommended type overrides for " + changed + " fields written to " + overrideFile);
+    }
+
+    /**
+     * Returns the number of bytes a value takes as a varint, treating it as unsigned.
+     */
+    static int getVarintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value = value >>> 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes a value takes as the schema type.
+     */
+    static int getEncodedSize(String schemaType, long value) {
+        if (schemaType.equals("fixed32") || schemaType.equals("sfixed32"))
+            return 4;
+        if (schemaType.equals("fixed64") || schemaType.equals("sfixed64"))
+            return 8;
+        if (schemaType.startsWith("sint"))
+            return getVarintSize((value << 1) ^ (value >> 63));
+
+        // Negative int32 and int64 values are sign extended to ten bytes
+        return getVarintSize(value);
+    }
+
+    /**
+     * The number of values of one field and the bytes they take as each candidate type.
+     * Unsigned long values are held in a long, so they are compared and shown unsigned.
+     */
+    private static class FieldStats {
+        String xmlType;
+        String[] candidates;
+        boolean unsigned;
+        long[] bytes;
+        long count = 0;
+        long min = 0;
+        long max = 0;
+
+        FieldStats(String xmlType, String[] candidates) {
+            this.xmlType = xmlType;
+            this.candidates = candidates;
+            this.unsigned = xmlType.equals("unsigned long");
+            this.bytes = new long[candidates.length];
+        }
+
+        void add(long value) {
+            for (int i = 0; i < candidates.length; i++) {
+                bytes[i] = bytes[i] + getEncodedSize(candidates[i], value);
+            }
+            extend(value, value);
+            count++;
+        }
+
+        void merge(FieldStats other) {
+            for (int i = 0; i < candidates.length; i++) {
+                bytes[i] = bytes[i] + other.bytes[i];
+            }
+            if (other.count > 0)
+                extend(other.min, other.max);
+            count = count + other.count;
+        }
+
+        private void extend(long low, long high) {
+            if (count == 0) {
+                min = low;
+                max = high;
+                return;
+            }
+            if (compare(low, min) < 0)
+                min = low;
+            if (compare(high, max) > 0)
+                max = high;
+        }
+
+        private int compare(long a, long b) {
+            return unsigned ? Long.compareUnsigned(a, b) : Long.compare(a, b);
+        }
+
+        private String format(long value) {
+            return unsigned ? Long.toUnsignedString(value) : Long.toString(value);
+        }
+
+        String describe() {
+            StringBuffer description = new StringBuffer();
+            description.append(count + " values from " + format(min) + " to " + format(max) + ":");
+            for (int i = 0; i < candidates.length; i++) {
+                description.append(" " + candidates[i] + " " + bytes[i] + " bytes");
+                if (i < candidates.length - 1)
+                    description.append(",");
+            }
+            return description.toString();
+        }
+    }
+}
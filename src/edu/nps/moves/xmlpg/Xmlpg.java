@@ -2,6 +2,7 @@ package edu.nps.moves.xmlpg;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.xml.parsers.*;
 import org.w3c.dom.*;
 import org.xml.sax.*;
@@ -83,6 +84,9 @@ public class Xmlpg
     private String objcDirectory = null;
     
     private int classCount = 0;
+    
+    /** Written at the start of every model snapshot, and changed whenever the layout of the snapshot changes */
+    private static final String SNAPSHOT_FORMAT = "xmlpg model snapshot 1";
    
     /**
      * Create a new collection of Java objects by reading an XML file; these
@@ -92,41 +96,28 @@ public class Xmlpg
     public Xmlpg(String xmlDescriptionFileName, 
                  String languageToGenerate)
     {
-        // Which languages to generate
-        boolean generateJava = false, generateCpp=false, generateCs=false, generateObjc=false, generatePython= false;
-        LanguageType toGenerate = null;
-
-        if(languageToGenerate.equalsIgnoreCase("java"))
-        {
-            toGenerate = Xmlpg.LanguageType.JAVA;
-        }
-        else if(languageToGenerate.equalsIgnoreCase("cpp"))
-        {
-            toGenerate = Xmlpg.LanguageType.CPP;
-        }
-        else if(languageToGenerate.equalsIgnoreCase("objc"))
-        {
-            toGenerate = Xmlpg.LanguageType.OBJECTIVEC;
-        }
-        else if(languageToGenerate.equalsIgnoreCase("csharp"))
-        {
-            toGenerate = Xmlpg.LanguageType.CSHARP;
-        }
-        else if(languageToGenerate.equalsIgnoreCase("javascript"))
-        {
-            toGenerate = Xmlpg.LanguageType.JAVASCRIPT;
-        }
-        else if(languageToGenerate.equalsIgnoreCase("python"))
-        {
-            toGenerate = Xmlpg.LanguageType.PYTHON;
-        }
-        else if(languageToGenerate.equalsIgnoreCase("schema"))
+        this(xmlDescriptionFileName);
+        this.generate(Xmlpg.languagesFor(languageToGenerate));
+    }
+    
+    /**
+     * Reads and checks the XML file without generating any code. Call generate()
+     * afterwards, once for each set of languages wanted; the classes are parsed
+     * only once no matter how many languages are written from them.
+     */
+    public Xmlpg(String xmlDescriptionFileName)
+    {
+        // With -Dxmlpg.modelCache=dir a previously checked model of the same XML file
+        // is loaded from a snapshot instead of parsing and checking it all over again
+        File snapshotFile = null;
+        String modelCache = System.getProperty("xmlpg.modelCache");
+        if(modelCache != null)
         {
-            toGenerate = Xmlpg.LanguageType.SCHEMA;
+            snapshotFile = this.snapshotFileFor(xmlDescriptionFileName, modelCache);
+            if(snapshotFile != null && snapshotFile.exists() && this.loadSnapshot(snapshotFile))
+                return;
         }
-
-        Properties sourceGenerationOptions = new Properties();
-
+        
         try
         {
             DefaultHandler handler = new MyHandler();
@@ -140,8 +131,6 @@ public class Xmlpg
             System.out.println(e);
         }
         
-        Iterator iterator = generatedClassNames.values().iterator();
-       
         // This does at least a cursory santity check on the data that has been read in from XML
         // It is far from complete.
         if(!this.astIsPlausible())
@@ -151,84 +140,302 @@ public class Xmlpg
             System.exit(1);
         }
         
-        //System.out.println("putting java files in " + javaDirectory);
-        
-        // Create a new generator object to write out the source code for all the classes in java
-        if(toGenerate == Xmlpg.LanguageType.JAVA)
+        if(snapshotFile != null)
+            this.saveSnapshot(snapshotFile);
+    }
+    
+    /**
+     * Returns the file in the model cache directory that holds the snapshot for this
+     * XML file. Snapshots are named after the SHA-256 hash of the XML file's contents,
+     * so editing the XML file means its old snapshot is simply never found again.
+     * Returns null if the XML file cannot be read.
+     */
+    private File snapshotFileFor(String xmlDescriptionFileName, String modelCache)
+    {
+        try
         {
-            JavaGenerator javaGenerator = new JavaGenerator(generatedClassNames, javaProperties );
-            javaGenerator.writeClasses();
+            byte[] hash = IncrementalPrintWriter.contentHash(java.nio.file.Files.readAllBytes(new File(xmlDescriptionFileName).toPath()));
+            
+            StringBuffer hexHash = new StringBuffer();
+            for(int idx = 0; idx < hash.length; idx++)
+            {
+                hexHash.append(String.format("%02x", hash[idx]));
+            }
+            
+            return new File(modelCache, hexHash + ".model");
         }
-        
-        // Use the same information to generate classes in C++
-        if(toGenerate == Xmlpg.LanguageType.CPP)
+        catch(IOException e)
         {
-            CppGenerator cppGenerator = new CppGenerator(generatedClassNames, cppProperties);
-            cppGenerator.writeClasses();
+            System.out.println("Could not read " + xmlDescriptionFileName + " to look it up in the model cache: " + e);
+            return null;
         }
+    }
+    
+    /**
+     * Loads the class descriptions and language properties from a snapshot written by
+     * saveSnapshot(). Returns false, leaving this object untouched, if the snapshot
+     * cannot be read. That includes snapshots written by a version of xmlpg whose model
+     * classes have since changed, which fail to deserialize.
+     */
+    private boolean loadSnapshot(File snapshotFile)
+    {
+        ObjectInputStream ois = null;
+        try
+        {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+            if(!SNAPSHOT_FORMAT.equals(ois.readObject()))
+                return false;
+            
+            HashMap classes = (HashMap)ois.readObject();
+            Properties[] languages = new Properties[7];
+            for(int idx = 0; idx < languages.length; idx++)
+            {
+                languages[idx] = (Properties)ois.readObject();
+            }
+            
+            generatedClassNames = classes;
+            javaProperties = languages[0];
+            cppProperties = languages[1];
+            csharpProperties = languages[2];
+            objcProperties = languages[3];
+            javascriptProperties = languages[4];
+            pythonProperties = languages[5];
+            schemaProperties = languages[6];
+            
+            return true;
+        }
+        catch(Exception e)
+        {
+            System.out.println("Ignoring unreadable model snapshot " + snapshotFile + ": " + e);
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                if(ois != null)
+                    ois.close();
+            }
+            catch(IOException e)
+            {
+            }
+        }
+    }
+    
+    /**
+     * Writes the checked class descriptions and language properties to the model cache.
+     * The snapshot is written to a temporary file first and then moved into place, so
+     * several runs sharing a cache never see a partly written snapshot.
+     */
+    private void saveSnapshot(File snapshotFile)
+    {
+        try
+        {
+            File cacheDirectory = snapshotFile.getAbsoluteFile().getParentFile();
+            cacheDirectory.mkdirs();
+            
+            File tempFile = File.createTempFile("xmlpg", ".tmp", cacheDirectory);
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try
+            {
+                oos.writeObject(SNAPSHOT_FORMAT);
+                oos.writeObject(generatedClassNames);
+                oos.writeObject(javaProperties);
+                oos.writeObject(cppProperties);
+                oos.writeObject(csharpProperties);
+                oos.writeObject(objcProperties);
+                oos.writeObject(javascriptProperties);
+                oos.writeObject(pythonProperties);
+                oos.writeObject(schemaProperties);
+            }
+            finally
+            {
+                oos.close();
+            }
+            
+            java.nio.file.Files.move(tempFile.toPath(), snapshotFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            System.out.println("Could not write model snapshot " + snapshotFile + ": " + e);
+        }
+    }
+    
+    /**
+     * Returns the language named on the command line, eg "java" or "cpp", or
+     * null if there is no such language.
+     */
+    public static LanguageType languageFor(String languageName)
+    {
+        String name = languageName.trim();
         
-        if(toGenerate == Xmlpg.LanguageType.CSHARP)
+        if(name.equalsIgnoreCase("java"))
+            return Xmlpg.LanguageType.JAVA;
+        if(name.equalsIgnoreCase("cpp"))
+            return Xmlpg.LanguageType.CPP;
+        if(name.equalsIgnoreCase("objc"))
+            return Xmlpg.LanguageType.OBJECTIVEC;
+        if(name.equalsIgnoreCase("csharp"))
+            return Xmlpg.LanguageType.CSHARP;
+        if(name.equalsIgnoreCase("javascript"))
+            return Xmlpg.LanguageType.JAVASCRIPT;
+        if(name.equalsIgnoreCase("python"))
+            return Xmlpg.LanguageType.PYTHON;
+        if(name.equalsIgnoreCase("schema"))
+            return Xmlpg.LanguageType.SCHEMA;
+        
+        return null;
+    }
+    
+    /**
+     * Turns a comma separated list of language names, such as "java,cpp,csharp",
+     * into the languages to generate. "all" stands for every language. Names that
+     * are not languages are skipped; preflightArgs() reports them.
+     */
+    public static List languagesFor(String languageList)
+    {
+        List languages = new ArrayList();
+        
+        String[] names = languageList.split(",");
+        for(int idx = 0; idx < names.length; idx++)
         {
-            // Create a new generator object to write out the source code for all the classes in csharp
-            CsharpGenerator csharpGenerator = new CsharpGenerator(generatedClassNames, csharpProperties);
-            csharpGenerator.writeClasses();
+            if(names[idx].trim().equalsIgnoreCase("all"))
+            {
+                languages.clear();
+                languages.addAll(Arrays.asList(LanguageType.values()));
+                break;
+            }
+            
+            LanguageType aLanguage = Xmlpg.languageFor(names[idx]);
+            if(aLanguage != null && !languages.contains(aLanguage))
+                languages.add(aLanguage);
         }
-
-        if(toGenerate == Xmlpg.LanguageType.OBJECTIVEC)
+        
+        return languages;
+    }
+    
+    /**
+     * Returns the generator that writes the parsed classes in the given language.
+     * All generators share the same class descriptions, which they only read.
+     */
+    public Generator generatorFor(LanguageType language)
+    {
+        switch(language)
         {
-            // create a new generator object for objc
-            ObjcGenerator objcGenerator = new ObjcGenerator(generatedClassNames, objcProperties);
-            objcGenerator.writeClasses();
+            case JAVA:
+                return new JavaGenerator(generatedClassNames, javaProperties);
+                
+            case CPP:
+                return new CppGenerator(generatedClassNames, cppProperties);
+                
+            case CSHARP:
+                return new CsharpGenerator(generatedClassNames, csharpProperties);
+                
+            case OBJECTIVEC:
+                return new ObjcGenerator(generatedClassNames, objcProperties);
+                
+            case JAVASCRIPT:
+                return new JavascriptGenerator(generatedClassNames, javascriptProperties);
+                
+            case PYTHON:
+                return new PythonGenerator(generatedClassNames, pythonProperties);
+                
+            case SCHEMA:
+                return new SchemaGenerator(generatedClassNames, schemaProperties);
         }
         
-        if(toGenerate == Xmlpg.LanguageType.JAVASCRIPT)
+        return null;
+    }
+    
+    /**
+     * Writes the source code for one language.
+     */
+    public void generate(LanguageType language)
+    {
+        this.generatorFor(language).writeClasses();
+    }
+    
+    /**
+     * Writes the source code for several languages from the one parsed model. Each
+     * language is written on its own thread, and this returns once all of them are
+     * done. The generators share the class descriptions but nothing else, so use
+     * -Dxmlpg.[language].generatedSourceDir to send each language to its own directory.
+     */
+    public void generate(List languages)
+    {
+        if(languages.size() == 1)
         {
-            // create a new generator object for javascript
-            JavascriptGenerator javascriptGenerator = new JavascriptGenerator(generatedClassNames, javascriptProperties);
-            javascriptGenerator.writeClasses();
+            this.generate((LanguageType)languages.get(0));
+            return;
         }
         
-        if(toGenerate == Xmlpg.LanguageType.PYTHON)
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, languages.size()));
+        try
         {
-            // create a new generator object for Python
-            PythonGenerator pythonGenerator = new PythonGenerator(generatedClassNames, pythonProperties);
-            pythonGenerator.writeClasses();
+            List futures = new ArrayList();
+            for(int idx = 0; idx < languages.size(); idx++)
+            {
+                final LanguageType aLanguage = (LanguageType)languages.get(idx);
+                futures.add(executor.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        Xmlpg.this.generate(aLanguage);
+                    }
+                }));
+            }
+            
+            for(int idx = 0; idx < futures.size(); idx++)
+            {
+                try
+                {
+                    ((Future)futures.get(idx)).get();
+                }
+                catch(ExecutionException e)
+                {
+                    System.out.println("Could not generate " + languages.get(idx) + " source code");
+                    System.out.println(e.getCause());
+                }
+                catch(InterruptedException e)
+                {
+                    System.out.println(e);
+                }
+            }
         }
-
-        if(toGenerate == Xmlpg.LanguageType.SCHEMA)
+        finally
         {
-            // create a new generator object for Python
-            SchemaGenerator schemaGenerator = new SchemaGenerator(generatedClassNames, schemaProperties);
-            schemaGenerator.writeClasses();
+            executor.shutdown();
         }
     }
     
     /**
-     * entry point. Pass in two arguments, the language you want to generate for and the XML file
-     * that describes the classes
+     * entry point. Pass in the XML file that describes the classes, then the languages
+     * you want to generate for. Several languages can be given, either as separate
+     * arguments or comma separated; "all" generates every language.
      */
     public static void main(String args[])
     {
-        String language = null;
-
-        Properties props = System.getProperties();
-        //props.list(System.out);
-       
-        if(args.length < 2 || args.length > 2)
+        if(args.length < 2)
         {
-            System.out.println("Usage: Xmlpg xmlFile language"); 
-            System.out.println("Allowable languages are java, cpp, objc, python, schema and csharp");
+            System.out.println("Usage: Xmlpg xmlFile language[,language...] [language...]"); 
+            System.out.println("Allowable languages are java, cpp, objc, javascript, python, schema and csharp, or all");
             System.exit(0);
         }
         
-        Xmlpg.preflightArgs(args[0], args[1]);
+        String languages = args[1];
+        for(int idx = 2; idx < args.length; idx++)
+        {
+            languages = languages + "," + args[idx];
+        }
+        
+        Xmlpg.preflightArgs(args[0], languages);
         
-	Xmlpg gen = new Xmlpg(args[0], args[1]);   
+	Xmlpg gen = new Xmlpg(args[0], languages);   
     } // end of main
     
     /** 
      * Does a sanity check on the args passed in: does the XML file exist, and is
-     * the language valid.
+     * each language in the comma separated list valid.
      */
     public static void preflightArgs(String xmlFile, String language)
     {
@@ -237,27 +444,28 @@ public class Xmlpg
             FileInputStream fis = new FileInputStream(xmlFile);
             fis.close();
             
-            if(!(language.equalsIgnoreCase("java") || language.equalsIgnoreCase("cpp") ||
-               language.equalsIgnoreCase("objc") || language.equalsIgnoreCase("csharp") ||
-               language.equalsIgnoreCase("javascript") || language.equalsIgnoreCase("python") ||
-               language.equalsIgnoreCase("schema") ))
+            String[] names = language.split(",");
+            for(int idx = 0; idx < names.length; idx++)
             {
-                System.out.println("Not a valid language to generate. The options are java, cpp, objc, javascript, python, schema and csharp");
-                System.out.println("Usage: Xmlpg xmlFile language"); 
-                System.exit(0);
+                if(!(names[idx].trim().equalsIgnoreCase("all") || Xmlpg.languageFor(names[idx]) != null))
+                {
+                    System.out.println(names[idx] + " is not a valid language to generate. The options are java, cpp, objc, javascript, python, schema and csharp, or all");
+                    System.out.println("Usage: Xmlpg xmlFile language[,language...] [language...]"); 
+                    System.exit(0);
+                }
             }
         }
         catch (FileNotFoundException fnfe) 
         {
             System.out.println("XML file " + xmlFile + " not found. Please check the path and try again");
-            System.out.println("Usage: Xmlpg xmlFile language"); 
+            System.out.println("Usage: Xmlpg xmlFile language[,language...] [language...]"); 
             System.exit(0);
         }
         catch(Exception e)
         {
             System.out.println("Problem with arguments to Xmlpg. Please check them.");
-            System.out.println("Usage: Xmlpg xmlFile language"); 
-
+            System.out.println("Usage: Xmlpg xmlFile language[,language...] [language...]"); 
+ 
             System.exit(0);
         }
         
@@ -497,6 +705,12 @@ public class Xmlpg
                             
                     }
                     
+                    // Value type--whether languages that have them should make this a struct
+                    if(attributes.getQName(idx).equalsIgnoreCase("valueType"))
+                    {
+                        currentGeneratedClass.setValueType(attributes.getValue(idx).toLowerCase());
+                    }
+                    
                 }
             }
             